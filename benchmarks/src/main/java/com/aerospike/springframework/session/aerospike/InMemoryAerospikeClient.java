@@ -0,0 +1,401 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Bin;
+import com.aerospike.client.IAerospikeClient;
+import com.aerospike.client.Key;
+import com.aerospike.client.Operation;
+import com.aerospike.client.Record;
+import com.aerospike.client.ResultCode;
+import com.aerospike.client.ScanCallback;
+import com.aerospike.client.policy.GenerationPolicy;
+import com.aerospike.client.policy.RecordExistsAction;
+import com.aerospike.client.policy.WritePolicy;
+import com.aerospike.client.util.Unpacker;
+
+
+/**
+ * In-memory stand-in for the Aerospike client, so that benchmarks and load tests
+ * measure the work done by the repository rather than the network. It supports
+ * the single record, batch and scan calls made by
+ * {@link AerospikeOperationsSessionRepository}, applying record exists actions,
+ * generation checks, record TTLs and the map operations the repository sends.
+ * Writes to the same record are serialized like on the server.
+ * <p>
+ * {@link Faults} add latency to every call and make a share of them time out,
+ * without applying the call. They can be changed while the client is in use.
+ *
+ * @author Jeff Boone
+ */
+final class InMemoryAerospikeClient implements InvocationHandler {
+
+	private static final int LOCK_STRIPES = 256;
+
+	// map operation codes, as packed by the client
+	private static final int MAP_PUT = 67;
+	private static final int MAP_PUT_ITEMS = 68;
+	private static final int MAP_REMOVE_BY_KEY = 76;
+	private static final int MAP_REMOVE_BY_KEY_LIST = 81;
+
+	private final ConcurrentMap<Key, Stored> records = new ConcurrentHashMap<Key, Stored>();
+
+	private final Object[] locks = new Object[LOCK_STRIPES];
+
+	private final Faults faults;
+
+	private InMemoryAerospikeClient(Faults faults) {
+		this.faults = faults;
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			this.locks[i] = new Object();
+		}
+	}
+
+	static IAerospikeClient create() {
+		return create(new Faults());
+	}
+
+	static IAerospikeClient create(Faults faults) {
+		return (IAerospikeClient) Proxy.newProxyInstance(IAerospikeClient.class.getClassLoader(),
+				new Class<?>[] { IAerospikeClient.class }, new InMemoryAerospikeClient(faults));
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) {
+		String name = method.getName();
+		if (name.equals("hashCode")) {
+			return System.identityHashCode(proxy);
+		}
+		if (name.equals("equals")) {
+			return proxy == args[0];
+		}
+		if (name.equals("toString")) {
+			return getClass().getSimpleName();
+		}
+		if (name.equals("isConnected")) {
+			return true;
+		}
+		if (name.equals("close")) {
+			return null;
+		}
+		injectFaults();
+		return dispatch(name, args);
+	}
+
+	private Object dispatch(String name, Object[] args) {
+		long now = System.currentTimeMillis();
+		if (name.equals("get") && args[1] instanceof Key[]) {
+			Key[] keys = (Key[]) args[1];
+			String[] binNames = (args.length > 2) ? (String[]) args[2] : null;
+			Record[] result = new Record[keys.length];
+			for (int i = 0; i < keys.length; i++) {
+				result[i] = read(keys[i], binNames, now);
+			}
+			return result;
+		}
+		if (name.equals("get")) {
+			return read((Key) args[1], (args.length > 2) ? (String[]) args[2] : null, now);
+		}
+		if (name.equals("getHeader")) {
+			Stored stored = current((Key) args[1], now);
+			return (stored != null) ? new Record(null, stored.generation, stored.ttl(now)) : null;
+		}
+		if (name.equals("exists")) {
+			return current((Key) args[1], now) != null;
+		}
+		if (name.equals("put")) {
+			put((WritePolicy) args[0], (Key) args[1], (Bin[]) args[2], now);
+			return null;
+		}
+		if (name.equals("operate")) {
+			return operate((WritePolicy) args[0], (Key) args[1], (Operation[]) args[2], now);
+		}
+		if (name.equals("touch")) {
+			if (current((Key) args[1], now) == null) {
+				throw new AerospikeException(ResultCode.KEY_NOT_FOUND_ERROR);
+			}
+			operate((WritePolicy) args[0], (Key) args[1], new Operation[] { Operation.touch() }, now);
+			return null;
+		}
+		if (name.equals("delete")) {
+			return delete((WritePolicy) args[0], (Key) args[1], now);
+		}
+		if (name.equals("scanAll")) {
+			scan((String) args[1], (String) args[2], (ScanCallback) args[3], (String[]) args[4], now);
+			return null;
+		}
+		throw new UnsupportedOperationException(name);
+	}
+
+	private void injectFaults() {
+		long latency = this.faults.latencyInMicros;
+		if (this.faults.jitterInMicros > 0) {
+			latency += ThreadLocalRandom.current().nextLong(this.faults.jitterInMicros);
+		}
+		if (latency > 0) {
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(latency));
+		}
+		if (this.faults.timeoutRate > 0 && ThreadLocalRandom.current().nextDouble() < this.faults.timeoutRate) {
+			throw new AerospikeException(ResultCode.TIMEOUT);
+		}
+	}
+
+	private Object lock(Key key) {
+		return this.locks[(key.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+	}
+
+	/**
+	 * Returns the stored record, dropping it if its TTL has passed.
+	 */
+	private Stored current(Key key, long now) {
+		Stored stored = this.records.get(key);
+		if (stored != null && stored.expireAt <= now) {
+			this.records.remove(key, stored);
+			return null;
+		}
+		return stored;
+	}
+
+	private Record read(Key key, String[] binNames, long now) {
+		Stored stored = current(key, now);
+		return (stored != null) ? stored.toRecord(binNames, now) : null;
+	}
+
+	private void put(WritePolicy policy, Key key, Bin[] bins, long now) {
+		synchronized (lock(key)) {
+			Stored existing = check(policy, key, now);
+			Map<String, Object> values = (existing != null && (policy.recordExistsAction == RecordExistsAction.UPDATE
+					|| policy.recordExistsAction == RecordExistsAction.UPDATE_ONLY))
+					? new HashMap<String, Object>(existing.bins) : new HashMap<String, Object>();
+			for (Bin bin : bins) {
+				Object value = bin.value.getObject();
+				if (value == null) {
+					values.remove(bin.name);
+				}
+				else {
+					values.put(bin.name, normalize(value));
+				}
+			}
+			store(policy, key, values, existing, now);
+		}
+	}
+
+	private Record operate(WritePolicy policy, Key key, Operation[] operations, long now) {
+		synchronized (lock(key)) {
+			Stored existing = check(policy, key, now);
+			Map<String, Object> values = (existing != null)
+					? new HashMap<String, Object>(existing.bins) : new HashMap<String, Object>();
+			Map<String, Object> result = new HashMap<String, Object>();
+			boolean write = false;
+			for (Operation operation : operations) {
+				switch (operation.type) {
+				case WRITE:
+					values.put(operation.binName, normalize(operation.value.getObject()));
+					write = true;
+					break;
+				case READ:
+					if (operation.binName == null) {
+						result.putAll(values);
+					}
+					else {
+						result.put(operation.binName, values.get(operation.binName));
+					}
+					break;
+				case READ_HEADER:
+					break;
+				case TOUCH:
+					write = true;
+					break;
+				case MAP_MODIFY:
+					applyMapOperation(values, operation);
+					write = true;
+					break;
+				default:
+					throw new UnsupportedOperationException(operation.type.toString());
+				}
+			}
+			if (!write) {
+				return (existing != null) ? new Record(result, existing.generation, 0) : null;
+			}
+			Stored stored = store(policy, key, values, existing, now);
+			return new Record(result, stored.generation, stored.ttl(now));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void applyMapOperation(Map<String, Object> values, Operation operation) {
+		byte[] packed = (byte[]) operation.value.getObject();
+		int command = ((packed[0] & 0xff) << 8) | (packed[1] & 0xff);
+		List<Object> args = (List<Object>) Unpacker.unpackObjectList(packed, 2, packed.length - 2);
+		Map<Object, Object> current = (Map<Object, Object>) values.get(operation.binName);
+		Map<Object, Object> map = (current != null)
+				? new HashMap<Object, Object>(current) : new HashMap<Object, Object>();
+		switch (command) {
+		case MAP_PUT:
+			map.put(args.get(0), args.get(1));
+			break;
+		case MAP_PUT_ITEMS:
+			map.putAll((Map<Object, Object>) args.get(0));
+			break;
+		case MAP_REMOVE_BY_KEY:
+			map.remove(args.get(1));
+			break;
+		case MAP_REMOVE_BY_KEY_LIST:
+			for (Object mapKey : (List<Object>) args.get(1)) {
+				map.remove(mapKey);
+			}
+			break;
+		default:
+			throw new UnsupportedOperationException("map operation " + command);
+		}
+		values.put(operation.binName, map);
+	}
+
+	private boolean delete(WritePolicy policy, Key key, long now) {
+		synchronized (lock(key)) {
+			Stored existing = current(key, now);
+			checkGeneration(policy, existing);
+			return existing != null && this.records.remove(key, existing);
+		}
+	}
+
+	private void scan(String namespace, String setName, ScanCallback callback, String[] binNames, long now) {
+		for (Map.Entry<Key, Stored> entry : this.records.entrySet()) {
+			Key key = entry.getKey();
+			if (key.namespace.equals(namespace) && (setName == null || setName.equals(key.setName))
+					&& entry.getValue().expireAt > now) {
+				callback.scanCallback(key, entry.getValue().toRecord(binNames, now));
+			}
+		}
+	}
+
+	/**
+	 * Applies the record exists action and generation check of a write.
+	 *
+	 * @return the record the write applies to, or {@code null}
+	 */
+	private Stored check(WritePolicy policy, Key key, long now) {
+		Stored existing = current(key, now);
+		RecordExistsAction action = policy.recordExistsAction;
+		if (existing == null && (action == RecordExistsAction.UPDATE_ONLY
+				|| action == RecordExistsAction.REPLACE_ONLY)) {
+			throw new AerospikeException(ResultCode.KEY_NOT_FOUND_ERROR);
+		}
+		if (existing != null && action == RecordExistsAction.CREATE_ONLY) {
+			throw new AerospikeException(ResultCode.KEY_EXISTS_ERROR);
+		}
+		checkGeneration(policy, existing);
+		return existing;
+	}
+
+	private static void checkGeneration(WritePolicy policy, Stored existing) {
+		if (policy.generationPolicy == GenerationPolicy.NONE) {
+			return;
+		}
+		if (existing == null) {
+			throw new AerospikeException(ResultCode.KEY_NOT_FOUND_ERROR);
+		}
+		if (policy.generationPolicy == GenerationPolicy.EXPECT_GEN_EQUAL
+				? existing.generation != policy.generation : existing.generation <= policy.generation) {
+			throw new AerospikeException(ResultCode.GENERATION_ERROR);
+		}
+	}
+
+	private Stored store(WritePolicy policy, Key key, Map<String, Object> values, Stored existing, long now) {
+		long expireAt = (policy.expiration > 0)
+				? now + TimeUnit.SECONDS.toMillis(policy.expiration) : Long.MAX_VALUE;
+		Stored stored = new Stored(values, (existing != null) ? existing.generation + 1 : 1, expireAt);
+		this.records.put(key, stored);
+		return stored;
+	}
+
+	/**
+	 * Returns integers as longs, the way the server returns them.
+	 */
+	private static Object normalize(Object value) {
+		if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			return ((Number) value).longValue();
+		}
+		return value;
+	}
+
+	/**
+	 * Latency and failures injected into every call. Like the Aerospike client
+	 * policies the settings are public fields, read on every call.
+	 */
+	static final class Faults {
+
+		/**
+		 * Fixed latency in microseconds added to every call.
+		 */
+		public volatile long latencyInMicros;
+
+		/**
+		 * Upper bound in microseconds of a random latency added on top.
+		 */
+		public volatile long jitterInMicros;
+
+		/**
+		 * Share of calls, between 0 and 1, failing with a timeout.
+		 */
+		public volatile double timeoutRate;
+	}
+
+	/**
+	 * An immutable version of a record.
+	 */
+	private static final class Stored {
+		final Map<String, Object> bins;
+		final int generation;
+		final long expireAt;
+
+		Stored(Map<String, Object> bins, int generation, long expireAt) {
+			this.bins = bins;
+			this.generation = generation;
+			this.expireAt = expireAt;
+		}
+
+		int ttl(long now) {
+			return (this.expireAt == Long.MAX_VALUE) ? -1
+					: (int) TimeUnit.MILLISECONDS.toSeconds(this.expireAt - now);
+		}
+
+		Record toRecord(String[] binNames, long now) {
+			Map<String, Object> bins = this.bins;
+			if (binNames != null && binNames.length > 0) {
+				bins = new HashMap<String, Object>(binNames.length);
+				for (String binName : binNames) {
+					if (this.bins.containsKey(binName)) {
+						bins.put(binName, this.bins.get(binName));
+					}
+				}
+			}
+			return new Record(bins, this.generation, ttl(now));
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Lock-free histogram of latencies in microseconds. Each power of two is split
+ * into 8 linear buckets, so a percentile is reported at most 12.5% above the
+ * recorded value, at a fixed size of 512 counters.
+ *
+ * @author Jeff Boone
+ */
+final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(64 << SUB_BUCKET_BITS);
+
+	private final AtomicLong max = new AtomicLong();
+
+	void record(long micros) {
+		this.counts.incrementAndGet(index(Math.max(0, micros)));
+		long current = this.max.get();
+		while (micros > current && !this.max.compareAndSet(current, micros)) {
+			current = this.max.get();
+		}
+	}
+
+	static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return ((magnitude - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+	}
+
+	/**
+	 * Returns the highest value counted in the bucket.
+	 */
+	static long upperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int magnitude = (index >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+		int subBucket = index & (SUB_BUCKETS - 1);
+		return ((SUB_BUCKETS + subBucket + 1L) << (magnitude - SUB_BUCKET_BITS)) - 1;
+	}
+
+	long count() {
+		long count = 0;
+		for (int i = 0; i < this.counts.length(); i++) {
+			count += this.counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the latency below which the given fraction of the recorded latencies
+	 * fall.
+	 */
+	long percentile(double fraction) {
+		long target = (long) Math.ceil(fraction * count());
+		long seen = 0;
+		for (int i = 0; i < this.counts.length(); i++) {
+			seen += this.counts.get(i);
+			if (seen >= target && seen > 0) {
+				return Math.min(upperBound(i), this.max.get());
+			}
+		}
+		return 0;
+	}
+
+	long max() {
+		return this.max.get();
+	}
+
+	/**
+	 * Prints the counts per power of two.
+	 */
+	void print(PrintStream out) {
+		long total = count();
+		if (total == 0) {
+			return;
+		}
+		long from = 0;
+		long count = 0;
+		for (int i = 0; i < this.counts.length(); i++) {
+			count += this.counts.get(i);
+			if ((i + 1) % SUB_BUCKETS == 0) {
+				if (count > 0) {
+					out.printf("  %10d - %10d us %10d %6.2f%%%n", from, upperBound(i), count, 100.0 * count / total);
+				}
+				from = upperBound(i) + 1;
+				count = 0;
+			}
+		}
+	}
+}
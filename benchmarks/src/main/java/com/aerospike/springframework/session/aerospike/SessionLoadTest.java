@@ -0,0 +1,472 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.session.ExpiringSession;
+import org.springframework.session.FindByIndexNameSessionRepository;
+import org.springframework.session.web.http.SessionRepositoryFilter;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.springframework.session.aerospike.AerospikeOperationsSessionRepository.PrincipalIndexMode;
+
+
+/**
+ * Load test sending concurrent requests through a {@link SessionRepositoryFilter}
+ * backed by an {@link AerospikeOperationsSessionRepository} and an
+ * {@link InMemoryAerospikeClient} with injected latency and timeouts, to
+ * reproduce contention and tail latency without a cluster.
+ * <p>
+ * The scenarios are login bursts creating new sessions, parallel requests
+ * carrying the same few sessions, and requests spread over many sessions that
+ * go idle long enough to expire. Parallel requests increment a counter of their
+ * own thread and a counter shared by all threads in the session; counts missing
+ * from the sessions at the end are reported as lost updates. Run with
+ * <pre>
+ * java -cp target/benchmarks.jar com.aerospike.springframework.session.aerospike.SessionLoadTest \
+ *     scenario=mixed threads=64 durationSeconds=30 latencyMicros=200 jitterMicros=800 singleFlight=true
+ * </pre>
+ * See {@link Options} for all settings.
+ *
+ * @author Jeff Boone
+ */
+public class SessionLoadTest {
+
+	enum Scenario {
+
+		/**
+		 * Requests without a session that log a user in.
+		 */
+		LOGIN,
+
+		/**
+		 * Requests of all threads carrying the same few sessions and changing them.
+		 */
+		PARALLEL,
+
+		/**
+		 * Requests reading one of many sessions with a short timeout, so that a
+		 * share of them finds the session expired.
+		 */
+		IDLE,
+
+		/**
+		 * 10% login, 60% parallel and 30% idle requests.
+		 */
+		MIXED
+	}
+
+	private static final String SHARED_COUNTER = "hits";
+
+	private final Options options;
+
+	private final InMemoryAerospikeClient.Faults faults = new InMemoryAerospikeClient.Faults();
+
+	private final AerospikeOperationsSessionRepository repository;
+
+	private final SessionRepositoryFilter<ExpiringSession> filter;
+
+	private final Map<Scenario, LatencyHistogram> latencies = new HashMap<Scenario, LatencyHistogram>();
+
+	private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+
+	private final AtomicReferenceArray<String> sharedSessions;
+
+	private final AtomicReferenceArray<String> idleSessions;
+
+	/** successful increments of the shared counter, by session id */
+	private final ConcurrentMap<String, AtomicLong> sharedIncrements = new ConcurrentHashMap<String, AtomicLong>();
+
+	/** successful increments of the counter of each thread, by session id */
+	private final ConcurrentMap<String, long[]> ownIncrements = new ConcurrentHashMap<String, long[]>();
+
+	private final AtomicLong lostSessions = new AtomicLong();
+
+	private final AtomicLong expiredSessions = new AtomicLong();
+
+	private final byte[] profile;
+
+	SessionLoadTest(Options options) {
+		this.options = options;
+		this.faults.latencyInMicros = options.latencyMicros;
+		this.faults.jitterInMicros = options.jitterMicros;
+		this.faults.timeoutRate = options.timeoutRate;
+		this.repository = new AerospikeOperationsSessionRepository(InMemoryAerospikeClient.create(this.faults));
+		this.repository.setPrincipalIndexMode(PrincipalIndexMode.PRINCIPAL_RECORD);
+		this.repository.setSingleFlight(options.singleFlight);
+		this.repository.setGenerationCheck(options.generationCheck);
+		this.repository.setTouchThresholdRatio(options.touchThresholdRatio);
+		if (options.nearCacheMaxSize > 0) {
+			this.repository.setNearCache(new SessionNearCache(options.nearCacheMaxSize));
+		}
+		this.filter = new SessionRepositoryFilter<ExpiringSession>(this.repository);
+		for (Scenario scenario : Scenario.values()) {
+			this.latencies.put(scenario, new LatencyHistogram());
+		}
+		this.sharedSessions = new AtomicReferenceArray<String>(options.sharedSessions);
+		this.idleSessions = new AtomicReferenceArray<String>(options.sessions);
+		this.profile = new byte[options.attributeBytes];
+		ThreadLocalRandom.current().nextBytes(this.profile);
+	}
+
+	public static void main(String[] args) throws Exception {
+		new SessionLoadTest(Options.parse(args)).run(System.out);
+	}
+
+	void run(PrintStream out) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(this.options.durationSeconds);
+		final CountDownLatch done = new CountDownLatch(this.options.threads);
+		long start = System.nanoTime();
+		for (int i = 0; i < this.options.threads; i++) {
+			final int thread = i;
+			Thread worker = new Thread(new Runnable() {
+				public void run() {
+					try {
+						while (System.nanoTime() < deadline) {
+							request(thread);
+						}
+					}
+					finally {
+						done.countDown();
+					}
+				}
+			}, "load-" + i);
+			worker.setDaemon(true);
+			worker.start();
+		}
+		done.await();
+		long elapsed = System.nanoTime() - start;
+		this.repository.shutdown();
+		report(out, elapsed);
+	}
+
+	private void request(int thread) {
+		Scenario scenario = this.options.scenario;
+		if (scenario == Scenario.MIXED) {
+			int dice = ThreadLocalRandom.current().nextInt(10);
+			scenario = (dice == 0) ? Scenario.LOGIN : (dice < 7) ? Scenario.PARALLEL : Scenario.IDLE;
+		}
+		long start = System.nanoTime();
+		try {
+			switch (scenario) {
+			case LOGIN:
+				login();
+				break;
+			case PARALLEL:
+				changeSharedSession(thread);
+				break;
+			default:
+				readIdleSession();
+			}
+		}
+		catch (Exception e) {
+			countError(e);
+		}
+		this.latencies.get(scenario).record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+	}
+
+	private void login() throws Exception {
+		send(null, new RequestHandler() {
+			public void handle(HttpSession session) {
+				session.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME,
+						"user-" + ThreadLocalRandom.current().nextInt(100000));
+				session.setAttribute("profile", SessionLoadTest.this.profile);
+			}
+		});
+	}
+
+	private void changeSharedSession(final int thread) throws Exception {
+		int slot = ThreadLocalRandom.current().nextInt(this.sharedSessions.length());
+		String id = this.sharedSessions.get(slot);
+		String written = send(id, new RequestHandler() {
+			public void handle(HttpSession session) {
+				increment(session, SHARED_COUNTER);
+				increment(session, "counter-" + thread);
+			}
+		});
+		if (!written.equals(id)) {
+			if (id != null) {
+				this.lostSessions.incrementAndGet();
+			}
+			this.sharedSessions.compareAndSet(slot, id, written);
+		}
+		AtomicLong shared = this.sharedIncrements.get(written);
+		if (shared == null) {
+			this.sharedIncrements.putIfAbsent(written, new AtomicLong());
+			shared = this.sharedIncrements.get(written);
+		}
+		shared.incrementAndGet();
+		long[] own = this.ownIncrements.get(written);
+		if (own == null) {
+			this.ownIncrements.putIfAbsent(written, new long[this.options.threads]);
+			own = this.ownIncrements.get(written);
+		}
+		// only this thread writes its own slot
+		own[thread]++;
+	}
+
+	private static void increment(HttpSession session, String name) {
+		Long count = (Long) session.getAttribute(name);
+		session.setAttribute(name, (count != null) ? count + 1 : 1L);
+	}
+
+	private void readIdleSession() throws Exception {
+		int slot = ThreadLocalRandom.current().nextInt(this.idleSessions.length());
+		String id = this.idleSessions.get(slot);
+		String written = send(id, new RequestHandler() {
+			public void handle(HttpSession session) {
+				if (session.isNew()) {
+					session.setMaxInactiveInterval(SessionLoadTest.this.options.idleTimeoutSeconds);
+					session.setAttribute("profile", SessionLoadTest.this.profile);
+				}
+				else {
+					session.getAttribute("profile");
+				}
+			}
+		});
+		if (!written.equals(id)) {
+			if (id != null) {
+				this.expiredSessions.incrementAndGet();
+			}
+			this.idleSessions.compareAndSet(slot, id, written);
+		}
+	}
+
+	/**
+	 * Sends a request through the filter, carrying the session cookie if an id is
+	 * given.
+	 *
+	 * @return the id of the session the request used
+	 */
+	private String send(String id, final RequestHandler handler) throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/");
+		if (id != null) {
+			request.setCookies(new Cookie("SESSION", id));
+		}
+		final String[] used = new String[1];
+		this.filter.doFilter(request, new MockHttpServletResponse(), new FilterChain() {
+			public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse) {
+				HttpSession session = ((HttpServletRequest) servletRequest).getSession();
+				handler.handle(session);
+				used[0] = session.getId();
+			}
+		});
+		return used[0];
+	}
+
+	private void countError(Exception e) {
+		String type = (e instanceof AerospikeException)
+				? "result code " + ((AerospikeException) e).getResultCode() : e.getClass().getSimpleName();
+		AtomicLong count = this.errors.get(type);
+		if (count == null) {
+			this.errors.putIfAbsent(type, new AtomicLong());
+			count = this.errors.get(type);
+		}
+		count.incrementAndGet();
+	}
+
+	private void report(PrintStream out, long elapsedNanos) {
+		double seconds = elapsedNanos / 1e9;
+		out.printf("%s, %d threads, %.1f s, latency %d us + up to %d us, timeout rate %.4f%n",
+				this.options.scenario, this.options.threads, seconds, this.options.latencyMicros,
+				this.options.jitterMicros, this.options.timeoutRate);
+		out.printf("%-9s %10s %10s %8s %8s %8s %8s %8s%n",
+				"scenario", "requests", "req/s", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us");
+		for (Scenario scenario : Scenario.values()) {
+			LatencyHistogram histogram = this.latencies.get(scenario);
+			long count = histogram.count();
+			if (count == 0) {
+				continue;
+			}
+			out.printf("%-9s %10d %10.0f %8d %8d %8d %8d %8d%n", scenario.name().toLowerCase(Locale.ROOT),
+					count, count / seconds, histogram.percentile(0.5), histogram.percentile(0.9),
+					histogram.percentile(0.99), histogram.percentile(0.999), histogram.max());
+		}
+		for (Scenario scenario : Scenario.values()) {
+			LatencyHistogram histogram = this.latencies.get(scenario);
+			if (histogram.count() > 0) {
+				out.println(scenario.name().toLowerCase(Locale.ROOT) + " latency:");
+				histogram.print(out);
+			}
+		}
+		for (Map.Entry<String, AtomicLong> error : this.errors.entrySet()) {
+			out.println("errors with " + error.getKey() + ": " + error.getValue());
+		}
+		if (!this.sharedIncrements.isEmpty()) {
+			reportLostUpdates(out);
+		}
+		if (this.expiredSessions.get() > 0) {
+			out.println("idle sessions found expired: " + this.expiredSessions);
+		}
+	}
+
+	/**
+	 * Reads back the shared sessions, without injected faults, and compares their
+	 * counters with the successful increments.
+	 */
+	private void reportLostUpdates(PrintStream out) {
+		this.faults.latencyInMicros = 0;
+		this.faults.jitterInMicros = 0;
+		this.faults.timeoutRate = 0;
+		long shared = 0;
+		long sharedLost = 0;
+		long own = 0;
+		long ownLost = 0;
+		for (Map.Entry<String, AtomicLong> entry : this.sharedIncrements.entrySet()) {
+			ExpiringSession session = this.repository.getSession(entry.getKey());
+			shared += entry.getValue().get();
+			sharedLost += entry.getValue().get() - count(session, SHARED_COUNTER);
+			long[] increments = this.ownIncrements.get(entry.getKey());
+			for (int thread = 0; thread < increments.length; thread++) {
+				own += increments[thread];
+				ownLost += increments[thread] - count(session, "counter-" + thread);
+			}
+		}
+		out.printf("lost updates: %d of %d increments of own counters, %d of %d of shared counters%n",
+				ownLost, own, sharedLost, shared);
+		out.println("shared sessions lost: " + this.lostSessions);
+	}
+
+	private static long count(ExpiringSession session, String name) {
+		Long count = (session != null) ? session.<Long>getAttribute(name) : null;
+		return (count != null) ? count : 0;
+	}
+
+	private interface RequestHandler {
+
+		void handle(HttpSession session);
+	}
+
+	/**
+	 * Settings of a load test, given as {@code name=value} arguments.
+	 */
+	static final class Options {
+
+		/** the traffic to send */
+		Scenario scenario = Scenario.MIXED;
+
+		/** number of threads sending requests */
+		int threads = 32;
+
+		int durationSeconds = 30;
+
+		/** number of sessions shared by parallel requests */
+		int sharedSessions = 4;
+
+		/** number of sessions idle requests are spread over */
+		int sessions = 10000;
+
+		/** inactive interval of the sessions of idle requests */
+		int idleTimeoutSeconds = 10;
+
+		/** size of the attribute stored by logins and idle requests */
+		int attributeBytes = 512;
+
+		long latencyMicros = 200;
+
+		long jitterMicros = 800;
+
+		double timeoutRate = 0;
+
+		boolean singleFlight = false;
+
+		boolean generationCheck = false;
+
+		int nearCacheMaxSize = 0;
+
+		double touchThresholdRatio = 0;
+
+		static Options parse(String[] args) {
+			Options options = new Options();
+			for (String arg : args) {
+				int separator = arg.indexOf('=');
+				if (separator < 0) {
+					throw new IllegalArgumentException("Expected name=value but got " + arg);
+				}
+				options.set(arg.substring(0, separator), arg.substring(separator + 1));
+			}
+			return options;
+		}
+
+		private void set(String name, String value) {
+			if (name.equals("scenario")) {
+				this.scenario = Scenario.valueOf(value.toUpperCase(Locale.ROOT));
+			}
+			else if (name.equals("threads")) {
+				this.threads = Integer.parseInt(value);
+			}
+			else if (name.equals("durationSeconds")) {
+				this.durationSeconds = Integer.parseInt(value);
+			}
+			else if (name.equals("sharedSessions")) {
+				this.sharedSessions = Integer.parseInt(value);
+			}
+			else if (name.equals("sessions")) {
+				this.sessions = Integer.parseInt(value);
+			}
+			else if (name.equals("idleTimeoutSeconds")) {
+				this.idleTimeoutSeconds = Integer.parseInt(value);
+			}
+			else if (name.equals("attributeBytes")) {
+				this.attributeBytes = Integer.parseInt(value);
+			}
+			else if (name.equals("latencyMicros")) {
+				this.latencyMicros = Long.parseLong(value);
+			}
+			else if (name.equals("jitterMicros")) {
+				this.jitterMicros = Long.parseLong(value);
+			}
+			else if (name.equals("timeoutRate")) {
+				this.timeoutRate = Double.parseDouble(value);
+			}
+			else if (name.equals("singleFlight")) {
+				this.singleFlight = Boolean.parseBoolean(value);
+			}
+			else if (name.equals("generationCheck")) {
+				this.generationCheck = Boolean.parseBoolean(value);
+			}
+			else if (name.equals("nearCacheMaxSize")) {
+				this.nearCacheMaxSize = Integer.parseInt(value);
+			}
+			else if (name.equals("touchThresholdRatio")) {
+				this.touchThresholdRatio = Double.parseDouble(value);
+			}
+			else {
+				throw new IllegalArgumentException("Unknown option " + name);
+			}
+		}
+	}
+}
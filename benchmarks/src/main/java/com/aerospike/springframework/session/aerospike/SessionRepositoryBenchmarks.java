@@ -0,0 +1,205 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.session.ExpiringSession;
+import org.springframework.session.FindByIndexNameSessionRepository;
+import org.springframework.session.MapSession;
+
+import com.aerospike.springframework.session.aerospike.AerospikeOperationsSessionRepository.PrincipalIndexMode;
+
+
+/**
+ * Benchmarks for the hot paths of {@link AerospikeOperationsSessionRepository}
+ * against an {@link InMemoryAerospikeClient}, across session sizes. Run with
+ * {@code java -jar target/benchmarks.jar -prof gc} to also report the
+ * allocation rate.
+ *
+ * @author Jeff Boone
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionRepositoryBenchmarks {
+
+	private static final String PRINCIPAL = "benchmark-user";
+
+	private static final int SESSIONS_PER_PRINCIPAL = 5;
+
+	@Param({ "1", "10", "50" })
+	int attributeCount;
+
+	@Param({ "64", "1024", "16384" })
+	int payloadBytes;
+
+	private AerospikeOperationsSessionRepository repository;
+
+	private String[] attributeNames;
+
+	private String payload;
+
+	private String storedId;
+
+	private ExpiringSession storedSession;
+
+	private MapSession mapSession;
+
+	private MapSession securityContextSession;
+
+	@Setup
+	public void setUp() {
+		this.repository = new AerospikeOperationsSessionRepository(InMemoryAerospikeClient.create());
+		this.repository.setPrincipalIndexMode(PrincipalIndexMode.PRINCIPAL_RECORD);
+
+		char[] chars = new char[this.payloadBytes];
+		Arrays.fill(chars, 'x');
+		this.payload = new String(chars);
+		this.attributeNames = new String[this.attributeCount];
+		for (int i = 0; i < this.attributeCount; i++) {
+			this.attributeNames[i] = "attribute" + i;
+		}
+
+		for (int i = 0; i < SESSIONS_PER_PRINCIPAL; i++) {
+			ExpiringSession session = newSession();
+			session.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, PRINCIPAL);
+			this.repository.save(session);
+			this.storedId = session.getId();
+		}
+		this.storedSession = this.repository.getSession(this.storedId);
+
+		this.mapSession = new MapSession();
+		for (String attributeName : this.attributeNames) {
+			this.mapSession.setAttribute(attributeName, this.payload);
+		}
+		this.mapSession.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, PRINCIPAL);
+		this.securityContextSession = new MapSession();
+		this.securityContextSession.setAttribute("SPRING_SECURITY_CONTEXT",
+				new SecurityContext(new Authentication(PRINCIPAL)));
+	}
+
+	private ExpiringSession newSession() {
+		return fill(this.repository.createSession());
+	}
+
+	private ExpiringSession fill(ExpiringSession session) {
+		for (String attributeName : this.attributeNames) {
+			session.setAttribute(attributeName, this.payload);
+		}
+		return session;
+	}
+
+	@Benchmark
+	public ExpiringSession saveNewSession() {
+		// a fixed id keeps the in-memory store from growing
+		ExpiringSession session = fill(new AerospikeExpiringSession("new-session-id",
+				AerospikeOperationsSessionRepository.DEFAULT_INACTIVE_INTERVAL));
+		this.repository.save(session);
+		return session;
+	}
+
+	@Benchmark
+	public ExpiringSession saveChangedAttribute() {
+		this.storedSession.setAttribute(this.attributeNames[0], this.payload);
+		this.repository.save(this.storedSession);
+		return this.storedSession;
+	}
+
+	@Benchmark
+	public ExpiringSession saveUnchangedSession() {
+		this.storedSession.setLastAccessedTime(System.currentTimeMillis());
+		this.repository.save(this.storedSession);
+		return this.storedSession;
+	}
+
+	@Benchmark
+	public ExpiringSession getSession() {
+		return this.repository.getSession(this.storedId);
+	}
+
+	@Benchmark
+	public void deleteMissingSession() {
+		this.repository.delete("missing-session-id");
+	}
+
+	@Benchmark
+	public Map<String, ExpiringSession> findByPrincipalName() {
+		return this.repository.findByIndexNameAndIndexValue(
+				FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, PRINCIPAL);
+	}
+
+	@Benchmark
+	public AerospikeExpiringSession copyConstructor() {
+		return new AerospikeExpiringSession(this.mapSession);
+	}
+
+	@Benchmark
+	public String resolvePrincipalFromIndexName() {
+		return AerospikeOperationsSessionRepository.PRINCIPAL_NAME_RESOLVER.resolvePrincipal(this.mapSession);
+	}
+
+	@Benchmark
+	public String resolvePrincipalFromSecurityContext() {
+		return AerospikeOperationsSessionRepository.PRINCIPAL_NAME_RESOLVER
+				.resolvePrincipal(this.securityContextSession);
+	}
+
+	/**
+	 * Shape of a Spring Security context as seen by the principal name expression.
+	 */
+	public static class SecurityContext {
+
+		private final Authentication authentication;
+
+		public SecurityContext(Authentication authentication) {
+			this.authentication = authentication;
+		}
+
+		public Authentication getAuthentication() {
+			return this.authentication;
+		}
+	}
+
+	public static class Authentication {
+
+		private final String name;
+
+		public Authentication(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return this.name;
+		}
+	}
+}
@@ -0,0 +1,571 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.session.ExpiringSession;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Bin;
+import com.aerospike.client.IAerospikeClient;
+import com.aerospike.client.Key;
+import com.aerospike.client.Operation;
+import com.aerospike.client.Record;
+import com.aerospike.client.ResultCode;
+import com.aerospike.client.async.IAsyncClient;
+import com.aerospike.client.listener.DeleteListener;
+import com.aerospike.client.listener.RecordListener;
+import com.aerospike.client.listener.WriteListener;
+import com.aerospike.springframework.session.aerospike.SessionRepositoryMetrics.OperationType;
+
+
+/**
+ * {@link AerospikeOperationsSessionRepository} that additionally offers
+ * non-blocking variants of its operations built on the Aerospike asynchronous
+ * client. The returned futures are completed on the client's selector threads,
+ * or on the {@link #setExecutor(Executor) executor} when a blocking client call
+ * was needed, so callbacks registered on them should not block.
+ * <p>
+ * The blocking operations inherited from {@link AerospikeOperationsSessionRepository}
+ * keep working, so the same bean can back the {@code SessionRepositoryFilter}.
+ *
+ * @author Jeff Boone
+ * @since 2.0
+ */
+public class AerospikeAsyncSessionRepository extends AerospikeOperationsSessionRepository {
+
+	private static final int DEFAULT_EXECUTOR_THREADS = 4;
+
+	private final IAsyncClient asyncClient;
+
+	private ExecutorService defaultExecutor;
+
+	private Executor executor;
+
+	public AerospikeAsyncSessionRepository(IAsyncClient asyncClient) {
+		super(asyncClient);
+		this.asyncClient = asyncClient;
+		this.defaultExecutor = Executors.newFixedThreadPool(DEFAULT_EXECUTOR_THREADS, new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "aerospike-session-async");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.executor = this.defaultExecutor;
+	}
+
+	/**
+	 * Sets the executor running the blocking client calls that some non-blocking
+	 * operations still need, so that they never run on the selector threads of
+	 * the asynchronous client. Defaults to a pool of 4 daemon threads.
+	 *
+	 * @param executor the executor
+	 */
+	public void setExecutor(Executor executor) {
+		if (executor == null) {
+			throw new IllegalArgumentException("executor cannot be null");
+		}
+		if (this.defaultExecutor != null) {
+			this.defaultExecutor.shutdown();
+			this.defaultExecutor = null;
+		}
+		this.executor = executor;
+	}
+
+	@Override
+	public void shutdown() {
+		super.shutdown();
+		if (this.defaultExecutor != null) {
+			this.defaultExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * Reads a session without blocking. A session waiting in the
+	 * {@link #setWriteBehindPolicy(WriteBehindPolicy) write-behind} buffer is
+	 * returned as is. A session found in the cold namespace of
+	 * {@link #setTieredStoragePolicy(TieredStoragePolicy) tiered storage} is
+	 * moved back, and with a {@link #setFallbackClient(IAerospikeClient) fallback
+	 * cluster} the record is read through it; both use the blocking client on the
+	 * {@link #setExecutor(Executor) executor}.
+	 *
+	 * @param id the session id
+	 * @return a future completed with the session, or {@code null} if there is none
+	 */
+	public ListenableFuture<ExpiringSession> getSessionAsync(final String id) {
+		long start = startTiming();
+		final SettableListenableFuture<ExpiringSession> future = new SettableListenableFuture<ExpiringSession>();
+		try {
+			AerospikeExpiringSession pending = (getWriteBehindBuffer() != null)
+					? getWriteBehindBuffer().get(id) : null;
+			final SessionNearCache.Entry entry = (pending == null && this.nearCache != null)
+					? this.nearCache.get(id) : null;
+			if (pending != null) {
+				found(id, pending, future);
+			}
+			else if (entry == null) {
+				if (this.nearCache != null) {
+					recordNearCacheLookup(false);
+				}
+				read(id, future);
+			}
+			else if (this.nearCache.isTrusted(entry)) {
+				recordNearCacheLookup(true);
+				found(id, entry.getSession(), future);
+			}
+			else {
+				this.asyncClient.getHeader(this.readPolicy, new RecordListener() {
+
+					public void onSuccess(Key key, Record header) {
+						if (header == null && getTieredStorage() == null && getFallbackReader() == null) {
+							AerospikeAsyncSessionRepository.this.nearCache.remove(id);
+							recordNearCacheLookup(false);
+							future.set(null);
+						}
+						else if (header != null && header.generation == entry.generation) {
+							entry.validated();
+							recordNearCacheLookup(true);
+							found(id, entry.getSession(), future);
+						}
+						else {
+							recordNearCacheLookup(false);
+							read(id, future);
+						}
+					}
+
+					public void onFailure(AerospikeException e) {
+						if (getFallbackReader() == null) {
+							future.setException(e);
+							return;
+						}
+						recordNearCacheLookup(false);
+						read(id, future);
+					}
+				}, getKey(id));
+			}
+		}
+		catch (RuntimeException e) {
+			future.setException(e);
+		}
+		return timed(OperationType.GET, start, future);
+	}
+
+	private void read(final String id, final SettableListenableFuture<ExpiringSession> future) {
+		if (getFallbackReader() != null) {
+			execute(future, new Runnable() {
+				public void run() {
+					Key key = getKey(id);
+					Record record = getFallbackReader().get(AerospikeAsyncSessionRepository.this.readPolicy, key);
+					if (record == null && getTieredStorage() != null) {
+						record = getTieredStorage().promote(key);
+					}
+					loaded(id, record, future);
+				}
+			});
+			return;
+		}
+		this.asyncClient.get(this.readPolicy, new RecordListener() {
+
+			public void onSuccess(final Key key, Record record) {
+				if (record != null || getTieredStorage() == null) {
+					try {
+						loaded(id, record, future);
+					}
+					catch (RuntimeException e) {
+						future.setException(e);
+					}
+					return;
+				}
+				execute(future, new Runnable() {
+					public void run() {
+						loaded(id, getTieredStorage().promote(key), future);
+					}
+				});
+			}
+
+			public void onFailure(AerospikeException e) {
+				future.setException(e);
+			}
+		}, getKey(id));
+	}
+
+	/**
+	 * Caches the session read from the record and completes the future with it.
+	 */
+	private void loaded(String id, Record record, SettableListenableFuture<ExpiringSession> future) {
+		if (record == null || isLegacyRecord(record)) {
+			if (this.nearCache != null) {
+				this.nearCache.remove(id);
+			}
+			future.set(null);
+			return;
+		}
+		AerospikeExpiringSession session = toSession(id, record);
+		if (this.nearCache != null) {
+			this.nearCache.put(session, record.generation);
+		}
+		found(id, session, future);
+	}
+
+	/**
+	 * Completes the future with the session, or with {@code null} after deleting
+	 * it in the background if it has expired.
+	 */
+	private void found(String id, AerospikeExpiringSession session,
+			SettableListenableFuture<ExpiringSession> future) {
+		if (isExpiredOnRead(session)) {
+			delete(id, true);
+			future.set(null);
+		}
+		else {
+			future.set(session);
+		}
+	}
+
+	/**
+	 * Saves a session without blocking, writing only its tracked changes when
+	 * possible. The save of a session deleted or expired since it was read is
+	 * dropped.
+	 *
+	 * @param session the session
+	 * @return a future completed once the session has been written
+	 */
+	public ListenableFuture<Void> saveAsync(ExpiringSession session) {
+		long start = startTiming();
+		AerospikeExpiringSession aSession;
+		try {
+			aSession = toAerospikeSession(session);
+			profileSize(aSession);
+		}
+		catch (RuntimeException e) {
+			SettableListenableFuture<Void> future = new SettableListenableFuture<Void>();
+			future.setException(e);
+			return timed(OperationType.SAVE, start, future);
+		}
+		return timed(OperationType.SAVE, start, writeAsync(aSession));
+	}
+
+	/**
+	 * Writes the session without blocking and without measuring it as a save.
+	 */
+	ListenableFuture<Void> writeAsync(ExpiringSession session) {
+		final SettableListenableFuture<Void> future = new SettableListenableFuture<Void>();
+		try {
+			final AerospikeExpiringSession aSession = toAerospikeSession(session);
+			final ChunkStore.Changes chunks = this.chunkStore.begin(aSession);
+			if (aSession.isNew()) {
+				put(aSession, chunks, future);
+				return future;
+			}
+			Operation[] operations = getUpdateOperations(aSession, chunks);
+			if (operations == null) {
+				future.set(null);
+				return future;
+			}
+			writeChunks(aSession, chunks);
+			update(aSession, operations, chunks, future, true);
+		}
+		catch (RuntimeException e) {
+			future.setException(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Applies the operations to the session record. A record that is not found
+	 * is promoted from the cold namespace and updated once more if it was
+	 * demoted, otherwise the session is gone and the save is dropped.
+	 */
+	private void update(final AerospikeExpiringSession session, final Operation[] operations,
+			final ChunkStore.Changes chunks, final SettableListenableFuture<Void> future,
+			final boolean promote) {
+		this.asyncClient.operate(getUpdatePolicy(session), new RecordListener() {
+
+			public void onSuccess(Key key, Record record) {
+				complete(session, (record != null) ? record.generation : UNKNOWN_GENERATION, chunks, future);
+			}
+
+			public void onFailure(AerospikeException e) {
+				if (e.getResultCode() != ResultCode.KEY_NOT_FOUND_ERROR) {
+					future.setException(e);
+					return;
+				}
+				execute(future, new Runnable() {
+					public void run() {
+						if (promote && promoteForUpdate(session.getId())) {
+							update(session, operations, chunks, future, false);
+						}
+						else {
+							dropSave(session.getId());
+							future.set(null);
+						}
+					}
+				});
+			}
+		}, getKey(session.getId()), operations);
+	}
+
+	private void put(final AerospikeExpiringSession session, final ChunkStore.Changes chunks,
+			final SettableListenableFuture<Void> future) {
+		try {
+			Bin[] bins = getBins(session, chunks);
+			writeChunks(session, chunks);
+			this.asyncClient.put(withExpiration(this.replacePolicy, session), new WriteListener() {
+
+				public void onSuccess(Key key) {
+					complete(session, UNKNOWN_GENERATION, chunks, future);
+				}
+
+				public void onFailure(AerospikeException e) {
+					future.setException(e);
+				}
+			}, getKey(session.getId()), bins);
+		}
+		catch (RuntimeException e) {
+			future.setException(e);
+		}
+	}
+
+	/**
+	 * Updates the principal and expiry records indexing a written session, if
+	 * needed, before completing the future.
+	 */
+	private void complete(final AerospikeExpiringSession session, final int generation,
+			final ChunkStore.Changes chunks, final SettableListenableFuture<Void> future) {
+		try {
+			Map<Key, Operation> operations = getIndexOperations(session);
+			if (operations.isEmpty()) {
+				completed(session, generation, chunks, future);
+				return;
+			}
+			final AtomicInteger remaining = new AtomicInteger(operations.size());
+			RecordListener listener = new RecordListener() {
+
+				public void onSuccess(Key key, Record record) {
+					if (remaining.decrementAndGet() == 0) {
+						completed(session, generation, chunks, future);
+					}
+				}
+
+				public void onFailure(AerospikeException e) {
+					future.setException(e);
+				}
+			};
+			for (Map.Entry<Key, Operation> entry : operations.entrySet()) {
+				this.asyncClient.operate(getIndexPolicy(entry.getKey()), listener, entry.getKey(),
+						entry.getValue());
+			}
+		}
+		catch (RuntimeException e) {
+			future.setException(e);
+		}
+	}
+
+	/**
+	 * Marks the session saved and completes the future, first deleting the chunks
+	 * the save replaced on the executor if there are any.
+	 */
+	private void completed(final AerospikeExpiringSession session, final int generation,
+			final ChunkStore.Changes chunks, final SettableListenableFuture<Void> future) {
+		if (chunks == null || session.getStaleChunks().isEmpty()) {
+			chunksSaved(session, chunks);
+			saved(session, generation);
+			future.set(null);
+			return;
+		}
+		execute(future, new Runnable() {
+			public void run() {
+				chunksSaved(session, chunks);
+				saved(session, generation);
+				future.set(null);
+			}
+		});
+	}
+
+	/**
+	 * Deletes a session without blocking, with the same cleanup as
+	 * {@link #delete(String)}: the principal, chunk and expiry records of the
+	 * session are removed and a {@code SessionDeletedEvent} is published. The
+	 * session record is read and deleted with the asynchronous client, the
+	 * cleanup runs on the {@link #setExecutor(Executor) executor}.
+	 *
+	 * @param id the session id
+	 * @return a future completed with whether a session was deleted, once the
+	 * cleanup is done
+	 */
+	public ListenableFuture<Boolean> deleteAsync(String id) {
+		long start = startTiming();
+		return timed(OperationType.DELETE, start, delete(id, false));
+	}
+
+	private ListenableFuture<Boolean> delete(final String id, final boolean expired) {
+		final SettableListenableFuture<Boolean> future = new SettableListenableFuture<Boolean>();
+		try {
+			final String[] bins = beginDelete(id);
+			if (bins.length == 0) {
+				deleteRecord(id, bins, null, expired, future);
+				return future;
+			}
+			this.asyncClient.get(this.readPolicy, new RecordListener() {
+
+				public void onSuccess(Key key, Record record) {
+					deleteRecord(id, bins, record, expired, future);
+				}
+
+				public void onFailure(AerospikeException e) {
+					future.setException(e);
+				}
+			}, getKey(id), bins);
+		}
+		catch (RuntimeException e) {
+			future.setException(e);
+		}
+		return future;
+	}
+
+	private void deleteRecord(final String id, final String[] bins, final Record record,
+			final boolean expired, final SettableListenableFuture<Boolean> future) {
+		try {
+			this.asyncClient.delete(this.deletePolicy, new DeleteListener() {
+
+				public void onSuccess(Key key, final boolean existed) {
+					execute(future, new Runnable() {
+						public void run() {
+							boolean deleted = finishDelete(id, bins, record, existed);
+							if (deleted) {
+								publishDeleted(id, expired);
+							}
+							future.set(deleted);
+						}
+					});
+				}
+
+				public void onFailure(AerospikeException e) {
+					future.setException(e);
+				}
+			}, getKey(id));
+		}
+		catch (RuntimeException e) {
+			future.setException(e);
+		}
+	}
+
+	/**
+	 * Deletes the session records in parallel, issuing all deletes before waiting
+	 * for any of them.
+	 */
+	@Override
+	int deleteRecords(List<Key> keys) {
+		final SettableListenableFuture<Integer> future = new SettableListenableFuture<Integer>();
+		final AtomicInteger remaining = new AtomicInteger(keys.size());
+		final AtomicInteger deleted = new AtomicInteger();
+		DeleteListener listener = new DeleteListener() {
+
+			public void onSuccess(Key key, boolean existed) {
+				if (existed) {
+					deleted.incrementAndGet();
+				}
+				if (remaining.decrementAndGet() == 0) {
+					future.set(deleted.get());
+				}
+			}
+
+			public void onFailure(AerospikeException e) {
+				future.setException(e);
+			}
+		};
+		for (Key key : keys) {
+			this.asyncClient.delete(this.deletePolicy, listener, key);
+		}
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+		finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Runs a task that uses the blocking client on the executor, failing the
+	 * future if the task throws or is rejected.
+	 */
+	private void execute(final SettableListenableFuture<?> future, final Runnable task) {
+		try {
+			this.executor.execute(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+					}
+					catch (RuntimeException e) {
+						future.setException(e);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			future.setException(e);
+		}
+	}
+
+	/**
+	 * Records the operation in the metrics once the future completes.
+	 */
+	private <T> ListenableFuture<T> timed(final OperationType type, final long start,
+			ListenableFuture<T> future) {
+		if (this.metrics != null) {
+			future.addCallback(new ListenableFutureCallback<T>() {
+
+				public void onSuccess(T result) {
+					recordSuccess(type, start);
+				}
+
+				public void onFailure(Throwable ex) {
+					recordFailure(type, start, ex);
+				}
+			});
+		}
+		return future;
+	}
+}
@@ -16,12 +16,13 @@
  */
 package com.aerospike.springframework.session.aerospike;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
 import org.springframework.session.ExpiringSession;
@@ -31,6 +32,18 @@ import com.aerospike.springframework.session.aerospike.AerospikeOperationsSessio
 
 /**
  * Session object providing additional information about the datetime of expiration.
+ * <p>
+ * The session keeps track of the attributes that were set or removed since it was
+ * loaded or last saved so that {@link AerospikeOperationsSessionRepository} only
+ * needs to write the changed attributes. Note that changes made to a mutable
+ * attribute value are only detected if the value is set again through
+ * {@link #setAttribute(String, Object)}.
+ * <p>
+ * Attributes of a session read from the database are kept in their encoded form
+ * and only decoded when first requested through {@link #getAttribute(String)}.
+ * Attributes that are not set again keep their original encoding, so they are
+ * never encoded again when the whole session has to be written. Attributes stored
+ * in separate chunk records are only read when first requested.
  *
  * @author Jeff Boone
  * @author Michael Zhang
@@ -40,25 +53,39 @@ public class AerospikeExpiringSession implements ExpiringSession {
 
 	static PrincipalNameResolver PRINCIPAL_NAME_RESOLVER = new PrincipalNameResolver();
 
+	static final SessionIdGenerator DEFAULT_ID_GENERATOR = new SecureRandomSessionIdGenerator();
+
 	private final String id;
 	private long created = System.currentTimeMillis();
 	private long accessed;
 	private int interval;
 	private String principal;
 	private Map<String, Object> attrs = new HashMap<String, Object>();
-	private Date expireAt;
+	private long expireAt;
+	private Map<String, Object> delta = new HashMap<String, Object>();
+	private boolean isNew = true;
+	private long savedAccessed;
+	private int savedInterval;
+	private Map<String, byte[]> encoded = Collections.emptyMap();
+	private SessionCodec codec;
+	private int generation;
+	private Map<String, String> chunks = Collections.emptyMap();
+	private Set<String> staleChunks = Collections.emptySet();
+	private ChunkStore chunkStore;
+	private long chunksExpireAt;
 
 	public AerospikeExpiringSession() {
 		this(AerospikeOperationsSessionRepository.DEFAULT_INACTIVE_INTERVAL);
 	}
 
 	public AerospikeExpiringSession(int maxInactiveIntervalInSeconds) {
-		this(UUID.randomUUID().toString(), maxInactiveIntervalInSeconds);
+		this(DEFAULT_ID_GENERATOR.generateId(), maxInactiveIntervalInSeconds);
 	}
 
 	public AerospikeExpiringSession(String id, int maxInactiveIntervalInSeconds) {
 		this.id = id;
 		this.interval = maxInactiveIntervalInSeconds;
+		this.savedInterval = maxInactiveIntervalInSeconds;
 		setLastAccessedTime(this.created);
 	}
 
@@ -73,9 +100,10 @@ public class AerospikeExpiringSession implements ExpiringSession {
 			Object attrValue = session.getAttribute(attrName);
 			this.attrs.put(attrName, attrValue);
 		}
-		this.accessed = session.getLastAccessedTime();
 		this.created = session.getCreationTime();
 		this.interval = session.getMaxInactiveIntervalInSeconds();
+		this.savedInterval = this.interval;
+		setLastAccessedTime(session.getLastAccessedTime());
 		this.setPrincipal(PRINCIPAL_NAME_RESOLVER.resolvePrincipal(session));
 	}
 
@@ -85,14 +113,32 @@ public class AerospikeExpiringSession implements ExpiringSession {
 
 	@SuppressWarnings("unchecked")
 	public <T> T getAttribute(String attributeName) {
-		return (T) this.attrs.get(attributeName);
+		Object value = this.attrs.get(attributeName);
+		if (value == null) {
+			byte[] bytes = this.encoded.get(attributeName);
+			if (bytes != null) {
+				value = this.codec.decode(bytes);
+				this.attrs.put(attributeName, value);
+			}
+			else {
+				String hash = this.chunks.get(attributeName);
+				if (hash != null) {
+					value = this.chunkStore.load(this.id, hash);
+					if (value != null) {
+						this.attrs.put(attributeName, value);
+					}
+				}
+			}
+		}
+		return (T) value;
 	}
 
 	public Set<String> getAttributeNames() {
-		HashSet<String> result = new HashSet<String>();
+		HashSet<String> result = new HashSet<String>(this.encoded.keySet());
 		for (String key : this.attrs.keySet()) {
 			result.add(key);
 		}
+		result.addAll(this.chunks.keySet());
 		return result;
 	}
 
@@ -102,11 +148,34 @@ public class AerospikeExpiringSession implements ExpiringSession {
 		}
 		else {
 			this.attrs.put(attributeName, attributeValue);
+			this.encoded.remove(attributeName);
+			removeChunk(attributeName);
+			this.delta.put(attributeName, attributeValue);
 		}
 	}
 
 	public void removeAttribute(String attributeName) {
 		this.attrs.remove(attributeName);
+		this.encoded.remove(attributeName);
+		removeChunk(attributeName);
+		this.delta.put(attributeName, null);
+	}
+
+	/**
+	 * Drops the chunk reference of an attribute that is set or removed, keeping
+	 * the chunk to be deleted once the change is saved.
+	 */
+	private void removeChunk(String attributeName) {
+		if (this.chunks.isEmpty()) {
+			return;
+		}
+		String hash = this.chunks.remove(attributeName);
+		if (hash != null) {
+			if (this.staleChunks.isEmpty()) {
+				this.staleChunks = new HashSet<String>();
+			}
+			this.staleChunks.add(hash);
+		}
 	}
 
 	public long getCreationTime() {
@@ -119,8 +188,7 @@ public class AerospikeExpiringSession implements ExpiringSession {
 
 	public void setLastAccessedTime(long lastAccessedTime) {
 		this.accessed = lastAccessedTime;
-		this.expireAt = new Date(
-				lastAccessedTime + TimeUnit.SECONDS.toMillis(this.interval));
+		this.expireAt = lastAccessedTime + TimeUnit.SECONDS.toMillis(this.interval);
 	}
 
 	public long getLastAccessedTime() {
@@ -129,6 +197,7 @@ public class AerospikeExpiringSession implements ExpiringSession {
 
 	public void setMaxInactiveIntervalInSeconds(int interval) {
 		this.interval = interval;
+		this.expireAt = this.accessed + TimeUnit.SECONDS.toMillis(interval);
 	}
 
 	public int getMaxInactiveIntervalInSeconds() {
@@ -136,15 +205,30 @@ public class AerospikeExpiringSession implements ExpiringSession {
 	}
 
 	public boolean isExpired() {
-		return this.interval >= 0 && new Date().after(this.expireAt);
+		return isExpired(System.currentTimeMillis());
+	}
+
+	boolean isExpired(long now) {
+		return this.interval >= 0 && now > this.expireAt;
+	}
+
+	/**
+	 * Returns the number of whole seconds, rounded up, until the session expires
+	 * when measured from {@code now}, or -1 if it never expires.
+	 */
+	int getSecondsToLive(long now) {
+		if (this.interval < 0) {
+			return -1;
+		}
+		return (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(this.expireAt - now + 999));
 	}
 
 	public Date getExpireAt() {
-		return this.expireAt;
+		return new Date(this.expireAt);
 	}
 
 	public void setExpireAt(Date expireAt) {
-		this.expireAt = expireAt;
+		this.expireAt = expireAt.getTime();
 	}
 
 	public String getPrincipal() {
@@ -155,6 +239,250 @@ public class AerospikeExpiringSession implements ExpiringSession {
 		this.principal = principal;
 	}
 
+	/**
+	 * Sets the attributes as read from the database, to be decoded with the codec
+	 * when first requested. The map is owned by the session afterwards.
+	 */
+	void setEncodedAttributes(Map<String, byte[]> encoded, SessionCodec codec) {
+		this.encoded = encoded;
+		this.codec = codec;
+	}
+
+	/**
+	 * Returns the attribute as it was read from the database, or {@code null} if
+	 * it has been set since or was never read.
+	 */
+	byte[] getEncodedAttribute(String attributeName) {
+		return this.encoded.get(attributeName);
+	}
+
+	/**
+	 * Sets the attributes stored as chunks, by name, as read from the database
+	 * together with the expiry time of those chunks. The map is owned by the
+	 * session afterwards.
+	 */
+	void setChunks(Map<String, String> chunks, long expireAt, ChunkStore chunkStore) {
+		this.chunks = chunks;
+		this.chunksExpireAt = expireAt;
+		this.chunkStore = chunkStore;
+	}
+
+	/**
+	 * Returns the hashes of the chunks of the attributes that have not been set or
+	 * removed since they were read or last saved, by attribute name.
+	 */
+	Map<String, String> getChunks() {
+		return this.chunks;
+	}
+
+	/**
+	 * Returns the hashes of the chunks that were replaced or removed since the
+	 * session was read or last saved.
+	 */
+	Collection<String> getStaleChunks() {
+		return this.staleChunks;
+	}
+
+	long getChunksExpireAt() {
+		return this.chunksExpireAt;
+	}
+
+	/**
+	 * Returns true if the session references chunks, or did until changes that are
+	 * not saved yet.
+	 */
+	boolean hasChunks() {
+		return !this.chunks.isEmpty() || !this.staleChunks.isEmpty();
+	}
+
+	/**
+	 * Records the chunks written by a save.
+	 *
+	 * @param added the hashes of the changed attributes stored as chunks
+	 * @param expireAt the new expiry time of the chunks, or 0 if it did not change
+	 */
+	void chunksSaved(Map<String, String> added, long expireAt) {
+		if (!added.isEmpty()) {
+			Map<String, String> chunks = new HashMap<String, String>(this.chunks);
+			chunks.putAll(added);
+			this.chunks = chunks;
+		}
+		if (expireAt != 0) {
+			this.chunksExpireAt = expireAt;
+		}
+		this.staleChunks = Collections.emptySet();
+	}
+
+	/**
+	 * Returns the generation of the record this session was read from or last
+	 * written to, or 0 if it is not known.
+	 */
+	int getGeneration() {
+		return this.generation;
+	}
+
+	void setGeneration(int generation) {
+		this.generation = generation;
+	}
+
+	/**
+	 * Replaces the stored state this session was read with by a newer one, keeping
+	 * the changes tracked since. Attributes changed by this session win over the
+	 * stored ones, all other attributes are taken from the stored session.
+	 */
+	void rebase(AerospikeExpiringSession stored) {
+		Map<String, Object> attrs = new HashMap<String, Object>(stored.attrs);
+		Map<String, byte[]> encoded = new HashMap<String, byte[]>(stored.encoded);
+		for (Map.Entry<String, Object> entry : this.delta.entrySet()) {
+			encoded.remove(entry.getKey());
+			if (entry.getValue() == null) {
+				attrs.remove(entry.getKey());
+			}
+			else {
+				attrs.put(entry.getKey(), entry.getValue());
+			}
+		}
+		Map<String, String> chunks = new HashMap<String, String>(stored.chunks);
+		for (String attrName : this.delta.keySet()) {
+			String hash = chunks.remove(attrName);
+			if (hash != null) {
+				if (this.staleChunks.isEmpty()) {
+					this.staleChunks = new HashSet<String>();
+				}
+				this.staleChunks.add(hash);
+			}
+		}
+		this.attrs = attrs;
+		this.encoded = encoded;
+		this.chunks = chunks;
+		this.chunksExpireAt = stored.chunksExpireAt;
+		this.chunkStore = stored.chunkStore;
+		this.codec = stored.codec;
+		this.created = stored.created;
+		this.principal = stored.principal;
+		this.generation = stored.generation;
+		this.savedAccessed = stored.accessed;
+		if (!isMaxInactiveIntervalChanged()) {
+			this.interval = stored.interval;
+		}
+		this.savedInterval = stored.interval;
+		setLastAccessedTime(Math.max(stored.accessed, this.accessed));
+	}
+
+	/**
+	 * Returns true if the session has never been saved, in which case the whole
+	 * record has to be written.
+	 */
+	boolean isNew() {
+		return this.isNew;
+	}
+
+	/**
+	 * Returns the attributes changed since the session was loaded or last saved.
+	 * A {@code null} value means the attribute was removed.
+	 */
+	Map<String, Object> getDelta() {
+		return this.delta;
+	}
+
+	/**
+	 * Returns the last accessed time as it was last written to the database.
+	 */
+	long getSavedLastAccessedTime() {
+		return this.savedAccessed;
+	}
+
+	/**
+	 * Returns the inactive interval as it was last written to the database.
+	 */
+	int getSavedMaxInactiveIntervalInSeconds() {
+		return this.savedInterval;
+	}
+
+	/**
+	 * Returns true if the inactive interval was changed since the session was
+	 * loaded or last saved, in which case it has to be written even if no
+	 * attribute changed.
+	 */
+	boolean isMaxInactiveIntervalChanged() {
+		return this.interval != this.savedInterval;
+	}
+
+	/**
+	 * Returns a copy of this session, including its change tracking state, that
+	 * has its own attribute map. The attribute values themselves are shared.
+	 */
+	AerospikeExpiringSession copy() {
+		AerospikeExpiringSession copy = new AerospikeExpiringSession(this.id, this.interval);
+		copy.created = this.created;
+		copy.setLastAccessedTime(this.accessed);
+		copy.principal = this.principal;
+		copy.attrs = new HashMap<String, Object>(this.attrs);
+		if (!this.encoded.isEmpty()) {
+			copy.encoded = new HashMap<String, byte[]>(this.encoded);
+		}
+		copy.codec = this.codec;
+		if (!this.chunks.isEmpty()) {
+			copy.chunks = new HashMap<String, String>(this.chunks);
+		}
+		if (!this.staleChunks.isEmpty()) {
+			copy.staleChunks = new HashSet<String>(this.staleChunks);
+		}
+		copy.chunkStore = this.chunkStore;
+		copy.chunksExpireAt = this.chunksExpireAt;
+		copy.generation = this.generation;
+		copy.delta = new HashMap<String, Object>(this.delta);
+		copy.isNew = this.isNew;
+		copy.savedAccessed = this.savedAccessed;
+		copy.savedInterval = this.savedInterval;
+		return copy;
+	}
+
+	/**
+	 * Folds the unsaved changes of an older copy of this session into this one, so
+	 * that saving this copy also writes them. Attributes changed in the older copy
+	 * only are applied to the attributes of this one as well, since a new session
+	 * is written from its attributes rather than from its changes.
+	 */
+	void mergeUnsaved(AerospikeExpiringSession older) {
+		for (Map.Entry<String, Object> change : older.delta.entrySet()) {
+			String attributeName = change.getKey();
+			if (this.delta.containsKey(attributeName)) {
+				continue;
+			}
+			if (change.getValue() != null) {
+				this.attrs.put(attributeName, change.getValue());
+			}
+			else {
+				this.attrs.remove(attributeName);
+			}
+			this.encoded.remove(attributeName);
+			removeChunk(attributeName);
+		}
+		Map<String, Object> merged = new HashMap<String, Object>(older.delta);
+		merged.putAll(this.delta);
+		this.delta = merged;
+		this.isNew = this.isNew || older.isNew;
+		this.savedAccessed = older.savedAccessed;
+		this.savedInterval = older.savedInterval;
+		if (!older.staleChunks.isEmpty()) {
+			Set<String> staleChunks = new HashSet<String>(older.staleChunks);
+			staleChunks.addAll(this.staleChunks);
+			this.staleChunks = staleChunks;
+		}
+	}
+
+	/**
+	 * Marks the session as persisted and forgets the tracked changes.
+	 */
+	void markSaved() {
+		this.isNew = false;
+		this.delta.clear();
+		this.savedAccessed = this.accessed;
+		this.savedInterval = this.interval;
+		this.staleChunks = Collections.emptySet();
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		if (this == o) {
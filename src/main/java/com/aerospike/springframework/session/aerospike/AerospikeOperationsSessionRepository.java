@@ -1,4 +1,3 @@
-
 /*
  * Copyright 2014-2017 the original author or authors.
  *
@@ -16,29 +15,104 @@
  */
 package com.aerospike.springframework.session.aerospike;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.serializer.support.SerializationFailedException;
 import org.springframework.data.aerospike.core.AerospikeOperations;
-import org.springframework.data.aerospike.repository.query.Criteria;
-import org.springframework.data.aerospike.repository.query.Query;
 import org.springframework.expression.Expression;
 import org.springframework.expression.spel.standard.SpelExpressionParser;
 import org.springframework.session.ExpiringSession;
 import org.springframework.session.FindByIndexNameSessionRepository;
-import org.springframework.session.MapSession;
 import org.springframework.session.Session;
+import org.springframework.session.events.SessionDeletedEvent;
+import org.springframework.session.events.SessionExpiredEvent;
 
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Bin;
+import com.aerospike.client.IAerospikeClient;
+import com.aerospike.client.Key;
+import com.aerospike.client.Operation;
+import com.aerospike.client.Record;
+import com.aerospike.client.ResultCode;
+import com.aerospike.client.ScanCallback;
+import com.aerospike.client.Value;
+import com.aerospike.client.cdt.MapOperation;
+import com.aerospike.client.cdt.MapPolicy;
+import com.aerospike.client.cdt.MapReturnType;
+import com.aerospike.client.cluster.Connection;
+import com.aerospike.client.cluster.Node;
+import com.aerospike.client.policy.BatchPolicy;
+import com.aerospike.client.policy.GenerationPolicy;
+import com.aerospike.client.policy.Policy;
+import com.aerospike.client.policy.QueryPolicy;
+import com.aerospike.client.policy.RecordExistsAction;
+import com.aerospike.client.policy.ScanPolicy;
 import com.aerospike.client.policy.WritePolicy;
+import com.aerospike.client.query.Filter;
 import com.aerospike.client.query.IndexType;
+import com.aerospike.client.query.RecordSet;
+import com.aerospike.client.query.Statement;
+import com.aerospike.springframework.session.aerospike.SessionRepositoryMetrics.OperationType;
 
 
 /**
  * Implementation of a SessionRepository which uses an Aerospike database
  * to store sessions.
+ * <p>
+ * Sessions are read and written with the {@link IAerospikeClient} directly, using
+ * hand-written bins and policies that are created once and shared by all calls.
+ * Each session is stored as one record keyed by the session id. The session
+ * attributes live in a map bin so that saving a session that was loaded from
+ * the database only sends the attributes that changed, using map operations
+ * in a single {@code operate} call. The whole record is only written for new
+ * sessions; the save of a session whose record was deleted or expired since it
+ * was read is dropped rather than bringing the session back. Every write sets
+ * the record TTL to the time the session has left to live, based on the
+ * inactive interval of that session. A session whose attributes did not change
+ * is only touched, and with a
+ * {@link #setTouchThresholdRatio(double) touch threshold} the touch is skipped
+ * while the stored access time is recent enough. An optional
+ * {@link SessionNearCache} avoids reading and deserializing sessions that did
+ * not change since they were last seen by this instance, and an optional
+ * {@link WriteBehindPolicy write-behind mode} takes session writes off the
+ * request thread. With {@link #setSingleFlight(boolean) single-flight} enabled,
+ * concurrent requests for the same session share reads and merge saves.
+ * Sessions are found by principal name through a secondary index or, with
+ * {@link PrincipalIndexMode#PRINCIPAL_RECORD}, through one record per
+ * principal that lists the ids of its sessions. Attribute values above a
+ * {@link #setChunkThreshold(int) size threshold} can be kept out of the session
+ * record in chunk records of their own. Operations can be measured through
+ * {@link SessionRepositoryMetrics}. Deleted sessions are published as
+ * {@link SessionDeletedEvent}s, and an optional
+ * {@link #setExpirySweepPolicy(ExpirySweepPolicy) expiry sweep} publishes
+ * {@link SessionExpiredEvent}s for sessions removed by their record TTL. With
+ * {@link #setTieredStoragePolicy(TieredStoragePolicy) tiered storage}, idle
+ * sessions are moved to a cheaper namespace and back on access. Sessions can be
+ * read from a {@link #setFallbackClient(IAerospikeClient) fallback cluster} when
+ * the cluster of the repository misses them, fails or is slow.
  *
  * @author Jeff Boone
  * @author Michael Zhang
@@ -51,6 +125,13 @@ public class AerospikeOperationsSessionRepository
 
 	AerospikeOperations aerospikeOperations;
 
+	IAerospikeClient aerospikeClient;
+
+	private static final Log logger = LogFactory.getLog(AerospikeOperationsSessionRepository.class);
+
+	/** bound of the pool deleting the sessions of principals in parallel */
+	private static final int MAX_DELETE_THREADS = 16;
+
 	private static final String SPRING_SECURITY_CONTEXT = "SPRING_SECURITY_CONTEXT";
 
 	/**
@@ -72,74 +153,1914 @@ public class AerospikeOperationsSessionRepository
 	 * the bin name for the session data.
 	 */
 	private static final String BIN_NAME = "data";
+	private static final String BIN_NAME_CREATED = "created";
+	static final String BIN_NAME_ACCESSED = "accessed";
+	static final String BIN_NAME_INTERVAL = "interval";
 	private static final String BIN_NAME_PRINCIPAL = "principal";
 	private static final String PRINCIPAL_INDEX = "principal_index";
+	private static final String BIN_NAME_SESSIONS = "sessions";
+	private static final String BIN_NAME_CHUNKS = "chunks";
+	private static final String BIN_NAME_CHUNK_EXPIRY = "chunkexpiry";
+
+	/**
+	 * the bin holding the attributes of sessions written by 1.0, whose records are
+	 * not read.
+	 */
+	private static final String LEGACY_BIN_NAME_ATTRIBUTES = "attrs";
+
+	/**
+	 * the default set name for the records listing the sessions of a principal.
+	 */
+	public static final String DEFAULT_PRINCIPAL_SET_NAME = "session_principals";
+
+	/**
+	 * the default set name for the chunk records holding large attribute values.
+	 */
+	public static final String DEFAULT_CHUNK_SET_NAME = "session_chunks";
+
+	/**
+	 * the default set name for the records listing the sessions expiring in a
+	 * time bucket.
+	 */
+	public static final String DEFAULT_EXPIRY_SET_NAME = "session_expirations";
+
+	/**
+	 * The default number of times a conflicting save is retried.
+	 */
+	public static final int DEFAULT_MAX_CONFLICT_RETRIES = 3;
+
+	static final int UNKNOWN_GENERATION = 0;
+	static final int RECORD_NOT_FOUND = -1;
 	
 	private String namespace = DEFAULT_NAMESPACE;
 	private String setname = DEFAULT_SET_NAME;
 	private int	maxInactiveIntervalInSeconds = DEFAULT_INACTIVE_INTERVAL;
+	private double touchThresholdRatio = 0;
+	private boolean serverSideExpiry = false;
+	private boolean generationCheck = false;
+	private int maxConflictRetries = DEFAULT_MAX_CONFLICT_RETRIES;
+	private PrincipalIndexMode principalIndexMode = PrincipalIndexMode.SECONDARY_INDEX;
+	private String principalSetName = DEFAULT_PRINCIPAL_SET_NAME;
+	private String chunkSetName = DEFAULT_CHUNK_SET_NAME;
+	final ChunkStore chunkStore = new ChunkStore(this);
+	private String expirySetName = DEFAULT_EXPIRY_SET_NAME;
+	ExpirySweeper expirySweeper;
+	private TieredStorage tieredStorage;
+	private IAerospikeClient fallbackClient;
+	private long hedgeDelayInMillis = 0;
+	private FallbackReader fallbackReader;
+	private boolean asyncIndexCreation = false;
+	private volatile PrincipalIndexBuilder principalIndexBuilder;
+	private volatile boolean legacyRecordLogged;
+	private int warmUpConnectionsPerNode = 0;
+	private ApplicationEventPublisher eventPublisher;
+	SessionNearCache nearCache;
+	private WriteBehindBuffer writeBehindBuffer;
+	private SingleFlight singleFlight;
+	SessionRepositoryMetrics metrics;
+	private SessionSizeProfiler sizeProfiler;
+
+	private final ExecutorService deleteExecutor = new ThreadPoolExecutor(0, MAX_DELETE_THREADS, 60,
+			TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "aerospike-session-delete");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private SessionCodec sessionCodec = new CompactSessionCodec();
+
+	private SessionIdGenerator sessionIdGenerator = AerospikeExpiringSession.DEFAULT_ID_GENERATOR;
+
+	final Policy readPolicy = new Policy();
+	final WritePolicy replacePolicy = new WritePolicy();
+	final WritePolicy updatePolicy = new WritePolicy();
+	final WritePolicy touchPolicy = new WritePolicy();
+	final WritePolicy deletePolicy = new WritePolicy();
+	final WritePolicy principalPolicy = new WritePolicy();
+	final BatchPolicy batchPolicy = new BatchPolicy();
+	final QueryPolicy queryPolicy = new QueryPolicy();
+	final ScanPolicy scanPolicy = new ScanPolicy();
 	
 	public AerospikeOperationsSessionRepository(AerospikeOperations aerospikeOperations) {
+		this(aerospikeOperations.getAerospikeClient());
 		this.aerospikeOperations = aerospikeOperations;
 	}
+
+	public AerospikeOperationsSessionRepository(IAerospikeClient aerospikeClient) {
+		this.aerospikeClient = aerospikeClient;
+		setPolicies(new SessionPolicies());
+	}
 	
+	/**
+	 * Opens the configured connections and creates the secondary index, before the
+	 * repository is used.
+	 */
 	@PostConstruct
+	public void initialize() {
+		warmUpConnections();
+		ensureIndexesAreCreated();
+	}
+
+	/**
+	 * Opens {@link #setWarmUpConnectionsPerNode(int) the configured number} of
+	 * connections to every node of the cluster and returns them to the pool of the
+	 * client, so that the first requests do not pay for connecting. Nodes that
+	 * cannot be reached are logged and skipped.
+	 */
+	public void warmUpConnections() {
+		if (this.warmUpConnectionsPerNode <= 0) {
+			return;
+		}
+		Node[] nodes = this.aerospikeClient.getNodes();
+		if (nodes == null || nodes.length == 0) {
+			logger.warn("Skipping connection warm-up, the cluster is empty");
+			return;
+		}
+		for (Node node : nodes) {
+			List<Connection> connections = new ArrayList<Connection>(this.warmUpConnectionsPerNode);
+			try {
+				for (int i = 0; i < this.warmUpConnectionsPerNode; i++) {
+					connections.add(node.getConnection(this.readPolicy.timeout));
+				}
+			}
+			catch (AerospikeException e) {
+				logger.warn("Failed to warm up connections to node " + node, e);
+			}
+			finally {
+				for (Connection connection : connections) {
+					node.putConnection(connection);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates the secondary index on the principal bin if it does not exist yet,
+	 * unless sessions are found through principal records. With
+	 * {@link #setAsyncIndexCreation(boolean) asynchronous index creation} this
+	 * returns right away and the index is built in the background.
+	 */
 	public void ensureIndexesAreCreated() {
-		this.aerospikeOperations.createIndex(AerospikeExpiringSession.class, PRINCIPAL_INDEX, BIN_NAME_PRINCIPAL, IndexType.STRING);
+		if (this.principalIndexMode != PrincipalIndexMode.SECONDARY_INDEX) {
+			return;
+		}
+		if (this.asyncIndexCreation) {
+			if (this.principalIndexBuilder == null) {
+				PrincipalIndexBuilder builder = new PrincipalIndexBuilder(this, getSessionNamespaces(),
+						PRINCIPAL_INDEX, BIN_NAME_PRINCIPAL);
+				this.principalIndexBuilder = builder;
+				builder.start();
+			}
+			return;
+		}
+		for (String namespace : getSessionNamespaces()) {
+			try {
+				this.aerospikeClient.createIndex(null, namespace, this.setname,
+						PRINCIPAL_INDEX, BIN_NAME_PRINCIPAL, IndexType.STRING).waitTillComplete();
+			}
+			catch (AerospikeException e) {
+				if (e.getResultCode() != ResultCode.INDEX_FOUND) {
+					throw e;
+				}
+			}
+		}
 	}
 
 	public ExpiringSession createSession() {
-		return new MapSession();
+		return new AerospikeExpiringSession(this.sessionIdGenerator.generateId(),
+				this.maxInactiveIntervalInSeconds);
 	}
 
 	public void save(ExpiringSession session) {
-		WritePolicy writePolicy = new WritePolicy();
-		writePolicy.expiration = this.maxInactiveIntervalInSeconds;
-		AerospikeExpiringSession aSession = new AerospikeExpiringSession(session);
-		aSession.setMaxInactiveIntervalInSeconds(this.maxInactiveIntervalInSeconds);
-		this.aerospikeOperations.save(session.getId(), aSession, writePolicy);
+		long start = startTiming();
+		try {
+			AerospikeExpiringSession aSession = toAerospikeSession(session);
+			profileSize(aSession);
+			doSave(aSession);
+		}
+		catch (RuntimeException e) {
+			recordFailure(OperationType.SAVE, start, e);
+			throw e;
+		}
+		recordSuccess(OperationType.SAVE, start);
 	}
 
-	public ExpiringSession getSession(String id) {
-		AerospikeExpiringSession session = this.aerospikeOperations.findOne(id, AerospikeExpiringSession.class);
-		if (session == null) return null;
+	/**
+	 * Hands the session to the {@link SessionSizeProfiler}, if any, before it is
+	 * saved.
+	 */
+	void profileSize(AerospikeExpiringSession session) {
+		if (this.sizeProfiler != null) {
+			this.sizeProfiler.profile(session, this.sessionCodec);
+		}
+	}
 
-		return new MapSession(session);
+	private void doSave(AerospikeExpiringSession aSession) {
+		if (this.writeBehindBuffer == null && this.singleFlight == null) {
+			write(aSession);
+			return;
+		}
+		if (aSession.isNew() || hasChanges(aSession) || isTouchRequired(aSession)) {
+			if (this.writeBehindBuffer == null) {
+				this.singleFlight.save(aSession.copy());
+			}
+			else {
+				try {
+					this.writeBehindBuffer.add(aSession);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					write(aSession);
+				}
+			}
+			refreshPrincipal(aSession);
+			aSession.markSaved();
+		}
 	}
 
-	public void delete(String id) {
-		this.aerospikeOperations.delete(id, AerospikeExpiringSession.class);
+	/**
+	 * Writes the session synchronously.
+	 */
+	void write(AerospikeExpiringSession aSession) {
+		int generation = UNKNOWN_GENERATION;
+		ChunkStore.Changes chunks = this.chunkStore.begin(aSession);
+		if (aSession.isNew()) {
+			Bin[] bins = getBins(aSession, chunks);
+			writeChunks(aSession, chunks);
+			this.aerospikeClient.put(withExpiration(this.replacePolicy, aSession),
+					getKey(aSession.getId()), bins);
+		}
+		else {
+			Operation[] operations = getUpdateOperations(aSession, chunks);
+			if (operations == null) {
+				return;
+			}
+			writeChunks(aSession, chunks);
+			if (this.generationCheck && hasChanges(aSession)
+					&& aSession.getGeneration() != UNKNOWN_GENERATION) {
+				generation = operateChecked(aSession, operations, chunks);
+			}
+			else {
+				generation = operate(getUpdatePolicy(aSession), aSession.getId(), operations);
+			}
+			if (generation == RECORD_NOT_FOUND && promoteForUpdate(aSession.getId())) {
+				generation = operate(getUpdatePolicy(aSession), aSession.getId(), operations);
+			}
+			if (generation == RECORD_NOT_FOUND) {
+				dropSave(aSession.getId());
+				return;
+			}
+		}
+		for (Map.Entry<Key, Operation> entry : getIndexOperations(aSession).entrySet()) {
+			this.aerospikeClient.operate(getIndexPolicy(entry.getKey()), entry.getKey(),
+					entry.getValue());
+		}
+		chunksSaved(aSession, chunks);
+		saved(aSession, generation);
 	}
 
-	public void setNamespace(String namespace) {
-		this.namespace = namespace;
+	/**
+	 * Writes the session in full unless a record of the same id exists, which
+	 * is kept as it is.
+	 *
+	 * @return true if the session was written
+	 */
+	boolean create(AerospikeExpiringSession aSession) {
+		ChunkStore.Changes chunks = this.chunkStore.begin(aSession);
+		Bin[] bins = getBins(aSession, chunks);
+		writeChunks(aSession, chunks);
+		WritePolicy policy = new WritePolicy(withExpiration(this.replacePolicy, aSession));
+		policy.recordExistsAction = RecordExistsAction.CREATE_ONLY;
+		try {
+			this.aerospikeClient.put(policy, getKey(aSession.getId()), bins);
+		}
+		catch (AerospikeException e) {
+			if (e.getResultCode() == ResultCode.KEY_EXISTS_ERROR) {
+				// the chunks just written are not referenced and expire with their TTL
+				return false;
+			}
+			throw e;
+		}
+		for (Map.Entry<Key, Operation> entry : getIndexOperations(aSession).entrySet()) {
+			this.aerospikeClient.operate(getIndexPolicy(entry.getKey()), entry.getKey(),
+					entry.getValue());
+		}
+		chunksSaved(aSession, chunks);
+		saved(aSession, UNKNOWN_GENERATION);
+		return true;
 	}
 
-	public void setSetName(String setname) {
-		this.setname = setname;
+	/**
+	 * Moves a session whose record was not found by an update back from the cold
+	 * namespace, where it may have been demoted after it was read, so that the
+	 * update can be applied again.
+	 *
+	 * @return true if the session was found in the cold namespace
+	 */
+	boolean promoteForUpdate(String id) {
+		if (this.tieredStorage == null || this.tieredStorage.promote(getKey(id)) == null) {
+			return false;
+		}
+		if (this.metrics != null) {
+			this.metrics.recordRetry(OperationType.SAVE);
+		}
+		return true;
 	}
 
-	public void setMaxInactiveIntervalInSeconds(Integer maxInactiveIntervalInSeconds) {
-		this.maxInactiveIntervalInSeconds = maxInactiveIntervalInSeconds;
+	/**
+	 * Gives up the save of a session whose record no longer exists. The session
+	 * was deleted or expired since it was read, and writing it in full would bring
+	 * it back after a logout.
+	 */
+	void dropSave(String id) {
+		if (this.nearCache != null) {
+			this.nearCache.remove(id);
+		}
+		if (logger.isDebugEnabled()) {
+			logger.debug("Dropping save of session " + id + " which no longer exists");
+		}
 	}
 
-	public Map<String, ExpiringSession> findByIndexNameAndIndexValue(String indexName, 
-			String indexValue) {
-		if (!PRINCIPAL_NAME_INDEX_NAME.equals(indexName)) {
-			return Collections.emptyMap();
+	/**
+	 * Writes the chunks a save collected, before the session record referencing
+	 * them is written.
+	 */
+	void writeChunks(AerospikeExpiringSession session, ChunkStore.Changes chunks) {
+		if (chunks != null) {
+			this.chunkStore.write(session.getId(), chunks);
 		}
+	}
 
-		HashMap<String, ExpiringSession> result = new HashMap<String, ExpiringSession>();
+	/**
+	 * Deletes the chunks replaced by a save, once the session record no longer
+	 * references them.
+	 */
+	void chunksSaved(AerospikeExpiringSession session, ChunkStore.Changes chunks) {
+		if (chunks != null) {
+			this.chunkStore.saved(session, chunks);
+		}
+	}
 
-		Query<?> query = new Query<Object>(
-				Criteria.where(AerospikeExpiringSession.class.getSimpleName()).is(indexValue, BIN_NAME_PRINCIPAL));
+	AerospikeExpiringSession toAerospikeSession(ExpiringSession session) {
+		return (session instanceof AerospikeExpiringSession)
+				? (AerospikeExpiringSession) session : new AerospikeExpiringSession(session);
+	}
 
-		Iterable<AerospikeExpiringSession> it = this.aerospikeOperations.find( query, AerospikeExpiringSession.class);
-		for (AerospikeExpiringSession aesw : it) {
-			result.put(aesw.getId(), new MapSession(aesw));
+	/**
+	 * Returns the bins of the complete session record, used to replace whatever
+	 * is stored. Attributes already stored as chunks keep their chunk without
+	 * being read.
+	 *
+	 * @param chunks collects the chunks to write, or {@code null} if the session
+	 * has no chunks and chunks are disabled
+	 */
+	Bin[] getBins(AerospikeExpiringSession session, ChunkStore.Changes chunks) {
+		Map<String, byte[]> data = new HashMap<String, byte[]>();
+		Map<String, String> chunkRefs = null;
+		int count = 0;
+		int size = 0;
+		for (String attrName : session.getAttributeNames()) {
+			String hash = session.getChunks().get(attrName);
+			if (hash == null) {
+				byte[] bytes = session.getEncodedAttribute(attrName);
+				if (bytes == null) {
+					bytes = this.sessionCodec.encode(session.getAttribute(attrName));
+				}
+				count++;
+				size += bytes.length;
+				if (chunks == null || !this.chunkStore.isChunk(bytes)) {
+					data.put(attrName, bytes);
+					continue;
+				}
+				hash = this.chunkStore.add(session, attrName, bytes, chunks);
+			}
+			if (chunkRefs == null) {
+				chunkRefs = new HashMap<String, String>();
+			}
+			chunkRefs.put(attrName, hash);
+		}
+		if (this.metrics != null) {
+			this.metrics.recordWrite(count, size);
 		}
+		Bin created = new Bin(BIN_NAME_CREATED, session.getCreationTime());
+		Bin accessed = new Bin(BIN_NAME_ACCESSED, session.getLastAccessedTime());
+		Bin interval = new Bin(BIN_NAME_INTERVAL, session.getMaxInactiveIntervalInSeconds());
+		Bin principal = new Bin(BIN_NAME_PRINCIPAL, PRINCIPAL_NAME_RESOLVER.resolvePrincipal(session));
+		if (chunkRefs == null) {
+			return new Bin[] { created, accessed, interval, principal, new Bin(BIN_NAME, data) };
+		}
+		this.chunkStore.expire(session, chunks);
+		long chunkExpiry = (chunks.expireAt != 0) ? chunks.expireAt : session.getChunksExpireAt();
+		return new Bin[] { created, accessed, interval, principal, new Bin(BIN_NAME, data),
+				new Bin(BIN_NAME_CHUNKS, chunkRefs), new Bin(BIN_NAME_CHUNK_EXPIRY, chunkExpiry) };
+	}
 
-		return result;
+	/**
+	 * Returns the operations that apply the tracked changes of a session that
+	 * already exists in the database. A session without attribute changes is
+	 * only touched: its access time, and its inactive interval if that changed,
+	 * are updated and the record TTL reset, without sending any attribute data.
+	 *
+	 * @param chunks collects the chunks to write, or {@code null} if the session
+	 * has no chunks and chunks are disabled
+	 * @return the operations, or {@code null} if the stored access time is still
+	 * within the touch threshold and nothing needs to be written
+	 */
+	Operation[] getUpdateOperations(AerospikeExpiringSession session, ChunkStore.Changes chunks) {
+		Operation accessed = Operation.put(new Bin(BIN_NAME_ACCESSED, session.getLastAccessedTime()));
+		Operation interval = Operation.put(new Bin(BIN_NAME_INTERVAL, session.getMaxInactiveIntervalInSeconds()));
+		Map<String, Object> delta = session.getDelta();
+		if (delta.isEmpty()) {
+			boolean intervalChanged = session.isMaxInactiveIntervalChanged();
+			if (!intervalChanged && !isTouchRequired(session)) {
+				return null;
+			}
+			boolean hasChunks = chunks != null && !session.getChunks().isEmpty();
+			if (!intervalChanged && !hasChunks) {
+				return new Operation[] { accessed };
+			}
+			List<Operation> operations = new ArrayList<Operation>(3);
+			operations.add(accessed);
+			if (intervalChanged) {
+				operations.add(interval);
+			}
+			if (hasChunks) {
+				addChunkExpiry(session, chunks, operations);
+			}
+			return operations.toArray(new Operation[operations.size()]);
+		}
+
+		List<Operation> operations = new ArrayList<Operation>(5);
+		operations.add(accessed);
+		operations.add(interval);
+		Map<Value, Value> puts = new HashMap<Value, Value>();
+		List<Value> removes = new ArrayList<Value>();
+		Map<Value, Value> chunkPuts = null;
+		List<Value> chunkRemoves = null;
+		int count = 0;
+		int size = 0;
+		for (Map.Entry<String, Object> entry : delta.entrySet()) {
+			Value attrName = Value.get(entry.getKey());
+			if (entry.getValue() == null) {
+				removes.add(attrName);
+				if (chunks != null) {
+					chunkRemoves = add(chunkRemoves, attrName);
+				}
+				continue;
+			}
+			byte[] bytes = this.sessionCodec.encode(entry.getValue());
+			count++;
+			size += bytes.length;
+			if (chunks != null && this.chunkStore.isChunk(bytes)) {
+				if (chunkPuts == null) {
+					chunkPuts = new HashMap<Value, Value>();
+				}
+				chunkPuts.put(attrName, Value.get(this.chunkStore.add(session, entry.getKey(), bytes, chunks)));
+				removes.add(attrName);
+			}
+			else {
+				puts.put(attrName, Value.get(bytes));
+				if (chunks != null) {
+					chunkRemoves = add(chunkRemoves, attrName);
+				}
+			}
+		}
+		if (this.metrics != null) {
+			this.metrics.recordWrite(count, size);
+		}
+		if (!puts.isEmpty()) {
+			operations.add(MapOperation.putItems(MapPolicy.Default, BIN_NAME, puts));
+		}
+		if (!removes.isEmpty()) {
+			operations.add(MapOperation.removeByKeyList(BIN_NAME, removes, MapReturnType.NONE));
+		}
+		if (chunks != null && session.hasChunks() && chunkRemoves != null) {
+			operations.add(MapOperation.removeByKeyList(BIN_NAME_CHUNKS, chunkRemoves, MapReturnType.NONE));
+		}
+		if (chunkPuts != null) {
+			operations.add(MapOperation.putItems(MapPolicy.Default, BIN_NAME_CHUNKS, chunkPuts));
+		}
+		if (chunks != null && (chunkPuts != null || !session.getChunks().isEmpty())) {
+			addChunkExpiry(session, chunks, operations);
+		}
+		if (isPrincipalAffected(session)) {
+			operations.add(Operation.put(new Bin(BIN_NAME_PRINCIPAL,
+					PRINCIPAL_NAME_RESOLVER.resolvePrincipal(session))));
+		}
+		return operations.toArray(new Operation[operations.size()]);
+	}
+
+	private static List<Value> add(List<Value> values, Value value) {
+		if (values == null) {
+			values = new ArrayList<Value>();
+		}
+		values.add(value);
+		return values;
+	}
+
+	/**
+	 * Decides the expiration of the chunks of the session and stores their new
+	 * expiry time with the session if it changes.
+	 */
+	private void addChunkExpiry(AerospikeExpiringSession session, ChunkStore.Changes chunks,
+			List<Operation> operations) {
+		this.chunkStore.expire(session, chunks);
+		if (chunks.expireAt != 0) {
+			operations.add(Operation.put(new Bin(BIN_NAME_CHUNK_EXPIRY, chunks.expireAt)));
+		}
+	}
+
+	/**
+	 * Returns true if attributes or the inactive interval of the session changed
+	 * since it was read or last saved.
+	 */
+	private static boolean hasChanges(AerospikeExpiringSession session) {
+		return !session.getDelta().isEmpty() || session.isMaxInactiveIntervalChanged();
+	}
+
+	/**
+	 * Returns false if the stored access time of an unchanged session is still
+	 * within the touch threshold, in which case nothing needs to be written.
+	 */
+	private boolean isTouchRequired(AerospikeExpiringSession session) {
+		long threshold = (long) (this.touchThresholdRatio
+				* TimeUnit.SECONDS.toMillis(session.getMaxInactiveIntervalInSeconds()));
+		return session.getLastAccessedTime() - session.getSavedLastAccessedTime() >= threshold;
+	}
+
+	/**
+	 * Returns the policy for applying the tracked changes of a session, which is
+	 * the touch policy if only its access time changed.
+	 */
+	WritePolicy getUpdatePolicy(AerospikeExpiringSession session) {
+		return withExpiration(hasChanges(session) ? this.updatePolicy : this.touchPolicy, session);
+	}
+
+	/**
+	 * Returns the shared policy if its expiration matches the time the session
+	 * has left to live, otherwise a copy with that expiration, so that the record
+	 * expires together with the session.
+	 */
+	WritePolicy withExpiration(WritePolicy policy, AerospikeExpiringSession session) {
+		int expiration = session.getSecondsToLive(System.currentTimeMillis());
+		if (expiration == policy.expiration) {
+			return policy;
+		}
+		WritePolicy sessionPolicy = new WritePolicy(policy);
+		sessionPolicy.expiration = expiration;
+		return sessionPolicy;
+	}
+
+	/**
+	 * Returns true if the tracked changes of the session may change its principal.
+	 */
+	private boolean isPrincipalAffected(AerospikeExpiringSession session) {
+		return session.getDelta().containsKey(PRINCIPAL_NAME_INDEX_NAME)
+				|| session.getDelta().containsKey(SPRING_SECURITY_CONTEXT);
+	}
+
+	/**
+	 * Returns the writes to other records that index a written session, keyed by
+	 * the record. These move a session from the record of the principal it was
+	 * last saved with to the record of its current principal, if the principal
+	 * changed and {@link PrincipalIndexMode#PRINCIPAL_RECORD} is used, and move
+	 * the session to the expiry bucket of its new expiry time if an expiry sweep
+	 * is used.
+	 */
+	Map<Key, Operation> getIndexOperations(AerospikeExpiringSession session) {
+		Map<Key, Operation> operations = new LinkedHashMap<Key, Operation>(4);
+		if (this.expirySweeper != null) {
+			this.expirySweeper.addIndexOperation(session, operations);
+		}
+		if (this.principalIndexMode != PrincipalIndexMode.PRINCIPAL_RECORD
+				|| !(session.isNew() || isPrincipalAffected(session))) {
+			return operations;
+		}
+		String saved = session.isNew() ? null : session.getPrincipal();
+		String current = PRINCIPAL_NAME_RESOLVER.resolvePrincipal(session);
+		if (saved != null && !saved.equals(current)) {
+			operations.put(getPrincipalKey(saved), MapOperation.removeByKey(BIN_NAME_SESSIONS,
+					Value.get(session.getId()), MapReturnType.NONE));
+		}
+		if (current != null && !current.equals(saved)) {
+			operations.put(getPrincipalKey(current), MapOperation.put(MapPolicy.Default,
+					BIN_NAME_SESSIONS, Value.get(session.getId()), Value.get(session.getCreationTime())));
+		}
+		return operations;
+	}
+
+	/**
+	 * Returns the policy of a write returned by {@link #getIndexOperations}.
+	 * Principal records never expire, expiry bucket records expire some time after
+	 * their bucket has elapsed.
+	 */
+	WritePolicy getIndexPolicy(Key key) {
+		if (this.expirySweeper != null && this.expirySetName.equals(key.setName)) {
+			return this.expirySweeper.getBucketPolicy(key);
+		}
+		return this.principalPolicy;
+	}
+
+	/**
+	 * Remembers the principal the session is saved with, so that the next save
+	 * can tell whether its principal record has to change.
+	 */
+	private void refreshPrincipal(AerospikeExpiringSession session) {
+		if (session.isNew() || isPrincipalAffected(session)) {
+			session.setPrincipal(PRINCIPAL_NAME_RESOLVER.resolvePrincipal(session));
+		}
+	}
+
+	/**
+	 * Applies the operations to an existing session record.
+	 *
+	 * @return the generation of the record after the write,
+	 * {@link #UNKNOWN_GENERATION} if the server did not return it or
+	 * {@link #RECORD_NOT_FOUND} if the record no longer exists
+	 */
+	private int operate(WritePolicy policy, String id, Operation... operations) {
+		try {
+			Record record = this.aerospikeClient.operate(policy, getKey(id), operations);
+			return (record != null) ? record.generation : UNKNOWN_GENERATION;
+		}
+		catch (AerospikeException e) {
+			if (e.getResultCode() == ResultCode.KEY_NOT_FOUND_ERROR) {
+				return RECORD_NOT_FOUND;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Applies the operations only if the record is still at the generation the
+	 * session was read with. When another request wrote the session meanwhile,
+	 * the record is read again, the session is rebased on it and the operations
+	 * are recomputed, up to {@link #setMaxConflictRetries(int) a bounded number
+	 * of times}.
+	 *
+	 * @return the generation of the record after the write, or
+	 * {@link #RECORD_NOT_FOUND} if the record no longer exists
+	 */
+	private int operateChecked(AerospikeExpiringSession session, Operation[] operations,
+			ChunkStore.Changes chunks) {
+		Key key = getKey(session.getId());
+		for (int conflicts = 0;; conflicts++) {
+			WritePolicy policy = new WritePolicy(withExpiration(this.updatePolicy, session));
+			policy.generationPolicy = GenerationPolicy.EXPECT_GEN_EQUAL;
+			policy.generation = session.getGeneration();
+			try {
+				Record record = this.aerospikeClient.operate(policy, key, operations);
+				return (record != null) ? record.generation : UNKNOWN_GENERATION;
+			}
+			catch (AerospikeException e) {
+				if (e.getResultCode() == ResultCode.KEY_NOT_FOUND_ERROR) {
+					return RECORD_NOT_FOUND;
+				}
+				if (e.getResultCode() != ResultCode.GENERATION_ERROR) {
+					throw e;
+				}
+				if (this.metrics != null) {
+					this.metrics.recordConflict(OperationType.SAVE);
+				}
+				if (conflicts >= this.maxConflictRetries) {
+					throw e;
+				}
+			}
+			Record current = this.aerospikeClient.get(this.readPolicy, key);
+			if (current == null) {
+				return RECORD_NOT_FOUND;
+			}
+			session.rebase(toSession(session.getId(), current));
+			if (chunks != null) {
+				chunks.clear();
+			}
+			operations = getUpdateOperations(session, chunks);
+			writeChunks(session, chunks);
+		}
+	}
+
+	/**
+	 * Marks the session as persisted and refreshes the near cache. The cached copy
+	 * is only known to match the record if the write advanced the generation the
+	 * session was read with by exactly one; otherwise another request wrote the
+	 * session as well and the cache entry is dropped.
+	 */
+	void saved(AerospikeExpiringSession session, int generation) {
+		int expected = session.getGeneration() + 1;
+		refreshPrincipal(session);
+		session.markSaved();
+		session.setGeneration(generation);
+		if (this.nearCache != null) {
+			if (expected > 1 && generation != UNKNOWN_GENERATION && generation != expected) {
+				this.nearCache.remove(session.getId());
+			}
+			else {
+				this.nearCache.put(session, generation);
+			}
+		}
+	}
+
+	public ExpiringSession getSession(String id) {
+		long start = startTiming();
+		AerospikeExpiringSession session;
+		try {
+			session = (this.singleFlight != null) ? this.singleFlight.read(id) : readSession(id);
+		}
+		catch (RuntimeException e) {
+			recordFailure(OperationType.GET, start, e);
+			throw e;
+		}
+		recordSuccess(OperationType.GET, start);
+		return session;
+	}
+
+	/**
+	 * Reads the session, treating it as missing if it has expired.
+	 */
+	AerospikeExpiringSession readSession(String id) {
+		AerospikeExpiringSession session = doGetSession(id);
+		if (session != null && isExpiredOnRead(session)) {
+			doDelete(id, true);
+			return null;
+		}
+		return session;
+	}
+
+	private AerospikeExpiringSession doGetSession(String id) {
+		if (this.writeBehindBuffer != null) {
+			AerospikeExpiringSession pending = this.writeBehindBuffer.get(id);
+			if (pending != null) {
+				return pending;
+			}
+		}
+		if (this.nearCache != null) {
+			SessionNearCache.Entry entry = this.nearCache.get(id);
+			if (entry != null) {
+				if (this.nearCache.isTrusted(entry)) {
+					recordNearCacheLookup(true);
+					return entry.getSession();
+				}
+				Record header = readHeader(getKey(id));
+				if (header == null && this.tieredStorage == null && this.fallbackReader == null) {
+					this.nearCache.remove(id);
+					recordNearCacheLookup(false);
+					return null;
+				}
+				if (header != null && header.generation == entry.generation) {
+					entry.validated();
+					recordNearCacheLookup(true);
+					return entry.getSession();
+				}
+			}
+			recordNearCacheLookup(false);
+		}
+
+		Record record = (this.fallbackReader != null)
+				? this.fallbackReader.get(this.readPolicy, getKey(id))
+				: this.aerospikeClient.get(this.readPolicy, getKey(id));
+		if (record == null && this.tieredStorage != null) {
+			record = this.tieredStorage.promote(getKey(id));
+		}
+		if (record == null || isLegacyRecord(record)) {
+			if (this.nearCache != null) {
+				this.nearCache.remove(id);
+			}
+			return null;
+		}
+
+		AerospikeExpiringSession session = toSession(id, record);
+		if (this.nearCache != null) {
+			this.nearCache.put(session, record.generation);
+		}
+		return session;
+	}
+
+	/**
+	 * Reads the record header to validate a near cache entry. With a fallback
+	 * cluster a failed read is treated as missing, so that the session is read
+	 * through the fallback.
+	 */
+	private Record readHeader(Key key) {
+		try {
+			return this.aerospikeClient.getHeader(this.readPolicy, key);
+		}
+		catch (AerospikeException e) {
+			if (this.fallbackReader == null) {
+				throw e;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Returns true if the session has expired and has to be treated as missing.
+	 * With {@link #setServerSideExpiry(boolean) server-side expiry} the record TTL
+	 * alone decides and this is always false.
+	 */
+	boolean isExpiredOnRead(AerospikeExpiringSession session) {
+		if (this.serverSideExpiry || !session.isExpired(System.currentTimeMillis())) {
+			return false;
+		}
+		if (this.metrics != null) {
+			this.metrics.recordExpiredOnRead();
+		}
+		return true;
+	}
+
+	public void delete(String id) {
+		long start = startTiming();
+		try {
+			doDelete(id, false);
+		}
+		catch (RuntimeException e) {
+			recordFailure(OperationType.DELETE, start, e);
+			throw e;
+		}
+		recordSuccess(OperationType.DELETE, start);
+	}
+
+	/**
+	 * Deletes the session and the records referring to it, and publishes a
+	 * {@link SessionExpiredEvent} or {@link SessionDeletedEvent} if it existed.
+	 */
+	private void doDelete(String id, boolean expired) {
+		if (deleteSession(id)) {
+			publishDeleted(id, expired);
+		}
+	}
+
+	/**
+	 * Deletes the record of a session that the write-behind buffer wrote after
+	 * the session was deleted, along with the records referring to it, without
+	 * publishing another event.
+	 */
+	void discard(String id) {
+		deleteSession(id);
+	}
+
+	private boolean deleteSession(String id) {
+		String[] bins = beginDelete(id);
+		Key key = getKey(id);
+		Record record = (bins.length == 0) ? null : this.aerospikeClient.get(this.readPolicy, key, bins);
+		boolean existed = this.aerospikeClient.delete(this.deletePolicy, key);
+		return finishDelete(id, bins, record, existed);
+	}
+
+	/**
+	 * Drops the unwritten state of a session that is about to be deleted.
+	 *
+	 * @return the bins to read from the session record before deleting it, so
+	 * that the records referring to it can be removed
+	 */
+	String[] beginDelete(String id) {
+		if (this.writeBehindBuffer != null) {
+			this.writeBehindBuffer.remove(id);
+		}
+		if (this.nearCache != null) {
+			this.nearCache.remove(id);
+		}
+		List<String> binNames = getCleanUpBinNames();
+		if (this.principalIndexMode == PrincipalIndexMode.PRINCIPAL_RECORD) {
+			binNames.add(BIN_NAME_PRINCIPAL);
+		}
+		return binNames.toArray(new String[binNames.size()]);
+	}
+
+	/**
+	 * Completes the delete of a session once its hot record was deleted: deletes
+	 * the cold record instead if there was no hot one and removes the records
+	 * referring to the session.
+	 *
+	 * @param bins the bins returned by {@link #beginDelete(String)}
+	 * @param record those bins of the hot record, or {@code null}
+	 * @param existed whether the hot record existed
+	 * @return whether the session existed
+	 */
+	boolean finishDelete(String id, String[] bins, Record record, boolean existed) {
+		if (this.tieredStorage != null && !existed) {
+			Key key = getKey(id);
+			Key coldKey = this.tieredStorage.getColdKey(key);
+			record = (bins.length == 0) ? null : this.aerospikeClient.get(this.readPolicy, coldKey, bins);
+			existed = this.tieredStorage.delete(key);
+		}
+		if (record != null) {
+			if (record.getString(BIN_NAME_PRINCIPAL) != null) {
+				this.aerospikeClient.operate(this.principalPolicy,
+						getPrincipalKey(record.getString(BIN_NAME_PRINCIPAL)),
+						MapOperation.removeByKey(BIN_NAME_SESSIONS, Value.get(id), MapReturnType.NONE));
+			}
+			cleanUp(id, record);
+		}
+		return existed;
+	}
+
+	/**
+	 * Publishes a {@link SessionExpiredEvent} or {@link SessionDeletedEvent} for a
+	 * deleted session.
+	 */
+	void publishDeleted(String id, boolean expired) {
+		publishEvent(expired ? new SessionExpiredEvent(this, id) : new SessionDeletedEvent(this, id));
+	}
+
+	/**
+	 * Returns the bins of a session record needed to remove the records referring
+	 * to it once it is deleted.
+	 */
+	private List<String> getCleanUpBinNames() {
+		List<String> binNames = new ArrayList<String>(4);
+		if (this.chunkStore.isEnabled()) {
+			binNames.add(BIN_NAME_CHUNKS);
+		}
+		if (this.expirySweeper != null) {
+			binNames.add(BIN_NAME_ACCESSED);
+			binNames.add(BIN_NAME_INTERVAL);
+		}
+		return binNames;
+	}
+
+	/**
+	 * Removes the chunks and the expiry bucket entry of a deleted session.
+	 */
+	private void cleanUp(String id, Record record) {
+		if (record.getMap(BIN_NAME_CHUNKS) != null) {
+			this.chunkStore.deleteAll(id, record.getMap(BIN_NAME_CHUNKS));
+		}
+		if (this.expirySweeper != null && record.bins.containsKey(BIN_NAME_ACCESSED)
+				&& record.getInt(BIN_NAME_INTERVAL) >= 0) {
+			this.expirySweeper.remove(id, record.getLong(BIN_NAME_ACCESSED)
+					+ TimeUnit.SECONDS.toMillis(record.getInt(BIN_NAME_INTERVAL)));
+		}
+	}
+
+	/**
+	 * Deletes all sessions of a principal, as needed to log a user out
+	 * everywhere. See {@link #deleteByPrincipals(Collection)}.
+	 *
+	 * @param principal the principal name
+	 * @return the number of sessions deleted
+	 */
+	public int deleteByPrincipal(String principal) {
+		return deleteByPrincipals(Collections.singletonList(principal));
+	}
+
+	/**
+	 * Deletes all sessions of the given principals. The sessions are found
+	 * without reading their attributes: through the principal records in one batch
+	 * with {@link PrincipalIndexMode#PRINCIPAL_RECORD}, otherwise through a query
+	 * per principal that only returns the record keys. The session records are
+	 * then deleted without reading them first, in parallel with
+	 * {@link AerospikeAsyncSessionRepository}.
+	 *
+	 * @param principals the principal names
+	 * @return the number of sessions deleted
+	 */
+	public int deleteByPrincipals(Collection<String> principals) {
+		long start = startTiming();
+		int deleted;
+		try {
+			deleted = doDeleteByPrincipals(principals);
+		}
+		catch (RuntimeException e) {
+			recordFailure(OperationType.DELETE_BY_PRINCIPAL, start, e);
+			throw e;
+		}
+		recordSuccess(OperationType.DELETE_BY_PRINCIPAL, start);
+		return deleted;
+	}
+
+	private int doDeleteByPrincipals(Collection<String> principals) {
+		if (principals.isEmpty()) {
+			return 0;
+		}
+		List<Key> keys = new ArrayList<Key>();
+		List<String> binNames = getCleanUpBinNames();
+		Map<Key, Record> records = binNames.isEmpty() ? null : new HashMap<Key, Record>();
+		Map<Key, List<Value>> principalRecords = null;
+		if (this.principalIndexMode == PrincipalIndexMode.PRINCIPAL_RECORD) {
+			principalRecords = findKeysByPrincipalRecords(principals, keys);
+			if (records != null && !keys.isEmpty()) {
+				Key[] sessionKeys = keys.toArray(new Key[keys.size()]);
+				String[] bins = binNames.toArray(new String[binNames.size()]);
+				Record[] found = this.aerospikeClient.get(this.batchPolicy, sessionKeys, bins);
+				if (this.tieredStorage != null) {
+					this.tieredStorage.readMissing(sessionKeys, found, bins);
+				}
+				for (int i = 0; i < found.length; i++) {
+					if (found[i] != null) {
+						records.put(sessionKeys[i], found[i]);
+					}
+				}
+			}
+		}
+		else {
+			if (binNames.isEmpty()) {
+				binNames.add(BIN_NAME_PRINCIPAL);
+			}
+			for (String principal : principals) {
+				findKeysByIndex(principal, binNames, keys, records);
+			}
+		}
+		if (keys.isEmpty()) {
+			return 0;
+		}
+
+		if (this.writeBehindBuffer != null) {
+			for (Key key : keys) {
+				this.writeBehindBuffer.remove(key.userKey.toString());
+			}
+		}
+		int deleted = deleteRecords(keys);
+		if (this.tieredStorage != null) {
+			List<Key> coldKeys = new ArrayList<Key>(keys.size());
+			for (Key key : keys) {
+				coldKeys.add(this.tieredStorage.getColdKey(key));
+			}
+			deleted += deleteRecords(coldKeys);
+		}
+		for (Key key : keys) {
+			String id = key.userKey.toString();
+			if (this.nearCache != null) {
+				this.nearCache.remove(id);
+			}
+			Record record = (records != null) ? records.get(key) : null;
+			if (record != null) {
+				cleanUp(id, record);
+			}
+			publishEvent(new SessionDeletedEvent(this, id));
+		}
+		if (principalRecords != null) {
+			for (Map.Entry<Key, List<Value>> entry : principalRecords.entrySet()) {
+				this.aerospikeClient.operate(this.principalPolicy, entry.getKey(),
+						MapOperation.removeByKeyList(BIN_NAME_SESSIONS, entry.getValue(), MapReturnType.NONE));
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Reads the principal records in one batch and adds the keys of the listed
+	 * sessions.
+	 *
+	 * @return the ids listed by each principal record, by principal record key
+	 */
+	private Map<Key, List<Value>> findKeysByPrincipalRecords(Collection<String> principals, List<Key> keys) {
+		Key[] principalKeys = new Key[principals.size()];
+		int i = 0;
+		for (String principal : principals) {
+			principalKeys[i++] = getPrincipalKey(principal);
+		}
+		Record[] records = this.aerospikeClient.get(this.batchPolicy, principalKeys, BIN_NAME_SESSIONS);
+		Map<Key, List<Value>> principalRecords = new LinkedHashMap<Key, List<Value>>();
+		for (i = 0; i < records.length; i++) {
+			Map<?, ?> sessions = (records[i] != null) ? records[i].getMap(BIN_NAME_SESSIONS) : null;
+			if (sessions == null || sessions.isEmpty()) {
+				continue;
+			}
+			List<Value> ids = new ArrayList<Value>(sessions.size());
+			for (Object id : sessions.keySet()) {
+				keys.add(getKey((String) id));
+				ids.add(Value.get(id));
+			}
+			principalRecords.put(principalKeys[i], ids);
+		}
+		return principalRecords;
+	}
+
+	/**
+	 * Queries the secondary index for the keys of the sessions of the principal,
+	 * only reading the given bins. Sessions in the cold namespace are returned
+	 * with their hot key.
+	 *
+	 * @param records collects the records read, or {@code null} if they are not
+	 * needed
+	 */
+	private void findKeysByIndex(String principal, List<String> binNames, final List<Key> keys,
+			final Map<Key, Record> records) {
+		for (String namespace : getSessionNamespaces()) {
+			findByPrincipal(namespace, principal, binNames.toArray(new String[binNames.size()]),
+					new ScanCallback() {
+
+						public void scanCallback(Key recordKey, Record record) {
+							Key key = getKey(recordKey.userKey.toString());
+							keys.add(key);
+							if (records != null) {
+								records.put(key, record);
+							}
+						}
+					});
+		}
+	}
+
+	/**
+	 * Passes the records of the sessions of the principal in the namespace to the
+	 * callback, reading the given bins only, or all bins if none are given. While
+	 * the secondary index is {@link #setAsyncIndexCreation(boolean) built in the
+	 * background}, the set is scanned instead of queried so that sessions not
+	 * indexed yet are not missed.
+	 */
+	private void findByPrincipal(String namespace, final String principal, String[] binNames,
+			final ScanCallback callback) {
+		if (isPrincipalIndexReady()) {
+			Statement statement = new Statement();
+			statement.setNamespace(namespace);
+			statement.setSetName(this.setname);
+			statement.setFilters(Filter.equal(BIN_NAME_PRINCIPAL, principal));
+			if (binNames.length > 0) {
+				statement.setBinNames(binNames);
+			}
+
+			RecordSet recordSet = this.aerospikeClient.query(this.queryPolicy, statement);
+			try {
+				while (recordSet.next()) {
+					callback.scanCallback(recordSet.getKey(), recordSet.getRecord());
+				}
+			}
+			finally {
+				recordSet.close();
+			}
+			return;
+		}
+		String[] scanBinNames = binNames;
+		if (binNames.length > 0 && !Arrays.asList(binNames).contains(BIN_NAME_PRINCIPAL)) {
+			scanBinNames = Arrays.copyOf(binNames, binNames.length + 1);
+			scanBinNames[binNames.length] = BIN_NAME_PRINCIPAL;
+		}
+		this.aerospikeClient.scanAll(this.scanPolicy, namespace, this.setname, new ScanCallback() {
+
+			public void scanCallback(Key key, Record record) {
+				if (principal.equals(record.getString(BIN_NAME_PRINCIPAL))) {
+					callback.scanCallback(key, record);
+				}
+			}
+		}, scanBinNames);
+	}
+
+	/**
+	 * Deletes the session records in parallel, issuing all deletes before waiting
+	 * for any of them. The deletes run on a pool of at most
+	 * {@code MAX_DELETE_THREADS} threads, and the calling thread runs those no
+	 * thread is left for.
+	 *
+	 * @return the number of records that existed
+	 */
+	int deleteRecords(List<Key> keys) {
+		int deleted = 0;
+		List<Future<Boolean>> deletes = new ArrayList<Future<Boolean>>(keys.size());
+		for (final Key key : keys) {
+			if (keys.size() > 1) {
+				try {
+					deletes.add(this.deleteExecutor.submit(new Callable<Boolean>() {
+						public Boolean call() {
+							return AerospikeOperationsSessionRepository.this.aerospikeClient.delete(
+									AerospikeOperationsSessionRepository.this.deletePolicy, key);
+						}
+					}));
+					continue;
+				}
+				catch (RejectedExecutionException e) {
+					// every thread is busy, delete on the calling thread
+				}
+			}
+			if (this.aerospikeClient.delete(this.deletePolicy, key)) {
+				deleted++;
+			}
+		}
+		boolean interrupted = false;
+		try {
+			for (Future<Boolean> delete : deletes) {
+				while (true) {
+					try {
+						if (delete.get()) {
+							deleted++;
+						}
+						break;
+					}
+					catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+			}
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+		finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Reads the bins deciding when the sessions expire, in one batch.
+	 */
+	Record[] getExpiryRecords(Key[] keys) {
+		Record[] records = this.aerospikeClient.get(this.batchPolicy, keys, BIN_NAME_ACCESSED, BIN_NAME_INTERVAL);
+		if (this.tieredStorage != null) {
+			this.tieredStorage.readMissing(keys, records, BIN_NAME_ACCESSED, BIN_NAME_INTERVAL);
+		}
+		return records;
+	}
+
+	boolean isExpired(Record record, long now) {
+		int interval = record.getInt(BIN_NAME_INTERVAL);
+		return interval >= 0 && now > record.getLong(BIN_NAME_ACCESSED) + TimeUnit.SECONDS.toMillis(interval);
+	}
+
+	/**
+	 * Returns the TTL in seconds of a session record with the given expiry bins,
+	 * or -1 if it never expires.
+	 */
+	int getSecondsToLive(Record record, long now) {
+		int interval = record.getInt(BIN_NAME_INTERVAL);
+		if (interval < 0) {
+			return -1;
+		}
+		long remaining = record.getLong(BIN_NAME_ACCESSED) + TimeUnit.SECONDS.toMillis(interval) - now;
+		return (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(remaining));
+	}
+
+	/**
+	 * Reports a session whose record expired.
+	 */
+	void expired(String id) {
+		if (this.nearCache != null) {
+			this.nearCache.remove(id);
+		}
+		publishEvent(new SessionExpiredEvent(this, id));
+	}
+
+	/**
+	 * Deletes a session that expired but whose record was not removed yet.
+	 */
+	void deleteExpired(String id) {
+		doDelete(id, true);
+	}
+
+	private void publishEvent(ApplicationEvent event) {
+		if (this.eventPublisher != null) {
+			try {
+				this.eventPublisher.publishEvent(event);
+			}
+			catch (RuntimeException e) {
+				logger.error("Failed to publish " + event, e);
+			}
+		}
+	}
+
+	public void setNamespace(String namespace) {
+		this.namespace = namespace;
+	}
+
+	public void setSetName(String setname) {
+		this.setname = setname;
+	}
+
+	String getNamespace() {
+		return this.namespace;
+	}
+
+	String getSetName() {
+		return this.setname;
+	}
+
+	/**
+	 * Moves sessions that are idle for longer than a threshold to a second
+	 * namespace, typically on SSD while the namespace of the repository is kept in
+	 * memory, and moves them back when they are read. Sessions are found by
+	 * principal, deleted and swept in both namespaces. The scan for idle sessions
+	 * runs on every node with a demote interval, so it is usually enabled on one
+	 * node only. Disabled by default.
+	 *
+	 * @param tieredStoragePolicy the settings, or {@code null} to keep all sessions
+	 * in one namespace
+	 */
+	public void setTieredStoragePolicy(TieredStoragePolicy tieredStoragePolicy) {
+		if (this.tieredStorage != null) {
+			this.tieredStorage.shutdown();
+		}
+		this.tieredStorage = (tieredStoragePolicy != null)
+				? new TieredStorage(this, tieredStoragePolicy) : null;
+	}
+
+	TieredStorage getTieredStorage() {
+		return this.tieredStorage;
+	}
+
+	WriteBehindBuffer getWriteBehindBuffer() {
+		return this.writeBehindBuffer;
+	}
+
+	FallbackReader getFallbackReader() {
+		return this.fallbackReader;
+	}
+
+	/**
+	 * Sets a second cluster that sessions are read from when the cluster of the
+	 * repository does not have them or cannot be reached, such as the cluster of
+	 * another data center kept in sync through cross-datacenter replication. The
+	 * fallback cluster holds the sessions in the same namespace and set. Sessions
+	 * are always written to the cluster of the repository. Disabled by default.
+	 *
+	 * @param fallbackClient the client of the second cluster, or {@code null} to
+	 * read the cluster of the repository only
+	 */
+	public void setFallbackClient(IAerospikeClient fallbackClient) {
+		this.fallbackClient = fallbackClient;
+		configureFallback();
+	}
+
+	/**
+	 * Sets the time after which a session read that has not completed is also sent
+	 * to the {@link #setFallbackClient(IAerospikeClient) fallback cluster}, the
+	 * first record found being used. Defaults to 0, which only reads the fallback
+	 * cluster once the read missed or failed.
+	 *
+	 * @param hedgeDelayInMillis the delay in milliseconds
+	 */
+	public void setHedgeDelayInMillis(long hedgeDelayInMillis) {
+		this.hedgeDelayInMillis = hedgeDelayInMillis;
+		configureFallback();
+	}
+
+	private void configureFallback() {
+		if (this.fallbackReader != null) {
+			this.fallbackReader.shutdown();
+		}
+		this.fallbackReader = (this.fallbackClient != null)
+				? new FallbackReader(this, this.fallbackClient, this.hedgeDelayInMillis) : null;
+	}
+
+	/**
+	 * Creates the secondary index on the principal bin in the background instead of
+	 * waiting for it to be built on startup. Until the index is complete on every
+	 * node, sessions are found by principal with a scan of the set. Defaults to
+	 * false.
+	 *
+	 * @param asyncIndexCreation true to build the index in the background
+	 */
+	public void setAsyncIndexCreation(boolean asyncIndexCreation) {
+		this.asyncIndexCreation = asyncIndexCreation;
+	}
+
+	/**
+	 * Returns false while the secondary index on the principal bin is built in the
+	 * background, for instance to hold back a readiness check.
+	 *
+	 * @return true if sessions are found by principal through the index
+	 */
+	public boolean isPrincipalIndexReady() {
+		PrincipalIndexBuilder builder = this.principalIndexBuilder;
+		return builder == null || builder.isReady();
+	}
+
+	/**
+	 * Sets the number of connections opened to every node on startup. Defaults to
+	 * 0, which opens connections on demand.
+	 *
+	 * @param warmUpConnectionsPerNode the number of connections per node
+	 */
+	public void setWarmUpConnectionsPerNode(int warmUpConnectionsPerNode) {
+		this.warmUpConnectionsPerNode = warmUpConnectionsPerNode;
+	}
+
+	List<String> getSessionNamespaces() {
+		if (this.tieredStorage == null) {
+			return Collections.singletonList(this.namespace);
+		}
+		return Arrays.asList(this.namespace, this.tieredStorage.getColdNamespace());
+	}
+
+	/**
+	 * Sets how sessions are found by principal name. Defaults to
+	 * {@link PrincipalIndexMode#SECONDARY_INDEX}.
+	 *
+	 * @param principalIndexMode the mode
+	 */
+	public void setPrincipalIndexMode(PrincipalIndexMode principalIndexMode) {
+		if (principalIndexMode == null) {
+			throw new IllegalArgumentException("principalIndexMode cannot be null");
+		}
+		this.principalIndexMode = principalIndexMode;
+	}
+
+	/**
+	 * Sets the set holding the principal records used by
+	 * {@link PrincipalIndexMode#PRINCIPAL_RECORD}. Defaults to
+	 * {@value #DEFAULT_PRINCIPAL_SET_NAME}.
+	 *
+	 * @param principalSetName the set name
+	 */
+	public void setPrincipalSetName(String principalSetName) {
+		this.principalSetName = principalSetName;
+	}
+
+	/**
+	 * Sets the encoded size in bytes above which an attribute value is stored in
+	 * a chunk record of its own instead of the session record. The session record
+	 * then only references the chunk by the hash of its content, so saves that do
+	 * not change the value and reads that do not access it skip it altogether.
+	 * Chunks are written and read with the blocking client, also by
+	 * {@link AerospikeAsyncSessionRepository}. Defaults to 0, keeping all values
+	 * in the session record.
+	 *
+	 * @param chunkThreshold the size in bytes, or 0 to disable chunks
+	 */
+	public void setChunkThreshold(int chunkThreshold) {
+		if (chunkThreshold < 0) {
+			throw new IllegalArgumentException("chunkThreshold cannot be negative");
+		}
+		this.chunkStore.setThreshold(chunkThreshold);
+	}
+
+	/**
+	 * Sets the set holding the chunk records. Defaults to
+	 * {@value #DEFAULT_CHUNK_SET_NAME}.
+	 *
+	 * @param chunkSetName the set name
+	 */
+	public void setChunkSetName(String chunkSetName) {
+		this.chunkSetName = chunkSetName;
+	}
+
+	/**
+	 * Sets where {@link SessionDeletedEvent}s and {@link SessionExpiredEvent}s are
+	 * published. Disabled by default.
+	 *
+	 * @param eventPublisher the publisher, or {@code null} to publish no events
+	 */
+	public void setApplicationEventPublisher(ApplicationEventPublisher eventPublisher) {
+		this.eventPublisher = eventPublisher;
+	}
+
+	/**
+	 * Publishes {@link SessionExpiredEvent}s for sessions removed by their record
+	 * TTL. Saves then also list each session in a record per time bucket of its
+	 * expiry time and range of partitions, which is written once per bucket width
+	 * at most, and the nodes sharing the sweep read the elapsed buckets of their
+	 * partition ranges instead of scanning the sessions. Disabled by default.
+	 *
+	 * @param expirySweepPolicy the settings, or {@code null} to disable the sweep
+	 */
+	public void setExpirySweepPolicy(ExpirySweepPolicy expirySweepPolicy) {
+		if (this.expirySweeper != null) {
+			this.expirySweeper.shutdown();
+		}
+		this.expirySweeper = (expirySweepPolicy != null) ? new ExpirySweeper(this, expirySweepPolicy) : null;
+	}
+
+	/**
+	 * Sets the set holding the expiry bucket records. Defaults to
+	 * {@value #DEFAULT_EXPIRY_SET_NAME}.
+	 *
+	 * @param expirySetName the set name
+	 */
+	public void setExpirySetName(String expirySetName) {
+		this.expirySetName = expirySetName;
+	}
+
+	/**
+	 * Sets the timeouts, retries, replica and commit level used for each kind of
+	 * operation. Defaults to a {@link SessionPolicies} with its default settings.
+	 *
+	 * @param policies the policies
+	 */
+	public void setPolicies(SessionPolicies policies) {
+		if (policies == null) {
+			throw new IllegalArgumentException("policies cannot be null");
+		}
+		SessionPolicies.apply(policies.read, this.readPolicy);
+		SessionPolicies.apply(policies.save, this.replacePolicy);
+		SessionPolicies.apply(policies.update, this.updatePolicy);
+		SessionPolicies.apply(policies.touch, this.touchPolicy);
+		SessionPolicies.apply(policies.delete, this.deletePolicy);
+		SessionPolicies.apply(policies.index, this.principalPolicy);
+		SessionPolicies.apply(policies.batch, this.batchPolicy);
+		SessionPolicies.apply(policies.query, this.queryPolicy);
+		configurePolicies();
+	}
+
+	public void setMaxInactiveIntervalInSeconds(Integer maxInactiveIntervalInSeconds) {
+		this.maxInactiveIntervalInSeconds = maxInactiveIntervalInSeconds;
+		configurePolicies();
+	}
+
+	/**
+	 * Sets the fraction of the inactive interval within which the access time of
+	 * a session without attribute changes is not written back. For example 0.1
+	 * with a 30 minute interval skips the touch if the stored access time is less
+	 * than 3 minutes old, so a session may expire up to 3 minutes early. The
+	 * default of 0 touches the record on every save.
+	 *
+	 * @param touchThresholdRatio a value between 0 (inclusive) and 1 (exclusive)
+	 */
+	public void setTouchThresholdRatio(double touchThresholdRatio) {
+		if (touchThresholdRatio < 0 || touchThresholdRatio >= 1) {
+			throw new IllegalArgumentException("touchThresholdRatio must be between 0 and 1");
+		}
+		this.touchThresholdRatio = touchThresholdRatio;
+	}
+
+	/**
+	 * Leaves expiry entirely to the TTL of the session records. By default a
+	 * session read after it expired, which can happen shortly before the server
+	 * removes the record, is deleted and treated as missing. With server-side
+	 * expiry it is returned as is, saving the check and the delete.
+	 *
+	 * @param serverSideExpiry whether to rely on the record TTL only
+	 */
+	public void setServerSideExpiry(boolean serverSideExpiry) {
+		this.serverSideExpiry = serverSideExpiry;
+	}
+
+	/**
+	 * Makes saves of changed attributes conditional on the record generation the
+	 * session was read with. If another request saved the session in between, its
+	 * changes are read back and only the attributes changed by this request are
+	 * applied on top, instead of overwriting the access time and interval written
+	 * by the newer request. Disabled by default, in which case attribute changes
+	 * are still merged by the server, one attribute at a time.
+	 *
+	 * @param generationCheck whether to check the record generation
+	 */
+	public void setGenerationCheck(boolean generationCheck) {
+		this.generationCheck = generationCheck;
+	}
+
+	/**
+	 * Sets how many times a save that lost a generation check is retried before
+	 * the {@link AerospikeException} is thrown. Defaults to
+	 * {@value #DEFAULT_MAX_CONFLICT_RETRIES}.
+	 *
+	 * @param maxConflictRetries the number of retries
+	 */
+	public void setMaxConflictRetries(int maxConflictRetries) {
+		if (maxConflictRetries < 0) {
+			throw new IllegalArgumentException("maxConflictRetries cannot be negative");
+		}
+		this.maxConflictRetries = maxConflictRetries;
+	}
+
+	/**
+	 * Sets the codec used to encode attribute values. Defaults to a
+	 * {@link CompactSessionCodec} without compression.
+	 *
+	 * @param sessionCodec the codec
+	 */
+	public void setSessionCodec(SessionCodec sessionCodec) {
+		if (sessionCodec == null) {
+			throw new IllegalArgumentException("sessionCodec cannot be null");
+		}
+		this.sessionCodec = sessionCodec;
+	}
+
+	/**
+	 * Sets the generator of the ids of new sessions. Defaults to a shared
+	 * {@link SecureRandomSessionIdGenerator}.
+	 *
+	 * @param sessionIdGenerator the generator
+	 */
+	public void setSessionIdGenerator(SessionIdGenerator sessionIdGenerator) {
+		if (sessionIdGenerator == null) {
+			throw new IllegalArgumentException("sessionIdGenerator cannot be null");
+		}
+		this.sessionIdGenerator = sessionIdGenerator;
+	}
+
+	SessionCodec getSessionCodec() {
+		return this.sessionCodec;
+	}
+
+	/**
+	 * Sets an in-process cache consulted by {@link #getSession(String)} before the
+	 * session record is read. Disabled by default.
+	 *
+	 * @param nearCache the cache, or {@code null} to disable it
+	 */
+	public void setNearCache(SessionNearCache nearCache) {
+		this.nearCache = nearCache;
+	}
+
+	/**
+	 * Makes {@link #save(ExpiringSession)} return immediately and write sessions
+	 * from a background thread, combining repeated saves of the same session.
+	 * Sessions saved but not yet written are lost if the process dies, and
+	 * failed background writes are only logged. Disabled by default.
+	 *
+	 * @param writeBehindPolicy the settings, or {@code null} to write synchronously
+	 */
+	public void setWriteBehindPolicy(WriteBehindPolicy writeBehindPolicy) {
+		if (this.writeBehindBuffer != null) {
+			this.writeBehindBuffer.shutdown();
+		}
+		this.writeBehindBuffer = (writeBehindPolicy != null)
+				? new WriteBehindBuffer(this, writeBehindPolicy) : null;
+	}
+
+	/**
+	 * Makes concurrent calls for the same session share database work: parallel
+	 * {@link #getSession(String)} calls wait for a single read, and saves that
+	 * arrive while the session is being written are merged into the next write.
+	 * Useful when a page fans out into many requests carrying the same session.
+	 * Saves made in {@link #setWriteBehindPolicy(WriteBehindPolicy) write-behind
+	 * mode} are already combined by the write-behind buffer. Disabled by default.
+	 *
+	 * @param singleFlight whether to coalesce concurrent calls
+	 */
+	public void setSingleFlight(boolean singleFlight) {
+		this.singleFlight = singleFlight ? new SingleFlight(this) : null;
+	}
+
+	/**
+	 * Sets the profiler sampling the encoded size of saved sessions, which can also
+	 * reject sessions above a size limit. Disabled by default.
+	 *
+	 * @param sizeProfiler the profiler, or {@code null} to disable it
+	 */
+	public void setSessionSizeProfiler(SessionSizeProfiler sizeProfiler) {
+		this.sizeProfiler = sizeProfiler;
+	}
+
+	public SessionSizeProfiler getSessionSizeProfiler() {
+		return this.sizeProfiler;
+	}
+
+	/**
+	 * Sets where measurements of the repository operations are reported.
+	 * Disabled by default.
+	 *
+	 * @param metrics the metrics, or {@code null} to disable them
+	 */
+	public void setMetrics(SessionRepositoryMetrics metrics) {
+		this.metrics = metrics;
+		if (metrics == null) {
+			return;
+		}
+		metrics.registerGauge("writebehind.pending", new SessionRepositoryMetrics.Gauge() {
+
+			public double value() {
+				WriteBehindBuffer buffer = AerospikeOperationsSessionRepository.this.writeBehindBuffer;
+				return (buffer != null) ? buffer.pendingCount() : 0;
+			}
+		});
+		metrics.registerGauge("nearcache.size", new SessionRepositoryMetrics.Gauge() {
+
+			public double value() {
+				SessionNearCache nearCache = AerospikeOperationsSessionRepository.this.nearCache;
+				return (nearCache != null) ? nearCache.size() : 0;
+			}
+		});
+	}
+
+	long startTiming() {
+		return (this.metrics != null) ? System.nanoTime() : 0L;
+	}
+
+	void recordSuccess(OperationType type, long start) {
+		if (this.metrics != null) {
+			this.metrics.recordOperation(type, System.nanoTime() - start, ResultCode.OK);
+		}
+	}
+
+	void recordFailure(OperationType type, long start, Throwable failure) {
+		if (this.metrics != null) {
+			int resultCode = SessionRepositoryMetrics.UNKNOWN_ERROR;
+			if (failure instanceof AerospikeException) {
+				resultCode = ((AerospikeException) failure).getResultCode();
+			}
+			else if (failure instanceof SerializationFailedException) {
+				resultCode = ResultCode.SERIALIZE_ERROR;
+			}
+			this.metrics.recordOperation(type, System.nanoTime() - start, resultCode);
+		}
+	}
+
+	void recordNearCacheLookup(boolean hit) {
+		if (this.metrics != null) {
+			this.metrics.recordNearCacheLookup(hit);
+		}
+	}
+
+	/**
+	 * Writes all sessions still waiting in the write-behind buffer and stops the
+	 * background threads.
+	 */
+	@PreDestroy
+	public void shutdown() {
+		if (this.writeBehindBuffer != null) {
+			this.writeBehindBuffer.shutdown();
+		}
+		if (this.expirySweeper != null) {
+			this.expirySweeper.shutdown();
+		}
+		if (this.tieredStorage != null) {
+			this.tieredStorage.shutdown();
+		}
+		if (this.principalIndexBuilder != null) {
+			this.principalIndexBuilder.shutdown();
+		}
+		if (this.fallbackReader != null) {
+			this.fallbackReader.shutdown();
+		}
+		this.deleteExecutor.shutdown();
+	}
+
+	public Map<String, ExpiringSession> findByIndexNameAndIndexValue(String indexName, 
+			String indexValue) {
+		if (!PRINCIPAL_NAME_INDEX_NAME.equals(indexName)) {
+			return Collections.emptyMap();
+		}
+		long start = startTiming();
+		Map<String, ExpiringSession> result;
+		try {
+			result = doFindByPrincipal(indexValue);
+		}
+		catch (RuntimeException e) {
+			recordFailure(OperationType.FIND_BY_PRINCIPAL, start, e);
+			throw e;
+		}
+		recordSuccess(OperationType.FIND_BY_PRINCIPAL, start);
+		return result;
+	}
+
+	private Map<String, ExpiringSession> doFindByPrincipal(String indexValue) {
+		if (this.principalIndexMode == PrincipalIndexMode.PRINCIPAL_RECORD) {
+			return findByPrincipalRecord(indexValue);
+		}
+
+		final HashMap<String, ExpiringSession> result = new HashMap<String, ExpiringSession>();
+
+		for (String namespace : getSessionNamespaces()) {
+			findByPrincipal(namespace, indexValue, new String[0], new ScanCallback() {
+
+				public void scanCallback(Key key, Record record) {
+					String id = key.userKey.toString();
+					if (isLegacyRecord(record)) {
+						return;
+					}
+					AerospikeExpiringSession session = toSession(id, record);
+					if (!isExpiredOnRead(session)) {
+						result.put(id, session);
+					}
+				}
+			});
+		}
+
+		return result;
+	}
+
+	/**
+	 * Reads the principal record and then the listed sessions in one batch.
+	 * Sessions that expired or now belong to another principal are dropped from
+	 * the principal record.
+	 */
+	private Map<String, ExpiringSession> findByPrincipalRecord(String principal) {
+		Key principalKey = getPrincipalKey(principal);
+		Record principalRecord = this.aerospikeClient.get(this.readPolicy, principalKey, BIN_NAME_SESSIONS);
+		Map<?, ?> sessions = (principalRecord != null) ? principalRecord.getMap(BIN_NAME_SESSIONS) : null;
+		if (sessions == null || sessions.isEmpty()) {
+			return Collections.emptyMap();
+		}
+
+		List<String> ids = new ArrayList<String>(sessions.size());
+		Key[] keys = new Key[sessions.size()];
+		for (Object id : sessions.keySet()) {
+			keys[ids.size()] = getKey((String) id);
+			ids.add((String) id);
+		}
+		Record[] records = this.aerospikeClient.get(this.batchPolicy, keys);
+		if (this.tieredStorage != null) {
+			this.tieredStorage.readMissing(keys, records);
+		}
+
+		HashMap<String, ExpiringSession> result = new HashMap<String, ExpiringSession>();
+		List<Value> stale = new ArrayList<Value>();
+		for (int i = 0; i < records.length; i++) {
+			if (records[i] == null || isLegacyRecord(records[i])
+					|| !principal.equals(records[i].getString(BIN_NAME_PRINCIPAL))) {
+				stale.add(Value.get(ids.get(i)));
+			}
+			else {
+				AerospikeExpiringSession session = toSession(ids.get(i), records[i]);
+				if (!isExpiredOnRead(session)) {
+					result.put(ids.get(i), session);
+				}
+			}
+		}
+		if (!stale.isEmpty()) {
+			this.aerospikeClient.operate(this.principalPolicy, principalKey,
+					MapOperation.removeByKeyList(BIN_NAME_SESSIONS, stale, MapReturnType.NONE));
+		}
+		return result;
+	}
+
+	Key getKey(String id) {
+		return new Key(this.namespace, this.setname, id);
+	}
+
+	Key getPrincipalKey(String principal) {
+		return new Key(this.namespace, this.principalSetName, principal);
+	}
+
+	Key getExpiryKey(String bucket) {
+		return new Key(this.namespace, this.expirySetName, bucket);
+	}
+
+	Key getChunkKey(String id, String hash) {
+		return new Key(this.namespace, this.chunkSetName, id + ':' + hash);
+	}
+
+	/**
+	 * Configures the shared policies. They are only read by the client, so the same
+	 * instances are reused for every call.
+	 */
+	private void configurePolicies() {
+		this.replacePolicy.recordExistsAction = RecordExistsAction.REPLACE;
+		this.replacePolicy.expiration = this.maxInactiveIntervalInSeconds;
+		this.replacePolicy.sendKey = true;
+		this.updatePolicy.recordExistsAction = RecordExistsAction.UPDATE_ONLY;
+		this.updatePolicy.expiration = this.maxInactiveIntervalInSeconds;
+		this.touchPolicy.recordExistsAction = RecordExistsAction.UPDATE_ONLY;
+		this.touchPolicy.expiration = this.maxInactiveIntervalInSeconds;
+		// principal records outlive any single session; stale ids are dropped on lookup
+		this.principalPolicy.expiration = -1;
+		this.principalPolicy.sendKey = true;
+		// the scan standing in for the principal index collects into plain collections
+		this.scanPolicy.concurrentNodes = false;
+		this.scanPolicy.timeout = this.queryPolicy.timeout;
+	}
+
+	/**
+	 * Returns true if the record holds a session written by 1.0, which stored the
+	 * attributes in a different format. Such sessions are treated as missing rather
+	 * than read without their attributes, and expire with their record TTL.
+	 */
+	boolean isLegacyRecord(Record record) {
+		if (record.bins == null || !record.bins.containsKey(LEGACY_BIN_NAME_ATTRIBUTES)) {
+			return false;
+		}
+		if (!this.legacyRecordLogged) {
+			this.legacyRecordLogged = true;
+			logger.warn("Ignoring sessions stored by version 1.0 in set " + this.setname
+					+ ", they are treated as missing until they expire");
+		}
+		return true;
+	}
+
+	AerospikeExpiringSession toSession(String id, Record record) {
+		AerospikeExpiringSession session = new AerospikeExpiringSession(id,
+				record.getInt(BIN_NAME_INTERVAL));
+		session.setCreationTime(record.getLong(BIN_NAME_CREATED));
+		session.setLastAccessedTime(record.getLong(BIN_NAME_ACCESSED));
+		session.setPrincipal(record.getString(BIN_NAME_PRINCIPAL));
+		session.setGeneration(record.generation);
+		@SuppressWarnings("unchecked")
+		Map<String, byte[]> data = (Map<String, byte[]>) record.getMap(BIN_NAME);
+		if (data != null) {
+			session.setEncodedAttributes(data, this.sessionCodec);
+		}
+		@SuppressWarnings("unchecked")
+		Map<String, String> chunks = (Map<String, String>) record.getMap(BIN_NAME_CHUNKS);
+		if (chunks != null && !chunks.isEmpty()) {
+			session.setChunks(chunks, record.getLong(BIN_NAME_CHUNK_EXPIRY), this.chunkStore);
+		}
+		if (this.metrics != null) {
+			int size = 0;
+			if (data != null) {
+				for (byte[] bytes : data.values()) {
+					size += bytes.length;
+				}
+			}
+			this.metrics.recordRead((data != null) ? data.size() : 0, size);
+		}
+		session.markSaved();
+		return session;
+	}
+
+	/**
+	 * How {@link #findByIndexNameAndIndexValue(String, String)} finds the sessions
+	 * of a principal.
+	 */
+	public enum PrincipalIndexMode {
+
+		/**
+		 * Queries a secondary index on the principal bin of the session records.
+		 * Every lookup is sent to all nodes of the cluster.
+		 */
+		SECONDARY_INDEX,
+
+		/**
+		 * Keeps one record per principal holding the ids of its sessions, updated
+		 * whenever the principal of a session changes. A lookup reads that record
+		 * and then the sessions in one batch.
+		 */
+		PRINCIPAL_RECORD
 	}
 
 	/**
@@ -163,4 +2084,4 @@ public class AerospikeOperationsSessionRepository
 		}
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+import com.aerospike.client.Record;
+import com.aerospike.client.ResultCode;
+import com.aerospike.client.policy.RecordExistsAction;
+import com.aerospike.client.policy.WritePolicy;
+
+
+/**
+ * Stores attribute values whose encoding exceeds a size threshold in chunk
+ * records of their own, so that the session record stays small and only the
+ * attributes that are accessed move their large values over the network.
+ * <p>
+ * A chunk record is keyed by the session id and the SHA-256 hash of its
+ * content, and the session record maps the attribute name to that hash. A
+ * chunk is only written when an attribute is set to content with a new hash,
+ * and only read when the attribute is first requested. Chunks replaced or
+ * removed by a save are deleted after the session record has been written.
+ * <p>
+ * All chunks of a session share an expiry time, stored with the session, that
+ * is set to twice the time the session has left to live. The chunks are only
+ * touched again once the session would outlive them, instead of on every save.
+ * Chunks that are not deleted explicitly, for example because two requests
+ * replaced the same attribute concurrently, therefore expire on their own.
+ *
+ * @author Jeff Boone
+ * @since 2.0
+ */
+final class ChunkStore {
+
+	private static final String BIN_NAME_CHUNK = "chunk";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final AerospikeOperationsSessionRepository repository;
+
+	private volatile int threshold;
+
+	ChunkStore(AerospikeOperationsSessionRepository repository) {
+		this.repository = repository;
+	}
+
+	/**
+	 * Sets the encoded size in bytes above which attribute values are stored as
+	 * chunks, or 0 to keep all values in the session record.
+	 */
+	void setThreshold(int threshold) {
+		this.threshold = threshold;
+	}
+
+	boolean isEnabled() {
+		return this.threshold > 0;
+	}
+
+	/**
+	 * Starts collecting the chunk writes of a save, or returns {@code null} if
+	 * the save cannot involve chunks.
+	 */
+	Changes begin(AerospikeExpiringSession session) {
+		return (isEnabled() || session.hasChunks()) ? new Changes() : null;
+	}
+
+	/**
+	 * Returns true if the encoded value has to be stored as a chunk.
+	 */
+	boolean isChunk(byte[] bytes) {
+		int threshold = this.threshold;
+		return threshold > 0 && bytes.length > threshold;
+	}
+
+	/**
+	 * Registers the value of a changed attribute as a chunk of the session.
+	 *
+	 * @return the hash referencing the chunk
+	 */
+	String add(AerospikeExpiringSession session, String attrName, byte[] bytes, Changes changes) {
+		String hash = hash(bytes);
+		if (!session.getChunks().containsValue(hash)) {
+			changes.writes.put(hash, bytes);
+		}
+		changes.added.put(attrName, hash);
+		return hash;
+	}
+
+	/**
+	 * Decides the expiration of the chunks written by a save. If the session is
+	 * about to outlive its chunks, all of them get a new expiry time, which then
+	 * has to be stored with the session.
+	 */
+	void expire(AerospikeExpiringSession session, Changes changes) {
+		long now = System.currentTimeMillis();
+		int secondsToLive = session.getSecondsToLive(now);
+		long expireAt = session.getChunksExpireAt();
+		if (secondsToLive < 0) {
+			changes.expiration = -1;
+			if (expireAt != Long.MAX_VALUE) {
+				changes.expireAt = Long.MAX_VALUE;
+				changes.touches.addAll(session.getChunks().values());
+			}
+			return;
+		}
+		if (expireAt >= now + TimeUnit.SECONDS.toMillis(secondsToLive)) {
+			changes.expiration = (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(expireAt - now));
+			return;
+		}
+		changes.expiration = (int) Math.min(Integer.MAX_VALUE, 2L * secondsToLive);
+		changes.expireAt = now + TimeUnit.SECONDS.toMillis(changes.expiration);
+		changes.touches.addAll(session.getChunks().values());
+	}
+
+	/**
+	 * Writes the new chunks and extends the expiration of the kept ones. Called
+	 * before the session record referencing them is written.
+	 */
+	void write(String id, Changes changes) {
+		if (changes.writes.isEmpty() && changes.touches.isEmpty()) {
+			return;
+		}
+		// chunks are written and touched with the tuning of the session record
+		WritePolicy writePolicy = new WritePolicy(this.repository.replacePolicy);
+		writePolicy.recordExistsAction = RecordExistsAction.REPLACE;
+		writePolicy.sendKey = false;
+		writePolicy.expiration = changes.expiration;
+		for (Map.Entry<String, byte[]> entry : changes.writes.entrySet()) {
+			this.repository.aerospikeClient.put(writePolicy, this.repository.getChunkKey(id, entry.getKey()),
+					new Bin(BIN_NAME_CHUNK, entry.getValue()));
+		}
+		if (changes.touches.isEmpty()) {
+			return;
+		}
+		WritePolicy touchPolicy = new WritePolicy(this.repository.touchPolicy);
+		touchPolicy.expiration = changes.expiration;
+		for (String hash : changes.touches) {
+			try {
+				this.repository.aerospikeClient.touch(touchPolicy, this.repository.getChunkKey(id, hash));
+			}
+			catch (AerospikeException e) {
+				if (e.getResultCode() != ResultCode.KEY_NOT_FOUND_ERROR) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes the chunks the save replaced and records the new references on the
+	 * session. Called after the session record has been written.
+	 */
+	void saved(AerospikeExpiringSession session, Changes changes) {
+		Collection<String> referenced = session.getChunks().values();
+		for (String hash : session.getStaleChunks()) {
+			if (!referenced.contains(hash) && !changes.added.containsValue(hash)) {
+				delete(session.getId(), hash);
+			}
+		}
+		session.chunksSaved(changes.added, changes.expireAt);
+	}
+
+	/**
+	 * Reads and decodes the value of a chunk, or returns {@code null} if the chunk
+	 * no longer exists.
+	 */
+	Object load(String id, String hash) {
+		Record record = this.repository.aerospikeClient.get(this.repository.readPolicy,
+				this.repository.getChunkKey(id, hash), BIN_NAME_CHUNK);
+		if (record == null) {
+			return null;
+		}
+		byte[] bytes = (byte[]) record.getValue(BIN_NAME_CHUNK);
+		if (this.repository.metrics != null) {
+			this.repository.metrics.recordRead(1, bytes.length);
+		}
+		return this.repository.getSessionCodec().decode(bytes);
+	}
+
+	/**
+	 * Deletes all chunks referenced by a deleted session record.
+	 */
+	void deleteAll(String id, Map<?, ?> chunks) {
+		for (Object hash : chunks.values()) {
+			delete(id, (String) hash);
+		}
+	}
+
+	private void delete(String id, String hash) {
+		this.repository.aerospikeClient.delete(this.repository.deletePolicy,
+				this.repository.getChunkKey(id, hash));
+	}
+
+	static String hash(byte[] bytes) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		byte[] hash = digest.digest(bytes);
+		char[] hex = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			hex[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = HEX[hash[i] & 0xf];
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * The chunk writes of one save of a session.
+	 */
+	static final class Changes {
+
+		/** new chunk content by hash */
+		final Map<String, byte[]> writes = new LinkedHashMap<String, byte[]>();
+
+		/** hashes of the changed attributes stored as chunks */
+		final Map<String, String> added = new LinkedHashMap<String, String>();
+
+		/** hashes of the kept chunks whose expiration is extended */
+		final List<String> touches = new ArrayList<String>();
+
+		int expiration;
+
+		/** the new expiry time of the chunks, or 0 if it does not change */
+		long expireAt;
+
+		/**
+		 * Forgets the collected writes, before the operations of a save are
+		 * computed again.
+		 */
+		void clear() {
+			this.writes.clear();
+			this.added.clear();
+			this.touches.clear();
+			this.expiration = 0;
+			this.expireAt = 0;
+		}
+	}
+}
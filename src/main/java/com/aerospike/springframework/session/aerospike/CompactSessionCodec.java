@@ -0,0 +1,331 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.springframework.core.ConfigurableObjectInputStream;
+import org.springframework.core.serializer.support.SerializationFailedException;
+import org.springframework.util.ClassUtils;
+
+
+/**
+ * Default {@link SessionCodec} producing a compact binary form.
+ * <p>
+ * Every value starts with a header byte holding the format version and whether the
+ * rest is compressed, followed by a type tag. Strings, numbers, booleans and byte
+ * arrays are written directly. Other values fall back to Java serialization, where
+ * classes added to the class registry are written as a short id instead of a full
+ * class descriptor. Registered ids are part of the stored data and must be the same
+ * on every application instance sharing the database. Registered classes are
+ * written with their {@code serialVersionUID} and read back with their local class
+ * descriptor, so a value whose class changed its {@code serialVersionUID} fails to
+ * decode with an {@link InvalidClassException}. A class whose serialized fields
+ * change has to change its {@code serialVersionUID} or be registered under a new
+ * id.
+ * <p>
+ * Values whose encoded size exceeds the compression threshold can optionally be
+ * compressed.
+ *
+ * @author Jeff Boone
+ * @since 2.0
+ */
+public class CompactSessionCodec implements SessionCodec {
+
+	/**
+	 * Compression applied to encoded values above the threshold.
+	 */
+	public enum Compression {
+		NONE, DEFLATE
+	}
+
+	/**
+	 * The default size in bytes above which values are compressed.
+	 */
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+	static final int VERSION = 1;
+
+	private static final int VERSION_MASK = 0x0F;
+	private static final int FLAG_DEFLATE = 0x80;
+
+	private static final byte TYPE_STRING = 1;
+	private static final byte TYPE_INTEGER = 2;
+	private static final byte TYPE_LONG = 3;
+	private static final byte TYPE_BOOLEAN = 4;
+	private static final byte TYPE_DOUBLE = 5;
+	private static final byte TYPE_BYTES = 6;
+	private static final byte TYPE_SERIALIZED = 7;
+
+	private static final int CLASS_UNREGISTERED = 0;
+	private static final int CLASS_REGISTERED = 1;
+
+	private final Map<Class<?>, Integer> classIds = new ConcurrentHashMap<Class<?>, Integer>();
+	private final Map<Integer, Class<?>> classesById = new ConcurrentHashMap<Integer, Class<?>>();
+
+	private Compression compression = Compression.NONE;
+	private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+	private ClassLoader classLoader = ClassUtils.getDefaultClassLoader();
+
+	/**
+	 * Registers a serializable class under a fixed id so that its class descriptor
+	 * is not written with every value.
+	 *
+	 * @param id the id, between 0 and 65535, that identifies the class in stored data
+	 * @param type the class
+	 */
+	public void registerClass(int id, Class<? extends Serializable> type) {
+		if (id < 0 || id > 0xFFFF) {
+			throw new IllegalArgumentException("id must be between 0 and 65535");
+		}
+		Class<?> existing = this.classesById.get(id);
+		if (existing != null && existing != type) {
+			throw new IllegalArgumentException("id " + id + " is already registered for " + existing.getName());
+		}
+		this.classIds.put(type, id);
+		this.classesById.put(id, type);
+	}
+
+	public void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	public void setClassLoader(ClassLoader classLoader) {
+		this.classLoader = classLoader;
+	}
+
+	public byte[] encode(Object value) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		bytes.write(VERSION);
+		try {
+			writeValue(value, bytes);
+		}
+		catch (IOException e) {
+			throw new SerializationFailedException("Failed to encode " + value.getClass().getName(), e);
+		}
+		byte[] encoded = bytes.toByteArray();
+		if (this.compression == Compression.DEFLATE && encoded.length > this.compressionThreshold) {
+			return deflate(encoded);
+		}
+		return encoded;
+	}
+
+	public Object decode(byte[] bytes) {
+		if (bytes == null || bytes.length == 0) {
+			throw new SerializationFailedException("Empty session attribute");
+		}
+		int header = bytes[0] & 0xFF;
+		if ((header & VERSION_MASK) != VERSION) {
+			throw new SerializationFailedException("Unsupported session codec version " + (header & VERSION_MASK));
+		}
+		byte[] body = bytes;
+		int offset = 1;
+		if ((header & FLAG_DEFLATE) != 0) {
+			body = inflate(bytes);
+			offset = 0;
+		}
+		try {
+			return readValue(new DataInputStream(
+					new ByteArrayInputStream(body, offset, body.length - offset)));
+		}
+		catch (IOException e) {
+			throw new SerializationFailedException("Failed to decode session attribute", e);
+		}
+		catch (ClassNotFoundException e) {
+			throw new SerializationFailedException("Failed to decode session attribute", e);
+		}
+	}
+
+	private void writeValue(Object value, OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(out);
+		if (value instanceof String) {
+			data.writeByte(TYPE_STRING);
+			data.write(((String) value).getBytes(StandardCharsets.UTF_8));
+		}
+		else if (value instanceof Integer) {
+			data.writeByte(TYPE_INTEGER);
+			data.writeInt((Integer) value);
+		}
+		else if (value instanceof Long) {
+			data.writeByte(TYPE_LONG);
+			data.writeLong((Long) value);
+		}
+		else if (value instanceof Boolean) {
+			data.writeByte(TYPE_BOOLEAN);
+			data.writeBoolean((Boolean) value);
+		}
+		else if (value instanceof Double) {
+			data.writeByte(TYPE_DOUBLE);
+			data.writeDouble((Double) value);
+		}
+		else if (value instanceof byte[]) {
+			data.writeByte(TYPE_BYTES);
+			data.write((byte[]) value);
+		}
+		else {
+			data.writeByte(TYPE_SERIALIZED);
+			ObjectOutputStream objects = new RegistryObjectOutputStream(data);
+			objects.writeObject(value);
+			objects.flush();
+		}
+		data.flush();
+	}
+
+	private Object readValue(DataInputStream data) throws IOException, ClassNotFoundException {
+		byte type = data.readByte();
+		switch (type) {
+		case TYPE_STRING:
+			return new String(readRemaining(data), StandardCharsets.UTF_8);
+		case TYPE_INTEGER:
+			return data.readInt();
+		case TYPE_LONG:
+			return data.readLong();
+		case TYPE_BOOLEAN:
+			return data.readBoolean();
+		case TYPE_DOUBLE:
+			return data.readDouble();
+		case TYPE_BYTES:
+			return readRemaining(data);
+		case TYPE_SERIALIZED:
+			return new RegistryObjectInputStream(data, this.classLoader).readObject();
+		default:
+			throw new SerializationFailedException("Unknown session attribute type " + type);
+		}
+	}
+
+	private static byte[] readRemaining(DataInputStream data) throws IOException {
+		byte[] bytes = new byte[data.available()];
+		data.readFully(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Compresses everything after the header byte and marks the header.
+	 */
+	private static byte[] deflate(byte[] encoded) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(encoded, 1, encoded.length - 1);
+			deflater.finish();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(encoded.length / 2);
+			bytes.write(encoded[0] | FLAG_DEFLATE);
+			byte[] buffer = new byte[1024];
+			while (!deflater.finished()) {
+				bytes.write(buffer, 0, deflater.deflate(buffer));
+			}
+			return bytes.toByteArray();
+		}
+		finally {
+			deflater.end();
+		}
+	}
+
+	private static byte[] inflate(byte[] bytes) {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(bytes, 1, bytes.length - 1);
+			ByteArrayOutputStream inflated = new ByteArrayOutputStream(bytes.length * 2);
+			byte[] buffer = new byte[1024];
+			while (!inflater.finished()) {
+				int count = inflater.inflate(buffer);
+				if (count == 0 && inflater.needsInput()) {
+					throw new SerializationFailedException("Truncated compressed session attribute");
+				}
+				inflated.write(buffer, 0, count);
+			}
+			return inflated.toByteArray();
+		}
+		catch (DataFormatException e) {
+			throw new SerializationFailedException("Failed to inflate session attribute", e);
+		}
+		finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Writes registered classes as an id instead of a full class descriptor.
+	 */
+	private class RegistryObjectOutputStream extends ObjectOutputStream {
+
+		RegistryObjectOutputStream(OutputStream out) throws IOException {
+			super(out);
+		}
+
+		@Override
+		protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+			Integer id = CompactSessionCodec.this.classIds.get(desc.forClass());
+			if (id != null) {
+				write(CLASS_REGISTERED);
+				writeShort(id);
+				writeLong(desc.getSerialVersionUID());
+			}
+			else {
+				write(CLASS_UNREGISTERED);
+				super.writeClassDescriptor(desc);
+			}
+		}
+	}
+
+	/**
+	 * Reads class descriptors written by {@link RegistryObjectOutputStream}.
+	 */
+	private class RegistryObjectInputStream extends ConfigurableObjectInputStream {
+
+		RegistryObjectInputStream(InputStream in, ClassLoader classLoader) throws IOException {
+			super(in, classLoader);
+		}
+
+		@Override
+		protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+			if (read() == CLASS_REGISTERED) {
+				int id = readUnsignedShort();
+				Class<?> type = CompactSessionCodec.this.classesById.get(id);
+				if (type == null) {
+					throw new ClassNotFoundException("No class registered for id " + id);
+				}
+				long serialVersionUID = readLong();
+				ObjectStreamClass desc = ObjectStreamClass.lookup(type);
+				if (desc.getSerialVersionUID() != serialVersionUID) {
+					throw new InvalidClassException(type.getName(), "stored serialVersionUID = "
+							+ serialVersionUID + ", local serialVersionUID = " + desc.getSerialVersionUID());
+				}
+				return desc;
+			}
+			return super.readClassDescriptor();
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike;
+
+/**
+ * Settings for publishing session expiry events, see
+ * {@link AerospikeOperationsSessionRepository#setExpirySweepPolicy(ExpirySweepPolicy)}.
+ * Like the Aerospike client policies the settings are public fields.
+ * <p>
+ * Every application node writing sessions must use the same
+ * {@code bucketSizeInSeconds} and {@code partitionRanges}, and the nodes sweeping
+ * them must agree on {@code nodeCount}. Nodes using the same {@code nodeIndex}
+ * share its ranges through a lease: one of them sweeps, and another one takes
+ * over when it stops. The defaults thus let every node run the sweep, with a
+ * single one sweeping at a time.
+ *
+ * @author Jeff Boone
+ * @since 2.0
+ */
+public class ExpirySweepPolicy {
+
+	/**
+	 * Time in milliseconds between two sweeps.
+	 */
+	public long intervalInMillis = 60000;
+
+	/**
+	 * Width in seconds of the time buckets sessions are indexed by. A session is
+	 * reported at most one bucket width plus one sweep interval after it expired.
+	 */
+	public int bucketSizeInSeconds = 60;
+
+	/**
+	 * Number of ranges the 4096 partitions of the session set are divided into.
+	 * Each range has its own bucket record per time bucket, which bounds the size
+	 * of those records. Must be a power of two no larger than 4096.
+	 */
+	public int partitionRanges = 64;
+
+	/**
+	 * Number of nodes sharing the sweep. The partition ranges whose number modulo
+	 * {@code nodeCount} is a {@code nodeIndex} are swept by the node holding the
+	 * lease of that index.
+	 */
+	public int nodeCount = 1;
+
+	/**
+	 * Index of this node among the {@code nodeCount} sweeping nodes, starting at 0,
+	 * or -1 to index sessions without sweeping on this node.
+	 */
+	public int nodeIndex = 0;
+
+	/**
+	 * How far back in seconds a node looks for buckets that were not swept when
+	 * it starts.
+	 */
+	public int maxLookbackInSeconds = 3600;
+
+	/**
+	 * Number of sweeps that try a failing bucket before it is skipped, so that a
+	 * bucket that keeps failing does not hold back the later ones.
+	 */
+	public int maxAttempts = 3;
+
+	/**
+	 * Maximum number of sessions whose expiry bins are read in one batch.
+	 */
+	public int batchSize = 1000;
+
+	public ExpirySweepPolicy() {
+	}
+
+	public ExpirySweepPolicy(ExpirySweepPolicy other) {
+		this.intervalInMillis = other.intervalInMillis;
+		this.bucketSizeInSeconds = other.bucketSizeInSeconds;
+		this.partitionRanges = other.partitionRanges;
+		this.nodeCount = other.nodeCount;
+		this.nodeIndex = other.nodeIndex;
+		this.maxLookbackInSeconds = other.maxLookbackInSeconds;
+		this.maxAttempts = other.maxAttempts;
+		this.batchSize = other.batchSize;
+	}
+}
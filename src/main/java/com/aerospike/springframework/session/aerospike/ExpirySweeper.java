@@ -0,0 +1,322 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.aerospike.client.Key;
+import com.aerospike.client.Operation;
+import com.aerospike.client.Record;
+import com.aerospike.client.Value;
+import com.aerospike.client.cdt.MapOperation;
+import com.aerospike.client.cdt.MapPolicy;
+import com.aerospike.client.cdt.MapReturnType;
+import com.aerospike.client.policy.WritePolicy;
+
+
+/**
+ * Finds sessions that expired through their record TTL and reports them, so that
+ * {@code SessionExpiredEvent}s can be published without scanning the namespace.
+ * <p>
+ * Every save that moves the expiry time of a session into another time bucket
+ * adds the session id to the bucket record of that time bucket and of the
+ * partition range of the session key, and removes it from the bucket record it
+ * was listed in before. A sweep reads the bucket records of the elapsed time
+ * buckets for the partition ranges owned by this node in one batch, then the
+ * expiry bins of the listed sessions in batches of {@code batchSize}. Sessions
+ * that no longer exist or have expired are reported, sessions that were extended
+ * since are skipped, and the bucket records are deleted. The work of a sweep is
+ * therefore proportional to the sessions that expire, not to the sessions that
+ * exist.
+ * <p>
+ * The nodes configured with the same {@code nodeIndex} share a {@link Lease}, and
+ * only its holder sweeps. Several nodes left with the default single sweeping
+ * node therefore do not report the same sessions, and when the holder stops
+ * another node takes its ranges over once the lease has expired.
+ *
+ * @author Jeff Boone
+ * @since 2.0
+ */
+class ExpirySweeper {
+
+	private static final Log logger = LogFactory.getLog(ExpirySweeper.class);
+
+	private static final int PARTITIONS = 4096;
+
+	/** sweep intervals without renewal after which the lease expires */
+	private static final int LEASE_INTERVALS = 3;
+
+	static final String BIN_NAME_SESSIONS = "sessions";
+
+	private final AerospikeOperationsSessionRepository repository;
+
+	private final ExpirySweepPolicy policy;
+
+	private final long bucketMillis;
+
+	private final int[] ownedRanges;
+
+	private final Lease lease;
+
+	private final ScheduledExecutorService executor;
+
+	private long nextBucket;
+
+	private int failedAttempts;
+
+	ExpirySweeper(AerospikeOperationsSessionRepository repository, ExpirySweepPolicy policy) {
+		if (policy.partitionRanges <= 0 || policy.partitionRanges > PARTITIONS
+				|| Integer.bitCount(policy.partitionRanges) != 1) {
+			throw new IllegalArgumentException("partitionRanges must be a power of two no larger than 4096");
+		}
+		if (policy.nodeCount <= 0 || policy.nodeIndex >= policy.nodeCount) {
+			throw new IllegalArgumentException("nodeIndex must be lower than nodeCount");
+		}
+		if (policy.batchSize <= 0) {
+			throw new IllegalArgumentException("batchSize must be positive");
+		}
+		this.repository = repository;
+		this.policy = new ExpirySweepPolicy(policy);
+		this.bucketMillis = TimeUnit.SECONDS.toMillis(this.policy.bucketSizeInSeconds);
+		List<Integer> owned = new ArrayList<Integer>();
+		for (int range = 0; range < this.policy.partitionRanges && this.policy.nodeIndex >= 0; range++) {
+			if (range % this.policy.nodeCount == this.policy.nodeIndex) {
+				owned.add(range);
+			}
+		}
+		this.ownedRanges = new int[owned.size()];
+		for (int i = 0; i < this.ownedRanges.length; i++) {
+			this.ownedRanges[i] = owned.get(i);
+		}
+		this.nextBucket = bucket(System.currentTimeMillis()
+				- TimeUnit.SECONDS.toMillis(this.policy.maxLookbackInSeconds));
+		if (this.ownedRanges.length == 0) {
+			this.lease = null;
+			this.executor = null;
+			return;
+		}
+		this.lease = new Lease(repository, "expiry-sweep:" + this.policy.nodeIndex + "/" + this.policy.nodeCount,
+				LEASE_INTERVALS * this.policy.intervalInMillis);
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "aerospike-session-expiry-sweep");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				sweep();
+			}
+		}, this.policy.intervalInMillis, this.policy.intervalInMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Adds the writes moving a session from the bucket record it was listed in by
+	 * its last save to the bucket record of its expiry time, unless both are the
+	 * same.
+	 */
+	void addIndexOperation(AerospikeExpiringSession session, Map<Key, Operation> operations) {
+		int range = range(session.getId());
+		long bucket = (session.getMaxInactiveIntervalInSeconds() >= 0) ? bucket(expireAt(session)) : -1;
+		int savedInterval = session.getSavedMaxInactiveIntervalInSeconds();
+		long savedBucket = (!session.isNew() && savedInterval >= 0) ? bucket(session.getSavedLastAccessedTime()
+				+ TimeUnit.SECONDS.toMillis(savedInterval)) : -1;
+		if (bucket == savedBucket) {
+			return;
+		}
+		if (savedBucket >= 0) {
+			operations.put(getBucketKey(savedBucket, range),
+					MapOperation.removeByKey(BIN_NAME_SESSIONS, Value.get(session.getId()), MapReturnType.NONE));
+		}
+		if (bucket >= 0) {
+			operations.put(getBucketKey(bucket, range), MapOperation.put(MapPolicy.Default,
+					BIN_NAME_SESSIONS, Value.get(session.getId()), Value.get(expireAt(session))));
+		}
+	}
+
+	/**
+	 * Returns the policy of a write to the bucket record with the given key.
+	 */
+	WritePolicy getBucketPolicy(Key bucketKey) {
+		String name = bucketKey.userKey.toString();
+		return getBucketPolicy(Long.parseLong(name.substring(0, name.indexOf(':'))) * this.bucketMillis);
+	}
+
+	/**
+	 * Returns the policy of a write to the bucket record of an expiry time. The
+	 * record expires once its bucket has elapsed for {@code maxLookbackInSeconds},
+	 * so that buckets no node sweeps do not pile up.
+	 */
+	private WritePolicy getBucketPolicy(long expireAt) {
+		long bucketEnd = (bucket(expireAt) + 1) * this.bucketMillis;
+		long expiration = TimeUnit.MILLISECONDS.toSeconds(bucketEnd - System.currentTimeMillis())
+				+ this.policy.maxLookbackInSeconds;
+		WritePolicy policy = new WritePolicy(this.repository.principalPolicy);
+		policy.expiration = (int) Math.max(1, expiration);
+		return policy;
+	}
+
+	private static long expireAt(AerospikeExpiringSession session) {
+		return session.getLastAccessedTime() + TimeUnit.SECONDS.toMillis(session.getMaxInactiveIntervalInSeconds());
+	}
+
+	/**
+	 * Removes a deleted session from the bucket record of its expiry time, so that
+	 * it is not reported as expired.
+	 */
+	void remove(String id, long expireAt) {
+		this.repository.aerospikeClient.operate(getBucketPolicy(expireAt), getBucketKey(id, expireAt),
+				MapOperation.removeByKey(BIN_NAME_SESSIONS, Value.get(id), MapReturnType.NONE));
+	}
+
+	/**
+	 * Returns the key of the bucket record listing a session with the given expiry
+	 * time.
+	 */
+	Key getBucketKey(String id, long expireAt) {
+		return getBucketKey(bucket(expireAt), range(id));
+	}
+
+	/**
+	 * Sweeps all elapsed buckets that were not swept yet. A bucket that fails is
+	 * retried by the next sweep, up to {@code maxAttempts} times, after which it
+	 * is skipped so that the later buckets are still swept.
+	 */
+	synchronized void sweep() {
+		try {
+			if (!this.lease.acquire()) {
+				return;
+			}
+		}
+		catch (RuntimeException e) {
+			logger.error("Failed to acquire the expiry sweep lease", e);
+			return;
+		}
+		long now = System.currentTimeMillis();
+		long lastElapsed = bucket(now) - 1;
+		this.nextBucket = Math.max(this.nextBucket,
+				bucket(now - TimeUnit.SECONDS.toMillis(this.policy.maxLookbackInSeconds)));
+		for (; this.nextBucket <= lastElapsed; this.nextBucket++) {
+			try {
+				sweep(this.nextBucket, now);
+				this.failedAttempts = 0;
+			}
+			catch (RuntimeException e) {
+				if (++this.failedAttempts < this.policy.maxAttempts) {
+					logger.warn("Failed to sweep expired sessions of bucket " + this.nextBucket
+							+ ", retrying on the next sweep", e);
+					return;
+				}
+				logger.error("Failed to sweep expired sessions of bucket " + this.nextBucket
+						+ " " + this.failedAttempts + " times, skipping it", e);
+				this.failedAttempts = 0;
+			}
+		}
+	}
+
+	private void sweep(long bucket, long now) {
+		Key[] bucketKeys = new Key[this.ownedRanges.length];
+		for (int i = 0; i < bucketKeys.length; i++) {
+			bucketKeys[i] = getBucketKey(bucket, this.ownedRanges[i]);
+		}
+		Record[] buckets = this.repository.aerospikeClient.get(this.repository.batchPolicy, bucketKeys,
+				BIN_NAME_SESSIONS);
+		Map<String, Long> listed = new LinkedHashMap<String, Long>();
+		for (Record record : buckets) {
+			Map<?, ?> sessions = (record != null) ? record.getMap(BIN_NAME_SESSIONS) : null;
+			if (sessions != null) {
+				for (Map.Entry<?, ?> entry : sessions.entrySet()) {
+					listed.put((String) entry.getKey(), ((Number) entry.getValue()).longValue());
+				}
+			}
+		}
+		List<String> ids = new ArrayList<String>(listed.keySet());
+		for (int from = 0; from < ids.size(); from += this.policy.batchSize) {
+			sweep(ids.subList(from, Math.min(from + this.policy.batchSize, ids.size())), listed, now);
+		}
+		for (int i = 0; i < buckets.length; i++) {
+			if (buckets[i] != null) {
+				this.repository.aerospikeClient.delete(this.repository.deletePolicy, bucketKeys[i]);
+			}
+		}
+	}
+
+	/**
+	 * Reads the expiry bins of one batch of listed sessions and reports those that
+	 * expired. A missing session is only reported if the expiry time it was
+	 * listed with has passed, as it was deleted otherwise.
+	 */
+	private void sweep(List<String> ids, Map<String, Long> listed, long now) {
+		Key[] keys = new Key[ids.size()];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = this.repository.getKey(ids.get(i));
+		}
+		Record[] records = this.repository.getExpiryRecords(keys);
+		for (int i = 0; i < records.length; i++) {
+			if (records[i] == null) {
+				if (listed.get(ids.get(i)) < now) {
+					this.repository.expired(ids.get(i));
+				}
+			}
+			else if (this.repository.isExpired(records[i], now)) {
+				this.repository.deleteExpired(ids.get(i));
+			}
+		}
+	}
+
+	private long bucket(long time) {
+		return time / this.bucketMillis;
+	}
+
+	/**
+	 * Returns the partition range of the session key, derived from the partition
+	 * the same way as the client does.
+	 */
+	private int range(String id) {
+		byte[] digest = this.repository.getKey(id).digest;
+		int partition = ((digest[0] & 0xff) | ((digest[1] & 0xff) << 8)) % PARTITIONS;
+		return partition / (PARTITIONS / this.policy.partitionRanges);
+	}
+
+	private Key getBucketKey(long bucket, int range) {
+		return this.repository.getExpiryKey(bucket + ":" + range);
+	}
+
+	void shutdown() {
+		if (this.executor != null) {
+			this.executor.shutdownNow();
+		}
+		if (this.lease != null) {
+			try {
+				this.lease.release();
+			}
+			catch (RuntimeException e) {
+				logger.debug("Failed to release the expiry sweep lease", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.IAerospikeClient;
+import com.aerospike.client.Key;
+import com.aerospike.client.Record;
+import com.aerospike.client.policy.Policy;
+import com.aerospike.springframework.session.aerospike.SessionRepositoryMetrics.OperationType;
+
+
+/**
+ * Reads session records from a second cluster when the cluster of the repository
+ * does not have them or cannot be reached, for instance a cluster in another data
+ * center kept in sync through cross-datacenter replication.
+ * <p>
+ * Without a hedge delay the fallback cluster is read after the primary read
+ * missed or failed. With a hedge delay the primary read runs on a pool thread, and
+ * the fallback read is started as well once the primary read has not completed
+ * within the delay; the first record found is returned. When all threads of the
+ * bounded pool are busy, the reads are done one after the other as without a
+ * hedge delay. A session is missing when one of the reads found no record and
+ * the other found none or failed; when both reads fail, the first failure is
+ * thrown. Only session reads go to the fallback cluster, all writes go to the
+ * primary one.
+ *
+ * @author Jeff Boone
+ * @since 2.0
+ */
+final class FallbackReader {
+
+	private static final Log logger = LogFactory.getLog(FallbackReader.class);
+
+	/** bound of the pool running hedged reads, each read using up to two threads */
+	private static final int MAX_HEDGE_THREADS = 64;
+
+	private final AerospikeOperationsSessionRepository repository;
+
+	private final IAerospikeClient fallbackClient;
+
+	private final long hedgeDelayInMillis;
+
+	private final ExecutorService executor;
+
+	FallbackReader(AerospikeOperationsSessionRepository repository, IAerospikeClient fallbackClient,
+			long hedgeDelayInMillis) {
+		this.repository = repository;
+		this.fallbackClient = fallbackClient;
+		this.hedgeDelayInMillis = hedgeDelayInMillis;
+		if (hedgeDelayInMillis <= 0) {
+			this.executor = null;
+			return;
+		}
+		this.executor = new ThreadPoolExecutor(0, MAX_HEDGE_THREADS, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "aerospike-session-hedge");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Reads the record from the primary cluster, and from the fallback cluster if
+	 * the primary read misses, fails or is slower than the hedge delay.
+	 *
+	 * @return the record, or {@code null} if the session does not exist
+	 */
+	Record get(Policy policy, Key key) {
+		if (this.executor == null) {
+			return getSequential(policy, key);
+		}
+		return getHedged(policy, key);
+	}
+
+	private Record getSequential(Policy policy, Key key) {
+		Record record;
+		try {
+			record = this.repository.aerospikeClient.get(policy, key);
+		}
+		catch (AerospikeException e) {
+			logger.debug("Primary read failed, reading the fallback cluster", e);
+			return readFallback(policy, key, e);
+		}
+		if (record != null) {
+			return record;
+		}
+		return readFallback(policy, key, null);
+	}
+
+	/**
+	 * Reads the fallback cluster after the primary read missed or failed. If the
+	 * fallback read fails as well, the session is missing when the primary read
+	 * missed, and the failure of the primary read is thrown otherwise.
+	 *
+	 * @param primaryFailure the failure of the primary read, or {@code null} if
+	 * it missed
+	 */
+	private Record readFallback(Policy policy, Key key, AerospikeException primaryFailure) {
+		recordFallback();
+		try {
+			return this.fallbackClient.get(policy, key);
+		}
+		catch (AerospikeException e) {
+			if (primaryFailure == null) {
+				logger.debug("Fallback read failed after the primary read missed", e);
+				return null;
+			}
+			primaryFailure.addSuppressed(e);
+			throw primaryFailure;
+		}
+	}
+
+	/**
+	 * Runs the reads on the pool. When the pool is saturated the reads are done
+	 * one after the other on the calling thread instead.
+	 */
+	private Record getHedged(Policy policy, Key key) {
+		CompletionService<Record> reads = new ExecutorCompletionService<Record>(this.executor);
+		Future<Record> primary;
+		try {
+			primary = reads.submit(read(this.repository.aerospikeClient, policy, key));
+		}
+		catch (RejectedExecutionException e) {
+			return getSequential(policy, key);
+		}
+		int pending = 1;
+		boolean fallbackStarted = false;
+		boolean missed = false;
+		AerospikeException failure = null;
+		try {
+			Future<Record> done = reads.poll(this.hedgeDelayInMillis, TimeUnit.MILLISECONDS);
+			while (true) {
+				if (done == null) {
+					// the primary read is slower than the hedge delay
+					try {
+						reads.submit(read(this.fallbackClient, policy, key));
+					}
+					catch (RejectedExecutionException e) {
+						return getAfter(primary, policy, key);
+					}
+					recordFallback();
+					fallbackStarted = true;
+					pending++;
+					done = reads.take();
+				}
+				pending--;
+				try {
+					Record record = done.get();
+					if (record != null) {
+						return record;
+					}
+					missed = true;
+				}
+				catch (ExecutionException e) {
+					if (e.getCause() instanceof Error) {
+						throw (Error) e.getCause();
+					}
+					if (!(e.getCause() instanceof AerospikeException)) {
+						throw (RuntimeException) e.getCause();
+					}
+					if (failure == null) {
+						failure = (AerospikeException) e.getCause();
+					}
+				}
+				if (!fallbackStarted) {
+					done = null;
+					continue;
+				}
+				if (pending == 0) {
+					break;
+				}
+				done = reads.take();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AerospikeException(e);
+		}
+		if (missed) {
+			return null;
+		}
+		throw failure;
+	}
+
+	/**
+	 * Waits for the primary read and reads the fallback cluster after it if it
+	 * missed or failed.
+	 */
+	private Record getAfter(Future<Record> primary, Policy policy, Key key) throws InterruptedException {
+		try {
+			Record record = primary.get();
+			return (record != null) ? record : readFallback(policy, key, null);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			if (!(e.getCause() instanceof AerospikeException)) {
+				throw (RuntimeException) e.getCause();
+			}
+			return readFallback(policy, key, (AerospikeException) e.getCause());
+		}
+	}
+
+	private static Callable<Record> read(final IAerospikeClient client, final Policy policy, final Key key) {
+		return new Callable<Record>() {
+
+			public Record call() {
+				return client.get(policy, key);
+			}
+		};
+	}
+
+	private void recordFallback() {
+		if (this.repository.metrics != null) {
+			this.repository.metrics.recordRetry(OperationType.GET);
+		}
+	}
+
+	void shutdown() {
+		if (this.executor != null) {
+			this.executor.shutdownNow();
+		}
+	}
+}
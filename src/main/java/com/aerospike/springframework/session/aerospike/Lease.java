@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+import com.aerospike.client.Record;
+import com.aerospike.client.ResultCode;
+import com.aerospike.client.policy.GenerationPolicy;
+import com.aerospike.client.policy.RecordExistsAction;
+import com.aerospike.client.policy.WritePolicy;
+
+
+/**
+ * Lease on a background task shared by the application nodes, so that a single
+ * node runs it at a time. The lease is a record of the expiry set holding the id
+ * of its owner, which expires after the lease duration. The owner renews it every
+ * time it runs the task, and another node claims it once it has expired, or once
+ * its owner stopped. Claims and renewals are generation checked, so two nodes
+ * never both hold the lease.
+ *
+ * @author Jeff Boone
+ * @since 2.0
+ */
+final class Lease {
+
+	private static final String BIN_NAME_OWNER = "owner";
+
+	private final AerospikeOperationsSessionRepository repository;
+
+	private final Key key;
+
+	private final String owner = UUID.randomUUID().toString();
+
+	private final int durationInSeconds;
+
+	Lease(AerospikeOperationsSessionRepository repository, String name, long durationInMillis) {
+		this.repository = repository;
+		this.key = repository.getExpiryKey("lease:" + name);
+		this.durationInSeconds = (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(durationInMillis));
+	}
+
+	/**
+	 * Claims the lease if no node holds it, or renews it if this node does.
+	 *
+	 * @return true if this node holds the lease for the lease duration
+	 */
+	boolean acquire() {
+		Record record = this.repository.aerospikeClient.get(this.repository.readPolicy, this.key, BIN_NAME_OWNER);
+		WritePolicy policy = new WritePolicy(this.repository.principalPolicy);
+		policy.expiration = this.durationInSeconds;
+		if (record == null) {
+			policy.recordExistsAction = RecordExistsAction.CREATE_ONLY;
+		}
+		else if (this.owner.equals(record.getString(BIN_NAME_OWNER))) {
+			policy.generationPolicy = GenerationPolicy.EXPECT_GEN_EQUAL;
+			policy.generation = record.generation;
+		}
+		else {
+			return false;
+		}
+		try {
+			this.repository.aerospikeClient.put(policy, this.key, new Bin(BIN_NAME_OWNER, this.owner));
+			return true;
+		}
+		catch (AerospikeException e) {
+			if (e.getResultCode() == ResultCode.KEY_EXISTS_ERROR
+					|| e.getResultCode() == ResultCode.GENERATION_ERROR) {
+				return false;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Gives the lease up if this node holds it, so that another node can claim it
+	 * without waiting for it to expire.
+	 */
+	void release() {
+		Record record = this.repository.aerospikeClient.get(this.repository.readPolicy, this.key, BIN_NAME_OWNER);
+		if (record != null && this.owner.equals(record.getString(BIN_NAME_OWNER))) {
+			WritePolicy policy = new WritePolicy(this.repository.deletePolicy);
+			policy.generationPolicy = GenerationPolicy.EXPECT_GEN_EQUAL;
+			policy.generation = record.generation;
+			try {
+				this.repository.aerospikeClient.delete(policy, this.key);
+			}
+			catch (AerospikeException e) {
+				if (e.getResultCode() != ResultCode.GENERATION_ERROR) {
+					throw e;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import com.aerospike.client.ResultCode;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+
+
+/**
+ * {@link SessionRepositoryMetrics} publishing to a Micrometer {@link MeterRegistry}.
+ * All meters on the request path are created up front, so recording a
+ * measurement does not look up or allocate meters. Failures are counted by
+ * result code on first occurrence, with failures outside the client and the
+ * codec counted as {@code unknown}.
+ * <p>
+ * Meters are named {@code spring.session.aerospike.*} and tagged with the
+ * {@code operation} they belong to. Timers and distribution summaries publish
+ * the 50th, 95th and 99th percentiles. Micrometer requires Java 8, so it is an
+ * optional dependency of this library.
+ *
+ * @author Jeff Boone
+ * @since 2.0
+ */
+public class MicrometerSessionRepositoryMetrics implements SessionRepositoryMetrics {
+
+	static final String PREFIX = "spring.session.aerospike.";
+
+	private final MeterRegistry registry;
+	private final Timer[] successTimers;
+	private final Timer[] failureTimers;
+	private final Counter[] timeoutCounters;
+	private final Counter[] retryCounters;
+	private final Counter[] conflictCounters;
+	private final DistributionSummary writeBytes;
+	private final DistributionSummary writeAttributes;
+	private final DistributionSummary readBytes;
+	private final DistributionSummary readAttributes;
+	private final Counter nearCacheHits;
+	private final Counter nearCacheMisses;
+	private final Counter expiredOnRead;
+	// Micrometer only holds gauge values weakly
+	private final List<GaugeValue> gauges = new CopyOnWriteArrayList<GaugeValue>();
+
+	public MicrometerSessionRepositoryMetrics(MeterRegistry registry) {
+		this.registry = registry;
+		registry.config().meterFilter(new MeterFilter() {
+
+			public DistributionStatisticConfig configure(Meter.Id id, DistributionStatisticConfig config) {
+				if (!id.getName().startsWith(PREFIX)) {
+					return config;
+				}
+				return DistributionStatisticConfig.builder()
+						.percentiles(0.5, 0.95, 0.99)
+						.build()
+						.merge(config);
+			}
+		});
+		OperationType[] types = OperationType.values();
+		this.successTimers = new Timer[types.length];
+		this.failureTimers = new Timer[types.length];
+		this.timeoutCounters = new Counter[types.length];
+		this.retryCounters = new Counter[types.length];
+		this.conflictCounters = new Counter[types.length];
+		for (OperationType type : types) {
+			this.successTimers[type.ordinal()] = timer(type, "success");
+			this.failureTimers[type.ordinal()] = timer(type, "failure");
+			this.timeoutCounters[type.ordinal()] = registry.counter(PREFIX + "timeouts",
+					"operation", tag(type));
+			this.retryCounters[type.ordinal()] = registry.counter(PREFIX + "retries",
+					"operation", tag(type));
+			this.conflictCounters[type.ordinal()] = registry.counter(PREFIX + "conflicts",
+					"operation", tag(type));
+		}
+		this.writeBytes = registry.summary(PREFIX + "session.bytes", "direction", "write");
+		this.writeAttributes = registry.summary(PREFIX + "session.attributes", "direction", "write");
+		this.readBytes = registry.summary(PREFIX + "session.bytes", "direction", "read");
+		this.readAttributes = registry.summary(PREFIX + "session.attributes", "direction", "read");
+		this.nearCacheHits = registry.counter(PREFIX + "nearcache.lookups", "result", "hit");
+		this.nearCacheMisses = registry.counter(PREFIX + "nearcache.lookups", "result", "miss");
+		this.expiredOnRead = registry.counter(PREFIX + "expired.reads");
+	}
+
+	private Timer timer(OperationType type, String outcome) {
+		return this.registry.timer(PREFIX + "operations", "operation", tag(type), "outcome", outcome);
+	}
+
+	private static String tag(OperationType type) {
+		return type.name().toLowerCase(Locale.ROOT);
+	}
+
+	public void recordOperation(OperationType type, long durationInNanos, int resultCode) {
+		if (resultCode == ResultCode.OK) {
+			this.successTimers[type.ordinal()].record(durationInNanos, TimeUnit.NANOSECONDS);
+			return;
+		}
+		this.failureTimers[type.ordinal()].record(durationInNanos, TimeUnit.NANOSECONDS);
+		if (resultCode == ResultCode.TIMEOUT) {
+			this.timeoutCounters[type.ordinal()].increment();
+		}
+		this.registry.counter(PREFIX + "errors", "operation", tag(type), "result",
+				(resultCode == UNKNOWN_ERROR) ? "unknown" : String.valueOf(resultCode)).increment();
+	}
+
+	public void recordRetry(OperationType type) {
+		this.retryCounters[type.ordinal()].increment();
+	}
+
+	public void recordConflict(OperationType type) {
+		this.conflictCounters[type.ordinal()].increment();
+	}
+
+	public void recordWrite(int attributeCount, int serializedBytes) {
+		this.writeAttributes.record(attributeCount);
+		this.writeBytes.record(serializedBytes);
+	}
+
+	public void recordRead(int attributeCount, int serializedBytes) {
+		this.readAttributes.record(attributeCount);
+		this.readBytes.record(serializedBytes);
+	}
+
+	public void recordNearCacheLookup(boolean hit) {
+		(hit ? this.nearCacheHits : this.nearCacheMisses).increment();
+	}
+
+	public void recordExpiredOnRead() {
+		this.expiredOnRead.increment();
+	}
+
+	public void registerGauge(String name, Gauge gauge) {
+		GaugeValue value = new GaugeValue(gauge);
+		this.gauges.add(value);
+		this.registry.gauge(PREFIX + name, value);
+	}
+
+	/**
+	 * Number sampled by Micrometer each time the gauge is published.
+	 */
+	private static final class GaugeValue extends Number {
+		private static final long serialVersionUID = 1L;
+
+		private final Gauge gauge;
+
+		GaugeValue(Gauge gauge) {
+			this.gauge = gauge;
+		}
+
+		@Override
+		public double doubleValue() {
+			return this.gauge.value();
+		}
+
+		@Override
+		public float floatValue() {
+			return (float) doubleValue();
+		}
+
+		@Override
+		public long longValue() {
+			return (long) doubleValue();
+		}
+
+		@Override
+		public int intValue() {
+			return (int) doubleValue();
+		}
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Info;
+import com.aerospike.client.ResultCode;
+import com.aerospike.client.cluster.Node;
+import com.aerospike.client.query.IndexType;
+
+
+/**
+ * Creates the secondary index on the principal bin in the background and tracks
+ * its build progress, so that startup does not wait for the index to be built
+ * on a large namespace.
+ * <p>
+ * Each namespace is first asked for the index on every node, and the index is
+ * only created where it is missing. The load percentage reported by the nodes is
+ * then polled until the index is complete on all of them; until then
+ * {@link #isReady()} is false and the repository finds sessions by principal
+ * with a scan instead of a query, which would miss the sessions not indexed yet.
+ * Failures, such as a cluster that is not reachable yet, are logged and the
+ * build is retried at the next poll.
+ *
+ * @author Jeff Boone
+ * @since 2.0
+ */
+final class PrincipalIndexBuilder {
+
+	private static final Log logger = LogFactory.getLog(PrincipalIndexBuilder.class);
+
+	private static final long POLL_INTERVAL_MILLIS = 1000;
+
+	private static final int INDEX_MISSING = -1;
+
+	private final AerospikeOperationsSessionRepository repository;
+
+	private final List<String> namespaces;
+
+	private final String indexName;
+
+	private final String binName;
+
+	private final ScheduledExecutorService executor;
+
+	private volatile int loadPercent;
+
+	PrincipalIndexBuilder(AerospikeOperationsSessionRepository repository, List<String> namespaces,
+			String indexName, String binName) {
+		this.repository = repository;
+		this.namespaces = namespaces;
+		this.indexName = indexName;
+		this.binName = binName;
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "aerospike-session-index");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	void start() {
+		this.executor.execute(new Runnable() {
+			public void run() {
+				build();
+			}
+		});
+	}
+
+	/**
+	 * Returns true once the index is complete on every node of every namespace.
+	 */
+	boolean isReady() {
+		return this.loadPercent == 100;
+	}
+
+	/**
+	 * Returns the lowest load percentage of the index over all nodes and namespaces,
+	 * or 0 while it is missing.
+	 */
+	int getLoadPercent() {
+		return this.loadPercent;
+	}
+
+	private void build() {
+		int lowest = 100;
+		try {
+			for (String namespace : this.namespaces) {
+				int percent = queryLoadPercent(namespace);
+				if (percent == INDEX_MISSING) {
+					create(namespace);
+					percent = 0;
+				}
+				lowest = Math.min(lowest, percent);
+			}
+		}
+		catch (RuntimeException e) {
+			logger.warn("Failed to build index " + this.indexName + ", retrying", e);
+			lowest = 0;
+		}
+		this.loadPercent = lowest;
+		if (lowest == 100) {
+			logger.info("Index " + this.indexName + " is ready");
+			this.executor.shutdown();
+			return;
+		}
+		if (logger.isDebugEnabled()) {
+			logger.debug("Index " + this.indexName + " is " + lowest + "% built");
+		}
+		this.executor.schedule(new Runnable() {
+			public void run() {
+				build();
+			}
+		}, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	private void create(String namespace) {
+		logger.info("Creating index " + this.indexName + " in namespace " + namespace);
+		try {
+			this.repository.aerospikeClient.createIndex(null, namespace, this.repository.getSetName(),
+					this.indexName, this.binName, IndexType.STRING);
+		}
+		catch (AerospikeException e) {
+			if (e.getResultCode() != ResultCode.INDEX_FOUND) {
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Returns the lowest load percentage of the index over the nodes, or
+	 * {@link #INDEX_MISSING} if a node does not know the index.
+	 */
+	private int queryLoadPercent(String namespace) {
+		Node[] nodes = this.repository.aerospikeClient.getNodes();
+		if (nodes == null || nodes.length == 0) {
+			throw new AerospikeException(ResultCode.SERVER_NOT_AVAILABLE, "Cluster is empty");
+		}
+		String command = "sindex/" + namespace + '/' + this.indexName;
+		int lowest = 100;
+		for (Node node : nodes) {
+			int percent = parseLoadPercent(Info.request(node, command));
+			if (percent == INDEX_MISSING) {
+				return INDEX_MISSING;
+			}
+			lowest = Math.min(lowest, percent);
+		}
+		return lowest;
+	}
+
+	/**
+	 * Parses the load percentage from the response to a {@code sindex} info
+	 * command. Servers that do not report it only list complete indexes.
+	 */
+	static int parseLoadPercent(String response) {
+		if (response == null || response.isEmpty() || response.startsWith("FAIL")
+				|| response.startsWith("ERROR")) {
+			return INDEX_MISSING;
+		}
+		String field = "load_pct=";
+		int begin = response.indexOf(field);
+		if (begin < 0) {
+			return 100;
+		}
+		begin += field.length();
+		int end = begin;
+		while (end < response.length() && Character.isDigit(response.charAt(end))) {
+			end++;
+		}
+		return (end > begin) ? Integer.parseInt(response.substring(begin, end)) : 100;
+	}
+
+	void shutdown() {
+		this.executor.shutdownNow();
+	}
+}
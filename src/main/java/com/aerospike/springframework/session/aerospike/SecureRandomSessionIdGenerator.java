@@ -0,0 +1,113 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+
+/**
+ * {@link SessionIdGenerator} creating ids from 128 random bits, encoded as 22
+ * URL-safe Base64 characters instead of the 36 characters of a random UUID.
+ * <p>
+ * Random bytes are drawn from a number of {@link SecureRandom} stripes, chosen
+ * by thread, each of which refills a buffer many ids at a time. Threads creating
+ * sessions at the same time therefore rarely contend for the same generator, and
+ * the cost of the generator is paid once per buffer rather than once per id.
+ *
+ * @author Jeff Boone
+ * @since 2.0
+ */
+public class SecureRandomSessionIdGenerator implements SessionIdGenerator {
+
+	private static final int ID_BYTES = 16;
+
+	private static final int IDS_PER_BUFFER = 32;
+
+	private static final char[] ALPHABET =
+			"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+	private final Stripe[] stripes;
+
+	public SecureRandomSessionIdGenerator() {
+		this(Runtime.getRuntime().availableProcessors() * 2);
+	}
+
+	/**
+	 * @param concurrency the number of threads expected to create sessions at the
+	 * same time, rounded up to a power of two stripes
+	 */
+	public SecureRandomSessionIdGenerator(int concurrency) {
+		if (concurrency <= 0) {
+			throw new IllegalArgumentException("concurrency must be positive");
+		}
+		int count = Integer.highestOneBit(concurrency);
+		if (count < concurrency) {
+			count <<= 1;
+		}
+		this.stripes = new Stripe[count];
+		for (int i = 0; i < count; i++) {
+			this.stripes[i] = new Stripe();
+		}
+	}
+
+	public String generateId() {
+		byte[] bytes = new byte[ID_BYTES];
+		int hash = (int) Thread.currentThread().getId() * 0x9e3779b9;
+		this.stripes[(hash >>> 16) & (this.stripes.length - 1)].next(bytes);
+		return encode(bytes);
+	}
+
+	/**
+	 * Encodes 16 bytes as URL-safe Base64 without padding.
+	 */
+	static String encode(byte[] bytes) {
+		char[] chars = new char[22];
+		int c = 0;
+		int i = 0;
+		for (; i < 15; i += 3) {
+			int bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+			chars[c++] = ALPHABET[bits >>> 18];
+			chars[c++] = ALPHABET[(bits >>> 12) & 0x3f];
+			chars[c++] = ALPHABET[(bits >>> 6) & 0x3f];
+			chars[c++] = ALPHABET[bits & 0x3f];
+		}
+		int last = bytes[i] & 0xff;
+		chars[c++] = ALPHABET[last >>> 2];
+		chars[c] = ALPHABET[(last & 0x3) << 4];
+		return new String(chars);
+	}
+
+	/**
+	 * A generator and a buffer of its random bytes, guarded by its own monitor.
+	 */
+	private static final class Stripe {
+		private final SecureRandom random = new SecureRandom();
+		private final byte[] buffer = new byte[ID_BYTES * IDS_PER_BUFFER];
+		private int position = this.buffer.length;
+
+		synchronized void next(byte[] bytes) {
+			if (this.position == this.buffer.length) {
+				this.random.nextBytes(this.buffer);
+				this.position = 0;
+			}
+			System.arraycopy(this.buffer, this.position, bytes, 0, bytes.length);
+			// bytes handed out are not kept around
+			Arrays.fill(this.buffer, this.position, this.position + bytes.length, (byte) 0);
+			this.position += bytes.length;
+		}
+	}
+}
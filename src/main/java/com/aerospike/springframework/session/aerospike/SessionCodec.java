@@ -0,0 +1,48 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike;
+
+/**
+ * Strategy used by {@link AerospikeOperationsSessionRepository} to turn session
+ * attribute values into the bytes stored in the session record and back.
+ * Implementations must be thread safe.
+ *
+ * @author Jeff Boone
+ * @since 2.0
+ * @see CompactSessionCodec
+ */
+public interface SessionCodec {
+
+	/**
+	 * Encodes a non-null attribute value.
+	 *
+	 * @param value the attribute value
+	 * @return the encoded value
+	 * @throws org.springframework.core.serializer.support.SerializationFailedException
+	 * if the value cannot be encoded
+	 */
+	byte[] encode(Object value);
+
+	/**
+	 * Decodes an attribute value previously produced by {@link #encode(Object)}.
+	 *
+	 * @param bytes the encoded value
+	 * @return the attribute value
+	 * @throws org.springframework.core.serializer.support.SerializationFailedException
+	 * if the value cannot be decoded
+	 */
+	Object decode(byte[] bytes);
+}
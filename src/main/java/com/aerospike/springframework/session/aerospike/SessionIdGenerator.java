@@ -0,0 +1,35 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike;
+
+/**
+ * Strategy used by {@link AerospikeOperationsSessionRepository} to create the
+ * ids of new sessions, which are also the keys of the session records.
+ * Implementations must be thread safe and return ids that cannot be guessed.
+ *
+ * @author Jeff Boone
+ * @since 2.0
+ * @see SecureRandomSessionIdGenerator
+ */
+public interface SessionIdGenerator {
+
+	/**
+	 * Creates a new session id.
+	 *
+	 * @return the id
+	 */
+	String generateId();
+}
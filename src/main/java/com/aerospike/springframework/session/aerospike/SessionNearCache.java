@@ -0,0 +1,204 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Bounded in-process cache of sessions that sits in front of
+ * {@link AerospikeOperationsSessionRepository}.
+ * <p>
+ * Every entry remembers the generation of the record it was read from or written
+ * to. On a hit the repository only reads the record header and reuses the cached
+ * session if the generation is unchanged. Within the optional trust interval after
+ * an entry was last validated the header read is skipped as well, which is safe for
+ * deployments with sticky sessions. Entries are evicted least recently used first
+ * once the maximum size is reached, and dropped once they are older than the time
+ * to live.
+ * <p>
+ * Attribute values of a cached session are shared by the sessions handed out for
+ * it, so they should not be modified in place.
+ *
+ * @author Jeff Boone
+ * @since 2.0
+ */
+public class SessionNearCache {
+
+	/**
+	 * The default number of sessions kept in the cache.
+	 */
+	public static final int DEFAULT_MAX_SIZE = 10000;
+
+	/**
+	 * The default time in seconds a session is kept in the cache.
+	 */
+	public static final int DEFAULT_TIME_TO_LIVE = 300;
+
+	private static final int SEGMENTS = 16;
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+
+	private long timeToLiveInMillis = TimeUnit.SECONDS.toMillis(DEFAULT_TIME_TO_LIVE);
+
+	private long trustIntervalInMillis = 0;
+
+	public SessionNearCache() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	public SessionNearCache(int maxSize) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("maxSize must be positive");
+		}
+		int segmentSize = Math.max(1, maxSize / SEGMENTS);
+		for (int i = 0; i < SEGMENTS; i++) {
+			this.segments[i] = new Segment(segmentSize);
+		}
+	}
+
+	/**
+	 * Sets how long a session stays in the cache after it was stored.
+	 *
+	 * @param timeToLiveInSeconds the time to live, must be positive
+	 */
+	public void setTimeToLiveInSeconds(int timeToLiveInSeconds) {
+		if (timeToLiveInSeconds < 1) {
+			throw new IllegalArgumentException("timeToLiveInSeconds must be positive");
+		}
+		this.timeToLiveInMillis = TimeUnit.SECONDS.toMillis(timeToLiveInSeconds);
+	}
+
+	/**
+	 * Sets how long after its last validation a cached session is used without
+	 * checking the record generation. The default of 0 checks on every read.
+	 *
+	 * @param trustIntervalInMillis the trust interval in milliseconds
+	 */
+	public void setTrustIntervalInMillis(long trustIntervalInMillis) {
+		this.trustIntervalInMillis = trustIntervalInMillis;
+	}
+
+	Entry get(String id) {
+		return segmentFor(id).get(id, System.currentTimeMillis() - this.timeToLiveInMillis);
+	}
+
+	/**
+	 * Stores a snapshot of the session. A generation of 0 means the generation of
+	 * the stored record is not known, so the entry will not pass validation.
+	 */
+	void put(AerospikeExpiringSession session, int generation) {
+		segmentFor(session.getId()).put(session.getId(),
+				new Entry(session.copy(), generation, System.currentTimeMillis()));
+	}
+
+	void remove(String id) {
+		segmentFor(id).remove(id);
+	}
+
+	/**
+	 * Returns the number of cached sessions.
+	 */
+	int size() {
+		int size = 0;
+		for (Segment segment : this.segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	boolean isTrusted(Entry entry) {
+		return System.currentTimeMillis() - entry.validatedAt < this.trustIntervalInMillis;
+	}
+
+	private Segment segmentFor(String id) {
+		int hash = id.hashCode();
+		return this.segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+	}
+
+	/**
+	 * A cached session together with the generation of its record.
+	 */
+	static final class Entry {
+		private final AerospikeExpiringSession session;
+		final int generation;
+		final long storedAt;
+		volatile long validatedAt;
+
+		Entry(AerospikeExpiringSession session, int generation, long storedAt) {
+			this.session = session;
+			this.generation = generation;
+			this.storedAt = storedAt;
+			this.validatedAt = storedAt;
+		}
+
+		/**
+		 * Returns a private copy of the cached session for a single request.
+		 */
+		AerospikeExpiringSession getSession() {
+			return this.session.copy();
+		}
+
+		void validated() {
+			this.validatedAt = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Least recently used map guarded by its own lock.
+	 */
+	private static final class Segment {
+		private final Map<String, SessionNearCache.Entry> entries;
+
+		Segment(final int maxSize) {
+			this.entries = new LinkedHashMap<String, SessionNearCache.Entry>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, SessionNearCache.Entry> eldest) {
+					return size() > maxSize;
+				}
+			};
+		}
+
+		/**
+		 * Returns the entry of the session, or drops it if it was stored before
+		 * {@code expiredBefore}.
+		 */
+		synchronized SessionNearCache.Entry get(String id, long expiredBefore) {
+			SessionNearCache.Entry entry = this.entries.get(id);
+			if (entry != null && entry.storedAt <= expiredBefore) {
+				this.entries.remove(id);
+				return null;
+			}
+			return entry;
+		}
+
+		synchronized void put(String id, SessionNearCache.Entry entry) {
+			this.entries.put(id, entry);
+		}
+
+		synchronized void remove(String id) {
+			this.entries.remove(id);
+		}
+
+		synchronized int size() {
+			return this.entries.size();
+		}
+	}
+}
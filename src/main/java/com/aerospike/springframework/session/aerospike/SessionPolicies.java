@@ -0,0 +1,156 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike;
+
+import com.aerospike.client.policy.BatchPolicy;
+import com.aerospike.client.policy.CommitLevel;
+import com.aerospike.client.policy.Policy;
+import com.aerospike.client.policy.QueryPolicy;
+import com.aerospike.client.policy.Replica;
+import com.aerospike.client.policy.WritePolicy;
+
+
+/**
+ * Client policies used by {@link AerospikeOperationsSessionRepository} for each
+ * kind of operation, see
+ * {@link AerospikeOperationsSessionRepository#setPolicies(SessionPolicies)}. Like
+ * the Aerospike client policies the settings are public fields.
+ * <p>
+ * Only the tuning settings are taken from these policies: timeouts, retries,
+ * replica, consistency and priority, and for writes the commit level and
+ * durable delete. The repository keeps control of the record exists action,
+ * expiration, generation check and whether the key is sent.
+ * <p>
+ * The defaults favour tail latency: operations time out after a bounded time,
+ * idempotent ones are retried, reads are retried on a replica, and touches,
+ * which only extend the life of a session, are committed on the master only.
+ *
+ * @author Jeff Boone
+ * @since 2.0
+ */
+public class SessionPolicies {
+
+	/**
+	 * Reads of a single session, principal or chunk record.
+	 */
+	public Policy read = new Policy();
+
+	/**
+	 * Writes of the complete session record, for new sessions or sessions whose
+	 * record expired.
+	 */
+	public WritePolicy save = new WritePolicy();
+
+	/**
+	 * Writes of the changed attributes of a session.
+	 */
+	public WritePolicy update = new WritePolicy();
+
+	/**
+	 * Writes of the access time of a session without attribute changes.
+	 */
+	public WritePolicy touch = new WritePolicy();
+
+	/**
+	 * Deletes of session and chunk records.
+	 */
+	public WritePolicy delete = new WritePolicy();
+
+	/**
+	 * Writes of the principal and expiry records indexing sessions.
+	 */
+	public WritePolicy index = new WritePolicy();
+
+	/**
+	 * Batch reads of sessions and index records.
+	 */
+	public BatchPolicy batch = new BatchPolicy();
+
+	/**
+	 * Secondary index queries finding the sessions of a principal.
+	 */
+	public QueryPolicy query = new QueryPolicy();
+
+	public SessionPolicies() {
+		this.read.timeout = 250;
+		this.read.maxRetries = 2;
+		this.read.sleepBetweenRetries = 0;
+		this.read.retryOnTimeout = true;
+		this.read.replica = Replica.SEQUENCE;
+		this.save.timeout = 500;
+		this.save.maxRetries = 1;
+		this.update.timeout = 250;
+		this.update.maxRetries = 1;
+		this.touch.timeout = 250;
+		this.touch.maxRetries = 1;
+		this.touch.retryOnTimeout = true;
+		this.touch.commitLevel = CommitLevel.COMMIT_MASTER;
+		this.delete.timeout = 500;
+		this.delete.maxRetries = 1;
+		this.delete.retryOnTimeout = true;
+		this.index.timeout = 500;
+		this.index.maxRetries = 1;
+		this.batch.timeout = 1000;
+		this.batch.maxRetries = 1;
+		this.batch.replica = Replica.SEQUENCE;
+		this.query.timeout = 5000;
+	}
+
+	public SessionPolicies(SessionPolicies other) {
+		this.read = new Policy(other.read);
+		this.save = new WritePolicy(other.save);
+		this.update = new WritePolicy(other.update);
+		this.touch = new WritePolicy(other.touch);
+		this.delete = new WritePolicy(other.delete);
+		this.index = new WritePolicy(other.index);
+		this.batch = new BatchPolicy(other.batch);
+		this.query = new QueryPolicy();
+		apply(other.query, this.query);
+	}
+
+	/**
+	 * Copies the tuning settings of a policy onto a policy of the repository.
+	 */
+	static void apply(Policy from, Policy to) {
+		to.priority = from.priority;
+		to.consistencyLevel = from.consistencyLevel;
+		to.replica = from.replica;
+		to.timeout = from.timeout;
+		to.timeoutDelay = from.timeoutDelay;
+		to.maxRetries = from.maxRetries;
+		to.sleepBetweenRetries = from.sleepBetweenRetries;
+		to.retryOnTimeout = from.retryOnTimeout;
+	}
+
+	static void apply(WritePolicy from, WritePolicy to) {
+		apply((Policy) from, to);
+		to.commitLevel = from.commitLevel;
+		to.durableDelete = from.durableDelete;
+	}
+
+	static void apply(BatchPolicy from, BatchPolicy to) {
+		apply((Policy) from, to);
+		to.maxConcurrentThreads = from.maxConcurrentThreads;
+		to.useBatchDirect = from.useBatchDirect;
+		to.allowInline = from.allowInline;
+	}
+
+	static void apply(QueryPolicy from, QueryPolicy to) {
+		apply((Policy) from, to);
+		to.maxConcurrentNodes = from.maxConcurrentNodes;
+		to.recordQueueSize = from.recordQueueSize;
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike;
+
+/**
+ * Receives measurements from {@link AerospikeOperationsSessionRepository}.
+ * Methods are called on the request path, so implementations must be thread
+ * safe and should not allocate or block.
+ *
+ * @author Jeff Boone
+ * @since 2.0
+ * @see MicrometerSessionRepositoryMetrics
+ */
+public interface SessionRepositoryMetrics {
+
+	/**
+	 * Result code of an operation that failed outside the Aerospike client and
+	 * the session codec, for example in an event listener. It is not one of the
+	 * codes of {@link com.aerospike.client.ResultCode}.
+	 */
+	int UNKNOWN_ERROR = Integer.MIN_VALUE;
+
+	/**
+	 * Records a completed repository operation.
+	 *
+	 * @param type the operation
+	 * @param durationInNanos how long the operation took
+	 * @param resultCode {@link com.aerospike.client.ResultCode#OK} if it
+	 * succeeded, otherwise the Aerospike result code of the failure, such as
+	 * {@link com.aerospike.client.ResultCode#TIMEOUT},
+	 * {@link com.aerospike.client.ResultCode#SERIALIZE_ERROR} if an attribute
+	 * could not be encoded or decoded, or {@link #UNKNOWN_ERROR} if it failed
+	 * for another reason
+	 */
+	void recordOperation(OperationType type, long durationInNanos, int resultCode);
+
+	/**
+	 * Records that an operation had to be repeated in another form, for example
+	 * an update rewritten in full because the record had expired.
+	 *
+	 * @param type the operation
+	 */
+	void recordRetry(OperationType type);
+
+	/**
+	 * Records that a write lost a generation check because another request
+	 * wrote the same session first.
+	 *
+	 * @param type the operation
+	 */
+	void recordConflict(OperationType type);
+
+	/**
+	 * Records the attributes of a session written to the database. For an update
+	 * only the changed attributes are counted.
+	 *
+	 * @param attributeCount the number of attributes written
+	 * @param serializedBytes the encoded size of those attributes
+	 */
+	void recordWrite(int attributeCount, int serializedBytes);
+
+	/**
+	 * Records the attributes of a session read from the database.
+	 *
+	 * @param attributeCount the number of attributes read
+	 * @param serializedBytes the encoded size of those attributes
+	 */
+	void recordRead(int attributeCount, int serializedBytes);
+
+	/**
+	 * Records a lookup in the {@link SessionNearCache}.
+	 *
+	 * @param hit whether the cached session could be used
+	 */
+	void recordNearCacheLookup(boolean hit);
+
+	/**
+	 * Records that a session read from the database had already expired.
+	 */
+	void recordExpiredOnRead();
+
+	/**
+	 * Registers a value sampled whenever the metrics are published, such as the
+	 * length of an internal queue. Called once per gauge when the metrics are
+	 * set on the repository.
+	 *
+	 * @param name the gauge name
+	 * @param gauge the value source
+	 */
+	void registerGauge(String name, Gauge gauge);
+
+	/**
+	 * The measured repository operations.
+	 */
+	enum OperationType {
+		SAVE, GET, DELETE, FIND_BY_PRINCIPAL, DELETE_BY_PRINCIPAL, WRITE_BEHIND
+	}
+
+	/**
+	 * Source of a sampled value.
+	 */
+	interface Gauge {
+
+		double value();
+	}
+}
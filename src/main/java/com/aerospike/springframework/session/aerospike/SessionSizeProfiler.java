@@ -0,0 +1,358 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.session.ExpiringSession;
+
+
+/**
+ * Samples the encoded size of the sessions saved through
+ * {@link AerospikeOperationsSessionRepository}, to find out which attributes make
+ * sessions large.
+ * <p>
+ * A share of the saves, given by the {@link #setSampleRate(double) sample rate},
+ * is measured: the encoded size of every attribute is recorded by attribute name,
+ * and the size of the whole session in a histogram of the class of its principal.
+ * Attributes read from the database are measured by the bytes they were read
+ * from; only the attributes set since are encoded once more. Attributes kept in
+ * chunk records are not counted as they do not add to the session record.
+ * <p>
+ * Measured sessions above the warn threshold are logged. With a reject threshold
+ * every save that changes a session is measured, and saving a session above it
+ * fails with an {@link IllegalStateException}. {@link #getProfile()} returns the
+ * collected figures, and is exposed as the {@code sessionsizes} endpoint when the
+ * Spring Boot actuator is present.
+ *
+ * @author Jeff Boone
+ * @since 2.0
+ */
+public class SessionSizeProfiler {
+
+	/**
+	 * The default share of saves that are measured.
+	 */
+	public static final double DEFAULT_SAMPLE_RATE = 0.01;
+
+	/**
+	 * The default number of attributes listed by {@link #getProfile()}.
+	 */
+	public static final int DEFAULT_TOP_ATTRIBUTES = 10;
+
+	/**
+	 * The class of sessions without a principal, given by the default classifier.
+	 */
+	public static final String ANONYMOUS = "anonymous";
+
+	/**
+	 * The class of sessions with a principal, given by the default classifier.
+	 */
+	public static final String AUTHENTICATED = "authenticated";
+
+	/**
+	 * The name the sizes of further attributes or classes are recorded under once
+	 * the maximum number of names is reached, so that the profile stays bounded.
+	 */
+	static final String OTHER = "(other)";
+
+	static final int MAX_NAMES = 1000;
+
+	private static final SessionClassifier DEFAULT_CLASSIFIER = new SessionClassifier() {
+
+		public String classify(ExpiringSession session) {
+			return (((AerospikeExpiringSession) session).getPrincipal() != null) ? AUTHENTICATED : ANONYMOUS;
+		}
+	};
+
+	private static final Log logger = LogFactory.getLog(SessionSizeProfiler.class);
+
+	private double sampleRate = DEFAULT_SAMPLE_RATE;
+
+	private int topAttributes = DEFAULT_TOP_ATTRIBUTES;
+
+	private int warnThresholdBytes = 0;
+
+	private int rejectThresholdBytes = 0;
+
+	private SessionClassifier classifier = DEFAULT_CLASSIFIER;
+
+	private final ConcurrentMap<String, SizeStats> attributeSizes = new ConcurrentHashMap<String, SizeStats>();
+
+	private final ConcurrentMap<String, SizeStats> sessionSizes = new ConcurrentHashMap<String, SizeStats>();
+
+	private final AtomicLong oversized = new AtomicLong();
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * Measures the session if it is sampled or if it changed and a reject threshold
+	 * is set.
+	 *
+	 * @throws IllegalStateException if the session is above the reject threshold
+	 */
+	void profile(AerospikeExpiringSession session, SessionCodec codec) {
+		boolean sampled = this.sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < this.sampleRate;
+		boolean checked = this.rejectThresholdBytes > 0 && (session.isNew() || !session.getDelta().isEmpty());
+		if (!sampled && !checked) {
+			return;
+		}
+		int size = 0;
+		int largestSize = -1;
+		String largest = null;
+		for (String attrName : session.getAttributeNames()) {
+			if (session.getChunks().containsKey(attrName)) {
+				continue;
+			}
+			byte[] bytes = session.getEncodedAttribute(attrName);
+			int attrSize = (bytes != null) ? bytes.length : codec.encode(session.getAttribute(attrName)).length;
+			size += attrSize;
+			if (attrSize > largestSize) {
+				largestSize = attrSize;
+				largest = attrName;
+			}
+			if (sampled) {
+				stats(this.attributeSizes, attrName).record(attrSize);
+			}
+		}
+		String sessionClass = null;
+		if (sampled) {
+			sessionClass = this.classifier.classify(session);
+			stats(this.sessionSizes, sessionClass).record(size);
+		}
+		if (checked && size > this.rejectThresholdBytes) {
+			this.rejected.incrementAndGet();
+			throw new IllegalStateException("Session of " + size + " bytes exceeds the limit of "
+					+ this.rejectThresholdBytes + " bytes, its largest attribute " + largest + " has "
+					+ largestSize + " bytes");
+		}
+		if (this.warnThresholdBytes > 0 && size > this.warnThresholdBytes) {
+			this.oversized.incrementAndGet();
+			if (logger.isWarnEnabled()) {
+				logger.warn("Session of " + size + " bytes"
+						+ ((sessionClass != null) ? " of class " + sessionClass : "")
+						+ " exceeds " + this.warnThresholdBytes + " bytes, its largest attribute " + largest
+						+ " has " + largestSize + " bytes");
+			}
+		}
+	}
+
+	private static SizeStats stats(ConcurrentMap<String, SizeStats> sizes, String name) {
+		SizeStats stats = sizes.get(name);
+		if (stats == null) {
+			if (sizes.size() >= MAX_NAMES) {
+				name = OTHER;
+			}
+			SizeStats created = new SizeStats();
+			stats = sizes.putIfAbsent(name, created);
+			if (stats == null) {
+				stats = created;
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * Returns the figures collected so far: the heaviest attributes by largest size
+	 * seen, with their sample count and average size, and the count, average,
+	 * largest size and a power-of-two histogram of the session sizes per session
+	 * class. The histogram maps the upper bound of each bucket in bytes to the
+	 * number of sessions in it, leaving out empty buckets.
+	 *
+	 * @return the profile, made of maps, lists and numbers only
+	 */
+	public Map<String, Object> getProfile() {
+		Map<String, Object> profile = new LinkedHashMap<String, Object>();
+		profile.put("sampleRate", this.sampleRate);
+		profile.put("warnThresholdBytes", this.warnThresholdBytes);
+		profile.put("rejectThresholdBytes", this.rejectThresholdBytes);
+		profile.put("oversizedSessions", this.oversized.get());
+		profile.put("rejectedSessions", this.rejected.get());
+
+		List<Map.Entry<String, SizeStats>> attributes = new ArrayList<Map.Entry<String, SizeStats>>(
+				this.attributeSizes.entrySet());
+		Collections.sort(attributes, new Comparator<Map.Entry<String, SizeStats>>() {
+
+			public int compare(Map.Entry<String, SizeStats> a, Map.Entry<String, SizeStats> b) {
+				long aMax = a.getValue().max.get();
+				long bMax = b.getValue().max.get();
+				return (aMax < bMax) ? 1 : ((aMax == bMax) ? 0 : -1);
+			}
+		});
+		List<Map<String, Object>> top = new ArrayList<Map<String, Object>>();
+		for (Map.Entry<String, SizeStats> attribute : attributes) {
+			if (top.size() == this.topAttributes) {
+				break;
+			}
+			Map<String, Object> entry = new LinkedHashMap<String, Object>();
+			entry.put("name", attribute.getKey());
+			attribute.getValue().describe(entry, false);
+			top.add(entry);
+		}
+		profile.put("topAttributes", top);
+
+		Map<String, Object> classes = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, SizeStats> sessionClass : this.sessionSizes.entrySet()) {
+			Map<String, Object> entry = new LinkedHashMap<String, Object>();
+			sessionClass.getValue().describe(entry, true);
+			classes.put(sessionClass.getKey(), entry);
+		}
+		profile.put("sessionSizes", classes);
+		return profile;
+	}
+
+	/**
+	 * Drops the figures collected so far.
+	 */
+	public void reset() {
+		this.attributeSizes.clear();
+		this.sessionSizes.clear();
+		this.oversized.set(0);
+		this.rejected.set(0);
+	}
+
+	/**
+	 * Sets the share of saves that are measured, between 0 and 1. Defaults to
+	 * {@link #DEFAULT_SAMPLE_RATE}.
+	 *
+	 * @param sampleRate the sample rate
+	 */
+	public void setSampleRate(double sampleRate) {
+		if (sampleRate < 0 || sampleRate > 1) {
+			throw new IllegalArgumentException("sampleRate must be between 0 and 1");
+		}
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * Sets the number of attributes listed by {@link #getProfile()}. Defaults to
+	 * {@link #DEFAULT_TOP_ATTRIBUTES}.
+	 *
+	 * @param topAttributes the number of attributes
+	 */
+	public void setTopAttributes(int topAttributes) {
+		this.topAttributes = topAttributes;
+	}
+
+	/**
+	 * Sets the encoded session size above which measured sessions are logged.
+	 * Defaults to 0, which logs none.
+	 *
+	 * @param warnThresholdBytes the size in bytes
+	 */
+	public void setWarnThresholdBytes(int warnThresholdBytes) {
+		this.warnThresholdBytes = warnThresholdBytes;
+	}
+
+	/**
+	 * Sets the encoded session size above which saving a session fails. Every save
+	 * that changes a session is measured once this is set. Defaults to 0, which
+	 * rejects none.
+	 *
+	 * @param rejectThresholdBytes the size in bytes
+	 */
+	public void setRejectThresholdBytes(int rejectThresholdBytes) {
+		this.rejectThresholdBytes = rejectThresholdBytes;
+	}
+
+	/**
+	 * Sets how sessions are grouped for the session size histograms. Defaults to
+	 * {@link #ANONYMOUS} and {@link #AUTHENTICATED} sessions.
+	 *
+	 * @param classifier the classifier
+	 */
+	public void setSessionClassifier(SessionClassifier classifier) {
+		this.classifier = classifier;
+	}
+
+	/**
+	 * Groups sessions for the session size histograms, for instance by the role of
+	 * their principal. Only a bounded number of classes is kept.
+	 */
+	public interface SessionClassifier {
+
+		/**
+		 * Returns the class of the session. Called for sampled saves only.
+		 *
+		 * @param session the session being saved
+		 * @return the class name
+		 */
+		String classify(ExpiringSession session);
+	}
+
+	/**
+	 * Sample count, total and largest size, and a histogram with one bucket per
+	 * power of two.
+	 */
+	static final class SizeStats {
+
+		private static final int BUCKETS = 32;
+
+		final AtomicLong count = new AtomicLong();
+
+		final AtomicLong total = new AtomicLong();
+
+		final AtomicLong max = new AtomicLong();
+
+		final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+		void record(int size) {
+			this.count.incrementAndGet();
+			this.total.addAndGet(size);
+			long max;
+			while (size > (max = this.max.get()) && !this.max.compareAndSet(max, size)) {
+				// retry
+			}
+			this.buckets.incrementAndGet(bucket(size));
+		}
+
+		/**
+		 * Returns the bucket of sizes up to the next power of two.
+		 */
+		static int bucket(int size) {
+			return (size <= 1) ? 0 : Math.min(BUCKETS - 1, 32 - Integer.numberOfLeadingZeros(size - 1));
+		}
+
+		void describe(Map<String, Object> entry, boolean histogram) {
+			long count = this.count.get();
+			entry.put("samples", count);
+			entry.put("averageBytes", (count > 0) ? this.total.get() / count : 0);
+			entry.put("maxBytes", this.max.get());
+			if (histogram) {
+				Map<String, Long> buckets = new LinkedHashMap<String, Long>();
+				for (int i = 0; i < BUCKETS; i++) {
+					long bucketCount = this.buckets.get(i);
+					if (bucketCount > 0) {
+						buckets.put(Long.toString(1L << i), bucketCount);
+					}
+				}
+				entry.put("histogram", buckets);
+			}
+		}
+	}
+}
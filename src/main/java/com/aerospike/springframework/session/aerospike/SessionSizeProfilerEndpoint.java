@@ -0,0 +1,54 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.springframework.boot.actuate.endpoint.AbstractEndpoint;
+
+
+/**
+ * Spring Boot actuator endpoint returning the {@link SessionSizeProfiler#getProfile()
+ * profile} of the {@link SessionSizeProfiler} of a repository, or that profiling is
+ * disabled.
+ *
+ * @author Jeff Boone
+ * @since 2.0
+ */
+public class SessionSizeProfilerEndpoint extends AbstractEndpoint<Map<String, Object>> {
+
+	/**
+	 * The id of the endpoint.
+	 */
+	public static final String ID = "sessionsizes";
+
+	private final AerospikeOperationsSessionRepository repository;
+
+	public SessionSizeProfilerEndpoint(AerospikeOperationsSessionRepository repository) {
+		super(ID);
+		this.repository = repository;
+	}
+
+	@Override
+	public Map<String, Object> invoke() {
+		SessionSizeProfiler profiler = this.repository.getSessionSizeProfiler();
+		if (profiler == null) {
+			return Collections.<String, Object>singletonMap("enabled", false);
+		}
+		return profiler.getProfile();
+	}
+}
@@ -0,0 +1,539 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Key;
+import com.aerospike.client.Record;
+import com.aerospike.client.ScanCallback;
+import com.aerospike.client.cluster.Node;
+import com.aerospike.client.policy.ScanPolicy;
+
+
+/**
+ * Exports the sessions of a repository to files and imports them into another,
+ * to move sessions to a new cluster or namespace without logging users out.
+ * <p>
+ * The export scans every node of every namespace the sessions live in, in
+ * parallel, and streams the sessions into segment files of a bounded number of
+ * sessions. A segment consists of chunks of sessions, each with a CRC32, and is
+ * only given its final name once it is complete. A node whose scan completed is
+ * marked as such, so that an interrupted export only scans the other nodes again
+ * when it is repeated into the same directory. This assumes the nodes are the same
+ * as before; otherwise the export should start over in an empty directory.
+ * Sessions are written with their attributes as stored, attributes kept in chunk
+ * records included, and expired sessions are left out.
+ * <p>
+ * The import reads the segments in parallel, one chunk at a time, and writes the
+ * sessions through the repository it was created for, so that the session records,
+ * chunk records and principal and expiry index entries follow the configuration of
+ * that repository. Each session keeps the time it has left to live. Sessions that
+ * already exist in the target, for instance because users logged in there
+ * meanwhile, are left alone. Every imported segment is marked, so that an
+ * interrupted import resumes with the segments not imported yet.
+ * <p>
+ * Memory use depends on the chunk size and the parallelism only, not on the number
+ * of sessions. Resolving the principal of imported sessions may decode the Spring
+ * Security context, so the import runs with the classes of the application.
+ *
+ * @author Jeff Boone
+ * @since 2.0
+ */
+public class SessionTransfer {
+
+	/**
+	 * The default number of sessions per segment file.
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 100000;
+
+	/**
+	 * The default number of sessions per chunk.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 500;
+
+	static final String SEGMENT_SUFFIX = ".sessions";
+
+	private static final String PART_SUFFIX = ".part";
+
+	private static final String COMPLETE_SUFFIX = ".complete";
+
+	private static final String IMPORTED_SUFFIX = ".imported";
+
+	private static final int MAGIC = 0x53535831;
+
+	private static final Log logger = LogFactory.getLog(SessionTransfer.class);
+
+	private final AerospikeOperationsSessionRepository repository;
+
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+
+	private int segmentSize = DEFAULT_SEGMENT_SIZE;
+
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+	public SessionTransfer(AerospikeOperationsSessionRepository repository) {
+		this.repository = repository;
+	}
+
+	/**
+	 * Exports the sessions into the directory, resuming a previous export into it.
+	 *
+	 * @param directory the directory the segments are written to
+	 * @return the number of sessions exported by this call
+	 * @throws IOException if a segment cannot be written
+	 */
+	public long exportTo(final File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create " + directory);
+		}
+		final AtomicLong exported = new AtomicLong();
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final String namespace : this.repository.getSessionNamespaces()) {
+			for (final Node node : this.repository.aerospikeClient.getNodes()) {
+				final String prefix = namespace + '-' + node.getName();
+				if (new File(directory, prefix + COMPLETE_SUFFIX).exists()) {
+					logger.info("Skipping " + prefix + ", already exported");
+					continue;
+				}
+				tasks.add(new Callable<Void>() {
+
+					public Void call() throws IOException {
+						exported.addAndGet(exportNode(directory, prefix, namespace, node));
+						return null;
+					}
+				});
+			}
+		}
+		run(tasks);
+		return exported.get();
+	}
+
+	private long exportNode(File directory, String prefix, String namespace, Node node) throws IOException {
+		for (File stale : list(directory, prefix + '-', null)) {
+			if (!stale.delete()) {
+				throw new IOException("Cannot delete " + stale);
+			}
+		}
+		final SegmentWriter writer = new SegmentWriter(directory, prefix, this.segmentSize, this.chunkSize);
+		final long now = System.currentTimeMillis();
+		try {
+			this.repository.aerospikeClient.scanNode(new ScanPolicy(), node, namespace,
+					this.repository.getSetName(), new ScanCallback() {
+
+						public void scanCallback(Key key, Record record) {
+							if (key.userKey == null || SessionTransfer.this.repository.isExpired(record, now)) {
+								return;
+							}
+							try {
+								writer.write(SessionTransfer.this.repository.toSession(key.userKey.toString(), record),
+										SessionTransfer.this.repository.getSessionCodec());
+							}
+							catch (IOException e) {
+								throw new AerospikeException.ScanTerminated(e);
+							}
+						}
+					});
+			writer.close();
+		}
+		catch (AerospikeException.ScanTerminated e) {
+			writer.abort();
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw e;
+		}
+		catch (RuntimeException e) {
+			writer.abort();
+			throw e;
+		}
+		if (!new File(directory, prefix + COMPLETE_SUFFIX).createNewFile()) {
+			throw new IOException("Cannot mark " + prefix + " as exported");
+		}
+		logger.info("Exported " + writer.count + " sessions of " + prefix);
+		return writer.count;
+	}
+
+	/**
+	 * Imports the segments in the directory that were not imported yet.
+	 *
+	 * @param directory the directory of a complete export
+	 * @return the number of sessions written by this call
+	 * @throws IOException if a segment cannot be read or is corrupt
+	 */
+	public long importFrom(File directory) throws IOException {
+		final AtomicLong imported = new AtomicLong();
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final File segment : list(directory, null, SEGMENT_SUFFIX)) {
+			final File marker = new File(directory, segment.getName() + IMPORTED_SUFFIX);
+			if (marker.exists()) {
+				continue;
+			}
+			tasks.add(new Callable<Void>() {
+
+				public Void call() throws IOException {
+					imported.addAndGet(importSegment(segment));
+					if (!marker.createNewFile()) {
+						throw new IOException("Cannot mark " + segment + " as imported");
+					}
+					return null;
+				}
+			});
+		}
+		run(tasks);
+		return imported.get();
+	}
+
+	private long importSegment(File segment) throws IOException {
+		SegmentReader reader = new SegmentReader(segment, this.repository.getSessionCodec());
+		long written = 0;
+		try {
+			List<AerospikeExpiringSession> chunk;
+			while ((chunk = reader.readChunk()) != null) {
+				written += importChunk(chunk);
+			}
+		}
+		finally {
+			reader.close();
+		}
+		logger.info("Imported " + written + " sessions from " + segment.getName());
+		return written;
+	}
+
+	private int importChunk(List<AerospikeExpiringSession> chunk) {
+		int written = 0;
+		for (AerospikeExpiringSession session : chunk) {
+			if (!session.isExpired() && this.repository.create(session)) {
+				written++;
+			}
+		}
+		return written;
+	}
+
+	private void run(List<Callable<Void>> tasks) throws IOException {
+		if (tasks.isEmpty()) {
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(this.parallelism, tasks.size()),
+				new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "aerospike-session-transfer");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>(tasks.size());
+			for (Callable<Void> task : tasks) {
+				futures.add(executor.submit(task));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", e);
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static List<File> list(File directory, final String prefix, final String suffix) throws IOException {
+		File[] files = directory.listFiles(new FilenameFilter() {
+
+			public boolean accept(File dir, String name) {
+				return (prefix == null || name.startsWith(prefix)) && (suffix == null || name.endsWith(suffix));
+			}
+		});
+		if (files == null) {
+			throw new IOException("Cannot list " + directory);
+		}
+		List<File> result = new ArrayList<File>(files.length);
+		for (File file : files) {
+			result.add(file);
+		}
+		return result;
+	}
+
+	/**
+	 * Sets the number of nodes scanned or segments imported at the same time.
+	 * Defaults to the number of processors.
+	 *
+	 * @param parallelism the number of threads
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Sets the number of sessions after which an export starts a new segment file.
+	 * Defaults to {@link #DEFAULT_SEGMENT_SIZE}.
+	 *
+	 * @param segmentSize the number of sessions
+	 */
+	public void setSegmentSize(int segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Sets the number of sessions held in memory per thread while they are written
+	 * or read. Defaults to {@link #DEFAULT_CHUNK_SIZE}.
+	 *
+	 * @param chunkSize the number of sessions
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Writes the sessions of one node into numbered segments. A segment is written
+	 * under a temporary name and renamed once it is complete.
+	 * <p>
+	 * Segment format: a magic number, then chunks made of the number of sessions,
+	 * the length and CRC32 of the chunk body and the body, ending with a chunk of
+	 * zero sessions. Each session is its id, creation and access time, inactive
+	 * interval and attribute count, followed by the name, length and encoded value
+	 * of each attribute.
+	 */
+	static final class SegmentWriter {
+
+		private final File directory;
+
+		private final String prefix;
+
+		private final int segmentSize;
+
+		private final int chunkSize;
+
+		private final ByteArrayOutputStream chunkBytes = new ByteArrayOutputStream();
+
+		private final DataOutputStream chunk = new DataOutputStream(this.chunkBytes);
+
+		private int chunkCount;
+
+		private DataOutputStream segment;
+
+		private File segmentFile;
+
+		private int segmentCount;
+
+		private int segmentNumber;
+
+		long count;
+
+		SegmentWriter(File directory, String prefix, int segmentSize, int chunkSize) {
+			this.directory = directory;
+			this.prefix = prefix;
+			this.segmentSize = segmentSize;
+			this.chunkSize = chunkSize;
+		}
+
+		void write(AerospikeExpiringSession session, SessionCodec codec) throws IOException {
+			Map<String, byte[]> attributes = new HashMap<String, byte[]>();
+			for (String attrName : session.getAttributeNames()) {
+				byte[] bytes = session.getEncodedAttribute(attrName);
+				if (bytes == null) {
+					Object value = session.getAttribute(attrName);
+					if (value == null) {
+						// chunk record already gone
+						continue;
+					}
+					bytes = codec.encode(value);
+				}
+				attributes.put(attrName, bytes);
+			}
+			this.chunk.writeUTF(session.getId());
+			this.chunk.writeLong(session.getCreationTime());
+			this.chunk.writeLong(session.getLastAccessedTime());
+			this.chunk.writeInt(session.getMaxInactiveIntervalInSeconds());
+			this.chunk.writeInt(attributes.size());
+			for (Map.Entry<String, byte[]> attribute : attributes.entrySet()) {
+				this.chunk.writeUTF(attribute.getKey());
+				this.chunk.writeInt(attribute.getValue().length);
+				this.chunk.write(attribute.getValue());
+			}
+			this.count++;
+			if (++this.chunkCount == this.chunkSize) {
+				flushChunk();
+			}
+		}
+
+		private void flushChunk() throws IOException {
+			if (this.chunkCount == 0) {
+				return;
+			}
+			if (this.segment == null) {
+				this.segmentFile = new File(this.directory,
+						this.prefix + '-' + (++this.segmentNumber) + SEGMENT_SUFFIX + PART_SUFFIX);
+				this.segment = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.segmentFile)));
+				this.segment.writeInt(MAGIC);
+			}
+			CRC32 crc = new CRC32();
+			crc.update(this.chunkBytes.toByteArray());
+			this.segment.writeInt(this.chunkCount);
+			this.segment.writeInt(this.chunkBytes.size());
+			this.segment.writeLong(crc.getValue());
+			this.chunkBytes.writeTo(this.segment);
+			this.segmentCount += this.chunkCount;
+			this.chunkBytes.reset();
+			this.chunkCount = 0;
+			if (this.segmentCount >= this.segmentSize) {
+				closeSegment();
+			}
+		}
+
+		private void closeSegment() throws IOException {
+			this.segment.writeInt(0);
+			this.segment.close();
+			this.segment = null;
+			this.segmentCount = 0;
+			String name = this.segmentFile.getName();
+			File complete = new File(this.directory, name.substring(0, name.length() - PART_SUFFIX.length()));
+			if (!this.segmentFile.renameTo(complete)) {
+				throw new IOException("Cannot rename " + this.segmentFile);
+			}
+		}
+
+		void close() throws IOException {
+			flushChunk();
+			if (this.segment != null) {
+				closeSegment();
+			}
+		}
+
+		void abort() {
+			if (this.segment != null) {
+				try {
+					this.segment.close();
+				}
+				catch (IOException e) {
+					// the part file is dropped by the next export
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the sessions of a segment one chunk at a time.
+	 */
+	static final class SegmentReader {
+
+		private final File file;
+
+		private final DataInputStream in;
+
+		private final SessionCodec codec;
+
+		SegmentReader(File file, SessionCodec codec) throws IOException {
+			this.file = file;
+			this.codec = codec;
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (this.in.readInt() != MAGIC) {
+				this.in.close();
+				throw new IOException(file + " is not a session segment");
+			}
+		}
+
+		/**
+		 * Returns the sessions of the next chunk as new sessions, or {@code null} at
+		 * the end of the segment.
+		 */
+		List<AerospikeExpiringSession> readChunk() throws IOException {
+			int count;
+			try {
+				count = this.in.readInt();
+			}
+			catch (EOFException e) {
+				throw new IOException(this.file + " is truncated", e);
+			}
+			if (count == 0) {
+				return null;
+			}
+			byte[] body = new byte[this.in.readInt()];
+			long expected = this.in.readLong();
+			this.in.readFully(body);
+			CRC32 crc = new CRC32();
+			crc.update(body);
+			if (crc.getValue() != expected) {
+				throw new IOException(this.file + " is corrupt");
+			}
+			DataInputStream chunk = new DataInputStream(new ByteArrayInputStream(body));
+			List<AerospikeExpiringSession> sessions = new ArrayList<AerospikeExpiringSession>(count);
+			for (int i = 0; i < count; i++) {
+				String id = chunk.readUTF();
+				long created = chunk.readLong();
+				long accessed = chunk.readLong();
+				AerospikeExpiringSession session = new AerospikeExpiringSession(id, chunk.readInt());
+				session.setCreationTime(created);
+				session.setLastAccessedTime(accessed);
+				int attributeCount = chunk.readInt();
+				Map<String, byte[]> attributes = new HashMap<String, byte[]>(attributeCount * 2);
+				for (int j = 0; j < attributeCount; j++) {
+					String name = chunk.readUTF();
+					byte[] bytes = new byte[chunk.readInt()];
+					chunk.readFully(bytes);
+					attributes.put(name, bytes);
+				}
+				session.setEncodedAttributes(attributes, this.codec);
+				sessions.add(session);
+			}
+			return sessions;
+		}
+
+		void close() throws IOException {
+			this.in.close();
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+
+/**
+ * Coalesces concurrent reads and saves of the same session, as issued by the
+ * many parallel requests of a single page. Concurrent reads of a session share
+ * one database read. Saves arriving while a save of the same session is being
+ * written are merged and written together once it completes, and every caller
+ * returns once its changes are written.
+ * <p>
+ * State is kept per session id in concurrent maps, so requests for different
+ * sessions never wait for each other.
+ *
+ * @author Jeff Boone
+ * @since 2.0
+ */
+final class SingleFlight {
+
+	private final AerospikeOperationsSessionRepository repository;
+
+	private final ConcurrentMap<String, FutureTask<AerospikeExpiringSession>> reads =
+			new ConcurrentHashMap<String, FutureTask<AerospikeExpiringSession>>();
+
+	private final ConcurrentMap<String, Slot> saves = new ConcurrentHashMap<String, Slot>();
+
+	SingleFlight(AerospikeOperationsSessionRepository repository) {
+		this.repository = repository;
+	}
+
+	/**
+	 * Reads the session, or waits for a read of the same session that is already
+	 * in progress. Every caller gets its own copy of the session.
+	 */
+	AerospikeExpiringSession read(final String id) {
+		FutureTask<AerospikeExpiringSession> task = new FutureTask<AerospikeExpiringSession>(
+				new Callable<AerospikeExpiringSession>() {
+
+					public AerospikeExpiringSession call() {
+						return SingleFlight.this.repository.readSession(id);
+					}
+				});
+		FutureTask<AerospikeExpiringSession> inFlight = this.reads.putIfAbsent(id, task);
+		if (inFlight == null) {
+			try {
+				task.run();
+			}
+			finally {
+				this.reads.remove(id, task);
+			}
+			return get(task);
+		}
+		AerospikeExpiringSession session = get(inFlight);
+		return (session != null) ? session.copy() : null;
+	}
+
+	private static AerospikeExpiringSession get(FutureTask<AerospikeExpiringSession> task) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return task.get();
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+		finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Writes the snapshot, merged with the snapshots of any other saves of the
+	 * same session that arrive while an earlier save is being written.
+	 */
+	void save(AerospikeExpiringSession snapshot) {
+		String id = snapshot.getId();
+		while (true) {
+			Slot slot = this.saves.get(id);
+			if (slot == null) {
+				slot = new Slot();
+				Slot existing = this.saves.putIfAbsent(id, slot);
+				if (existing != null) {
+					slot = existing;
+				}
+			}
+			Batch batch = slot.join(snapshot);
+			if (batch == null) {
+				// the slot was retired concurrently
+				continue;
+			}
+			if (batch.done) {
+				slot.leave(id);
+				batch.rethrow();
+				return;
+			}
+			try {
+				this.repository.write(batch.session);
+			}
+			catch (RuntimeException e) {
+				batch.failure = e;
+			}
+			slot.written(id, batch);
+			batch.rethrow();
+			return;
+		}
+	}
+
+	/**
+	 * The saves of one session, guarded by its own monitor.
+	 */
+	private final class Slot {
+		private Batch open;
+		private boolean writing;
+		private int users;
+		private boolean retired;
+
+		/**
+		 * Adds the snapshot to the open batch and waits until that batch has been
+		 * written by another caller, or until this caller is the one to write it.
+		 *
+		 * @return the batch, marked done if it was written by another caller, or
+		 * {@code null} if the slot is no longer in use
+		 */
+		synchronized Batch join(AerospikeExpiringSession snapshot) {
+			if (this.retired) {
+				return null;
+			}
+			this.users++;
+			Batch batch = this.open;
+			if (batch == null) {
+				batch = new Batch(snapshot);
+				this.open = batch;
+			}
+			else {
+				snapshot.mergeUnsaved(batch.session);
+				batch.session = snapshot;
+			}
+			boolean interrupted = false;
+			while (!batch.done) {
+				if (!this.writing && this.open == batch) {
+					this.writing = true;
+					this.open = null;
+					break;
+				}
+				try {
+					wait();
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			return batch;
+		}
+
+		synchronized void written(String id, Batch batch) {
+			batch.done = true;
+			this.writing = false;
+			leave(id);
+			notifyAll();
+		}
+
+		synchronized void leave(String id) {
+			if (--this.users == 0) {
+				this.retired = true;
+				SingleFlight.this.saves.remove(id, this);
+			}
+		}
+	}
+
+	/**
+	 * Snapshots merged into a single write.
+	 */
+	private static final class Batch {
+		private AerospikeExpiringSession session;
+		private boolean done;
+		private RuntimeException failure;
+
+		Batch(AerospikeExpiringSession session) {
+			this.session = session;
+		}
+
+		void rethrow() {
+			if (this.failure != null) {
+				throw this.failure;
+			}
+		}
+	}
+}
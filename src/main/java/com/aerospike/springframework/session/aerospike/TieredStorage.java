@@ -0,0 +1,265 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+import com.aerospike.client.Record;
+import com.aerospike.client.ResultCode;
+import com.aerospike.client.ScanCallback;
+import com.aerospike.client.policy.GenerationPolicy;
+import com.aerospike.client.policy.RecordExistsAction;
+import com.aerospike.client.policy.ScanPolicy;
+import com.aerospike.client.policy.WritePolicy;
+
+
+/**
+ * Moves sessions that have been idle for a while from the namespace of the
+ * repository to a cold namespace, and back once they are accessed again. Only
+ * session records move; principal, chunk and expiry records stay in the hot
+ * namespace as they are keyed by the session id alone.
+ * <p>
+ * A session is in one of the two namespaces at a time. Demotion scans the hot
+ * namespace for the access time and interval of the sessions only, copies idle
+ * sessions to the cold namespace and deletes the hot record if it was not
+ * written in between, or drops the copy otherwise. Promotion creates the hot
+ * record from the cold one, unless the session was written meanwhile, and then
+ * deletes the cold record.
+ * <p>
+ * Every node promotes the sessions it reads, but only the node holding the
+ * demotion {@link Lease} scans for idle sessions, so the scan does not run on
+ * every node at once.
+ *
+ * @author Jeff Boone
+ * @since 2.0
+ */
+final class TieredStorage {
+
+	private static final Log logger = LogFactory.getLog(TieredStorage.class);
+
+	/** scan intervals without renewal after which the lease expires */
+	private static final int LEASE_INTERVALS = 3;
+
+	private final AerospikeOperationsSessionRepository repository;
+
+	private final TieredStoragePolicy policy;
+
+	private final long idleMillis;
+
+	private final ScanPolicy scanPolicy = new ScanPolicy();
+
+	private final Lease lease;
+
+	private final ScheduledExecutorService executor;
+
+	TieredStorage(AerospikeOperationsSessionRepository repository, TieredStoragePolicy policy) {
+		if (policy.coldNamespace == null || policy.coldNamespace.isEmpty()) {
+			throw new IllegalArgumentException("coldNamespace is required");
+		}
+		if (policy.demoteAfterIdleInSeconds <= 0) {
+			throw new IllegalArgumentException("demoteAfterIdleInSeconds must be positive");
+		}
+		this.repository = repository;
+		this.policy = new TieredStoragePolicy(policy);
+		this.idleMillis = TimeUnit.SECONDS.toMillis(this.policy.demoteAfterIdleInSeconds);
+		// demotions are issued from the scan callback, one node at a time
+		this.scanPolicy.concurrentNodes = false;
+		this.lease = new Lease(repository, "demotion", LEASE_INTERVALS * this.policy.demoteIntervalInMillis);
+		if (this.policy.demoteIntervalInMillis <= 0) {
+			this.executor = null;
+			return;
+		}
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "aerospike-session-demotion");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				demoteIdle();
+			}
+		}, this.policy.demoteIntervalInMillis, this.policy.demoteIntervalInMillis, TimeUnit.MILLISECONDS);
+	}
+
+	String getColdNamespace() {
+		return this.policy.coldNamespace;
+	}
+
+	Key getColdKey(Key key) {
+		return new Key(this.policy.coldNamespace, key.digest, key.setName, key.userKey);
+	}
+
+	/**
+	 * Moves the session with the given hot key back from the cold namespace.
+	 *
+	 * @return the session record now in the hot namespace, or {@code null} if the
+	 * session is in neither namespace
+	 */
+	Record promote(Key key) {
+		Key coldKey = getColdKey(key);
+		Record record = this.repository.aerospikeClient.get(this.repository.readPolicy, coldKey);
+		if (record == null) {
+			return null;
+		}
+		WritePolicy createPolicy = new WritePolicy(this.repository.replacePolicy);
+		createPolicy.recordExistsAction = RecordExistsAction.CREATE_ONLY;
+		createPolicy.expiration = this.repository.getSecondsToLive(record, System.currentTimeMillis());
+		try {
+			this.repository.aerospikeClient.put(createPolicy, key, toBins(record));
+		}
+		catch (AerospikeException e) {
+			if (e.getResultCode() != ResultCode.KEY_EXISTS_ERROR) {
+				throw e;
+			}
+			// written or promoted concurrently, the hot record is the latest
+			delete(key);
+			return this.repository.aerospikeClient.get(this.repository.readPolicy, key);
+		}
+		delete(key);
+		return new Record(record.bins, 1, record.expiration);
+	}
+
+	/**
+	 * Reads the records missing from the hot namespace from the cold one, in one
+	 * batch.
+	 *
+	 * @param records the records read from the hot namespace, filled in place
+	 */
+	void readMissing(Key[] keys, Record[] records, String... binNames) {
+		int missing = 0;
+		for (Record record : records) {
+			if (record == null) {
+				missing++;
+			}
+		}
+		if (missing == 0) {
+			return;
+		}
+		Key[] coldKeys = new Key[missing];
+		int[] positions = new int[missing];
+		missing = 0;
+		for (int i = 0; i < records.length; i++) {
+			if (records[i] == null) {
+				coldKeys[missing] = getColdKey(keys[i]);
+				positions[missing++] = i;
+			}
+		}
+		Record[] found = (binNames.length == 0)
+				? this.repository.aerospikeClient.get(this.repository.batchPolicy, coldKeys)
+				: this.repository.aerospikeClient.get(this.repository.batchPolicy, coldKeys, binNames);
+		for (int i = 0; i < found.length; i++) {
+			records[positions[i]] = found[i];
+		}
+	}
+
+	/**
+	 * Deletes the cold record of the session with the given hot key.
+	 *
+	 * @return true if it existed
+	 */
+	boolean delete(Key key) {
+		return this.repository.aerospikeClient.delete(this.repository.deletePolicy, getColdKey(key));
+	}
+
+	/**
+	 * Scans the hot namespace and moves the sessions that are idle to the cold
+	 * namespace, if this node holds the demotion lease. Failures are logged and
+	 * the scan is repeated at the next interval.
+	 */
+	void demoteIdle() {
+		final long now = System.currentTimeMillis();
+		try {
+			if (!this.lease.acquire()) {
+				return;
+			}
+			this.repository.aerospikeClient.scanAll(this.scanPolicy, this.repository.getNamespace(),
+					this.repository.getSetName(), new ScanCallback() {
+
+						public void scanCallback(Key key, Record record) {
+							if (isIdle(record, now)) {
+								demote(key, now);
+							}
+						}
+					}, AerospikeOperationsSessionRepository.BIN_NAME_ACCESSED,
+					AerospikeOperationsSessionRepository.BIN_NAME_INTERVAL);
+		}
+		catch (RuntimeException e) {
+			logger.error("Failed to demote idle sessions", e);
+		}
+	}
+
+	private boolean isIdle(Record record, long now) {
+		return now - record.getLong(AerospikeOperationsSessionRepository.BIN_NAME_ACCESSED) > this.idleMillis
+				&& !this.repository.isExpired(record, now);
+	}
+
+	private void demote(Key key, long now) {
+		Record record = this.repository.aerospikeClient.get(this.repository.readPolicy, key);
+		if (record == null || !isIdle(record, now)) {
+			return;
+		}
+		Key coldKey = getColdKey(key);
+		WritePolicy writePolicy = new WritePolicy(this.repository.replacePolicy);
+		writePolicy.expiration = this.repository.getSecondsToLive(record, now);
+		this.repository.aerospikeClient.put(writePolicy, coldKey, toBins(record));
+		WritePolicy deletePolicy = new WritePolicy(this.repository.deletePolicy);
+		deletePolicy.generationPolicy = GenerationPolicy.EXPECT_GEN_EQUAL;
+		deletePolicy.generation = record.generation;
+		try {
+			this.repository.aerospikeClient.delete(deletePolicy, key);
+		}
+		catch (AerospikeException e) {
+			if (e.getResultCode() != ResultCode.GENERATION_ERROR) {
+				throw e;
+			}
+			// saved meanwhile, the hot record stays the only copy
+			this.repository.aerospikeClient.delete(this.repository.deletePolicy, coldKey);
+		}
+	}
+
+	private static Bin[] toBins(Record record) {
+		Bin[] bins = new Bin[record.bins.size()];
+		int i = 0;
+		for (Map.Entry<String, Object> bin : record.bins.entrySet()) {
+			bins[i++] = new Bin(bin.getKey(), bin.getValue());
+		}
+		return bins;
+	}
+
+	void shutdown() {
+		if (this.executor != null) {
+			this.executor.shutdownNow();
+			try {
+				this.lease.release();
+			}
+			catch (RuntimeException e) {
+				logger.debug("Failed to release the demotion lease", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike;
+
+/**
+ * Settings for keeping idle sessions in a second, cheaper namespace, see
+ * {@link AerospikeOperationsSessionRepository#setTieredStoragePolicy(TieredStoragePolicy)}.
+ * Like the Aerospike client policies the settings are public fields.
+ *
+ * @author Jeff Boone
+ * @since 2.0
+ */
+public class TieredStoragePolicy {
+
+	/**
+	 * Namespace idle sessions are moved to, typically stored on SSD. Required.
+	 */
+	public String coldNamespace;
+
+	/**
+	 * Time in seconds a session has to be idle before it is moved to the cold
+	 * namespace.
+	 */
+	public int demoteAfterIdleInSeconds = 3600;
+
+	/**
+	 * Time in milliseconds between two scans of the hot namespace for idle
+	 * sessions, or 0 to only move sessions back on access on this node. Of the
+	 * nodes scanning, only the one holding a lease record scans at a time.
+	 */
+	public long demoteIntervalInMillis = 60000;
+
+	public TieredStoragePolicy() {
+	}
+
+	public TieredStoragePolicy(TieredStoragePolicy other) {
+		this.coldNamespace = other.coldNamespace;
+		this.demoteAfterIdleInSeconds = other.demoteAfterIdleInSeconds;
+		this.demoteIntervalInMillis = other.demoteIntervalInMillis;
+	}
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.springframework.session.aerospike.SessionRepositoryMetrics.OperationType;
+
+
+/**
+ * Buffers saved sessions and writes them from a background thread.
+ * <p>
+ * Sessions are kept in striped maps keyed by session id, so repeated saves of the
+ * same session before it is written collapse into one write carrying the combined
+ * changes. A flush is started every {@code maxDelayInMillis} or as soon as
+ * {@code maxBatchSize} sessions are pending. With an asynchronous repository the
+ * writes of a batch are issued together and awaited; otherwise they are written one
+ * after the other. Sessions that are pending or being written are returned by
+ * {@link #get(String)} so that reads on this instance see their own writes; a
+ * session being written is read from a snapshot taken before its write started,
+ * as the write updates the session itself.
+ * <p>
+ * A write that fails with an {@link AerospikeException} is queued again by the
+ * end of the flush, merged into a save of the same session made meanwhile if
+ * there is one, and retried by the next flush. It is dropped if a newer save of
+ * the session was written by the same flush. Other failures, such as an attribute
+ * that cannot be serialized, would fail again and drop the save.
+ * <p>
+ * A session deleted while it is being written is marked, so that its write is
+ * skipped if it has not started yet and its record is deleted again otherwise.
+ *
+ * @author Jeff Boone
+ * @since 2.0
+ */
+class WriteBehindBuffer {
+
+	private static final Log logger = LogFactory.getLog(WriteBehindBuffer.class);
+
+	private static final int STRIPES = 16;
+
+	private final AerospikeOperationsSessionRepository repository;
+
+	private final WriteBehindPolicy policy;
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	private final Map<String, AerospikeExpiringSession> inFlight =
+			new ConcurrentHashMap<String, AerospikeExpiringSession>();
+
+	/** ids of in-flight sessions deleted since their write was started */
+	private final Set<String> deleted = new HashSet<String>();
+
+	private final Semaphore capacity;
+
+	private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+	private final ScheduledExecutorService executor;
+
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			WriteBehindBuffer.this.flushRequested.set(false);
+			flush();
+		}
+	};
+
+	WriteBehindBuffer(AerospikeOperationsSessionRepository repository, WriteBehindPolicy policy) {
+		this.repository = repository;
+		this.policy = new WriteBehindPolicy(policy);
+		this.capacity = new Semaphore(this.policy.maxPending);
+		for (int i = 0; i < STRIPES; i++) {
+			this.stripes[i] = new Stripe();
+		}
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "aerospike-session-write-behind");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.executor.scheduleWithFixedDelay(this.flushTask, this.policy.maxDelayInMillis,
+				this.policy.maxDelayInMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Queues a snapshot of the session, merging it with a pending save of the
+	 * same session.
+	 */
+	void add(AerospikeExpiringSession session) throws InterruptedException {
+		AerospikeExpiringSession snapshot = session.copy();
+		Stripe stripe = stripeFor(snapshot.getId());
+		if (stripe.merge(snapshot)) {
+			return;
+		}
+		if (!acquire()) {
+			this.repository.write(snapshot);
+			return;
+		}
+		if (!stripe.add(snapshot)) {
+			this.capacity.release();
+			return;
+		}
+		if (pendingCount() >= this.policy.maxBatchSize
+				&& this.flushRequested.compareAndSet(false, true)) {
+			this.executor.execute(this.flushTask);
+		}
+	}
+
+	private boolean acquire() throws InterruptedException {
+		if (this.policy.backpressure == WriteBehindPolicy.Backpressure.WRITE_THROUGH) {
+			return this.capacity.tryAcquire();
+		}
+		this.capacity.acquire();
+		return true;
+	}
+
+	/**
+	 * Returns a copy of the latest unwritten state of a session, if any.
+	 */
+	AerospikeExpiringSession get(String id) {
+		AerospikeExpiringSession session = stripeFor(id).get(id);
+		if (session != null) {
+			return session;
+		}
+		session = this.inFlight.get(id);
+		return (session != null) ? session.copy() : null;
+	}
+
+	/**
+	 * Drops a pending save, for example because the session is being deleted.
+	 */
+	void remove(String id) {
+		boolean pending;
+		synchronized (this.deleted) {
+			pending = stripeFor(id).remove(id);
+			if (this.inFlight.remove(id) != null) {
+				this.deleted.add(id);
+			}
+		}
+		if (pending) {
+			this.capacity.release();
+		}
+	}
+
+	private boolean isDeleted(String id) {
+		synchronized (this.deleted) {
+			return this.deleted.contains(id);
+		}
+	}
+
+	int pendingCount() {
+		return this.policy.maxPending - this.capacity.availablePermits();
+	}
+
+	/**
+	 * Writes everything that is pending.
+	 */
+	void flush() {
+		List<AerospikeExpiringSession> failed = new ArrayList<AerospikeExpiringSession>();
+		for (Stripe stripe : this.stripes) {
+			List<AerospikeExpiringSession> batch;
+			while (!(batch = stripe.drain(this.policy.maxBatchSize)).isEmpty()) {
+				write(batch, failed);
+			}
+		}
+		for (AerospikeExpiringSession session : failed) {
+			requeue(session);
+		}
+	}
+
+	private void write(List<AerospikeExpiringSession> batch, List<AerospikeExpiringSession> failed) {
+		if (this.repository instanceof AerospikeAsyncSessionRepository) {
+			AerospikeAsyncSessionRepository asyncRepository = (AerospikeAsyncSessionRepository) this.repository;
+			long start = this.repository.startTiming();
+			List<ListenableFuture<Void>> futures = new ArrayList<ListenableFuture<Void>>(batch.size());
+			for (AerospikeExpiringSession session : batch) {
+				futures.add(isDeleted(session.getId()) ? null : asyncRepository.writeAsync(session));
+			}
+			for (int i = 0; i < batch.size(); i++) {
+				if (futures.get(i) == null) {
+					written(batch.get(i), false);
+					continue;
+				}
+				try {
+					futures.get(i).get();
+					this.repository.recordSuccess(OperationType.WRITE_BEHIND, start);
+				}
+				catch (ExecutionException e) {
+					this.repository.recordFailure(OperationType.WRITE_BEHIND, start, e.getCause());
+					logger.error("Failed to write session " + batch.get(i).getId(), e.getCause());
+					if (e.getCause() instanceof AerospikeException) {
+						failed.add(batch.get(i));
+						continue;
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				written(batch.get(i), true);
+			}
+		}
+		else {
+			for (AerospikeExpiringSession session : batch) {
+				if (isDeleted(session.getId())) {
+					written(session, false);
+					continue;
+				}
+				long start = this.repository.startTiming();
+				try {
+					this.repository.write(session);
+					this.repository.recordSuccess(OperationType.WRITE_BEHIND, start);
+				}
+				catch (RuntimeException e) {
+					this.repository.recordFailure(OperationType.WRITE_BEHIND, start, e);
+					logger.error("Failed to write session " + session.getId(), e);
+					if (e instanceof AerospikeException) {
+						failed.add(session);
+						continue;
+					}
+				}
+				written(session, true);
+			}
+		}
+	}
+
+	/**
+	 * Ends the write of a session, deleting its record again if the session was
+	 * deleted while it was being written.
+	 *
+	 * @param attempted whether the write was issued
+	 */
+	private void written(AerospikeExpiringSession session, boolean attempted) {
+		boolean discard;
+		synchronized (this.deleted) {
+			this.inFlight.remove(session.getId());
+			discard = this.deleted.remove(session.getId());
+		}
+		this.capacity.release();
+		if (discard && attempted) {
+			try {
+				this.repository.discard(session.getId());
+			}
+			catch (RuntimeException e) {
+				logger.error("Failed to delete session " + session.getId() + " written after it was deleted", e);
+			}
+		}
+	}
+
+	/**
+	 * Queues a session whose write failed again, from the snapshot taken before
+	 * the write. Nothing is queued if the session was deleted meanwhile, or if a
+	 * newer save of it was written by the same flush.
+	 */
+	private void requeue(AerospikeExpiringSession session) {
+		String id = session.getId();
+		synchronized (this.deleted) {
+			if (!this.deleted.contains(id)) {
+				AerospikeExpiringSession snapshot = this.inFlight.remove(id);
+				if (snapshot == null || !stripeFor(id).requeue(snapshot)) {
+					this.capacity.release();
+				}
+				return;
+			}
+		}
+		written(session, true);
+	}
+
+	/**
+	 * Stops the background thread and writes everything still pending.
+	 */
+	void shutdown() {
+		this.executor.shutdown();
+		try {
+			this.executor.awaitTermination(this.policy.maxDelayInMillis * 10, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+
+	private Stripe stripeFor(String id) {
+		int hash = id.hashCode();
+		return this.stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+	}
+
+	/**
+	 * Pending sessions in the order they were first saved, guarded by their own lock.
+	 */
+	private final class Stripe {
+		private final Map<String, AerospikeExpiringSession> pending =
+				new LinkedHashMap<String, AerospikeExpiringSession>();
+
+		/**
+		 * Returns a copy of the pending save of a session, taken under the lock as
+		 * the save is handed to the flusher once drained.
+		 */
+		synchronized AerospikeExpiringSession get(String id) {
+			AerospikeExpiringSession session = this.pending.get(id);
+			return (session != null) ? session.copy() : null;
+		}
+
+		/**
+		 * Replaces a pending save of the same session with the snapshot.
+		 *
+		 * @return true if a pending save was replaced
+		 */
+		synchronized boolean merge(AerospikeExpiringSession snapshot) {
+			AerospikeExpiringSession existing = this.pending.get(snapshot.getId());
+			if (existing != null) {
+				snapshot.mergeUnsaved(existing);
+				this.pending.put(snapshot.getId(), snapshot);
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Adds the snapshot once capacity has been acquired for it.
+		 *
+		 * @return false if a pending save of the same session appeared meanwhile
+		 * and the snapshot was merged into it instead
+		 */
+		synchronized boolean add(AerospikeExpiringSession snapshot) {
+			if (merge(snapshot)) {
+				return false;
+			}
+			this.pending.put(snapshot.getId(), snapshot);
+			return true;
+		}
+
+		/**
+		 * Puts back the snapshot of a session whose write failed, or folds its
+		 * changes into a save of the same session made meanwhile.
+		 *
+		 * @return false if the snapshot was merged into a pending save
+		 */
+		synchronized boolean requeue(AerospikeExpiringSession snapshot) {
+			AerospikeExpiringSession newer = this.pending.get(snapshot.getId());
+			if (newer == null) {
+				this.pending.put(snapshot.getId(), snapshot);
+				return true;
+			}
+			newer.mergeUnsaved(snapshot);
+			return false;
+		}
+
+		synchronized boolean remove(String id) {
+			return this.pending.remove(id) != null;
+		}
+
+		synchronized List<AerospikeExpiringSession> drain(int max) {
+			List<AerospikeExpiringSession> batch = new ArrayList<AerospikeExpiringSession>(
+					Math.min(max, this.pending.size()));
+			Iterator<AerospikeExpiringSession> it = this.pending.values().iterator();
+			while (it.hasNext() && batch.size() < max) {
+				AerospikeExpiringSession session = it.next();
+				it.remove();
+				WriteBehindBuffer.this.inFlight.put(session.getId(), session.copy());
+				batch.add(session);
+			}
+			return batch;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike;
+
+/**
+ * Settings for saving sessions in the background, see
+ * {@link AerospikeOperationsSessionRepository#setWriteBehindPolicy(WriteBehindPolicy)}.
+ * Like the Aerospike client policies the settings are public fields.
+ *
+ * @author Jeff Boone
+ * @since 2.0
+ */
+public class WriteBehindPolicy {
+
+	/**
+	 * What {@code save()} does when the maximum number of pending sessions is reached.
+	 */
+	public enum Backpressure {
+		/**
+		 * Wait until the background writer has made room.
+		 */
+		BLOCK,
+		/**
+		 * Write the session synchronously in the calling thread.
+		 */
+		WRITE_THROUGH
+	}
+
+	/**
+	 * Maximum time in milliseconds a saved session waits before it is written.
+	 */
+	public long maxDelayInMillis = 100;
+
+	/**
+	 * Number of pending sessions that triggers a write before the delay has passed,
+	 * and the number of sessions written together.
+	 */
+	public int maxBatchSize = 100;
+
+	/**
+	 * Maximum number of distinct sessions waiting to be written.
+	 */
+	public int maxPending = 10000;
+
+	public Backpressure backpressure = Backpressure.BLOCK;
+
+	public WriteBehindPolicy() {
+	}
+
+	public WriteBehindPolicy(WriteBehindPolicy other) {
+		this.maxDelayInMillis = other.maxDelayInMillis;
+		this.maxBatchSize = other.maxBatchSize;
+		this.maxPending = other.maxPending;
+		this.backpressure = other.backpressure;
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aerospike.springframework.session.aerospike.config.annotation.web.http;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.annotation.AnnotationAttributes;
+import org.springframework.core.type.AnnotationMetadata;
+
+import com.aerospike.client.IAerospikeClient;
+import com.aerospike.client.async.IAsyncClient;
+import com.aerospike.springframework.session.aerospike.AerospikeAsyncSessionRepository;
+import com.aerospike.springframework.session.aerospike.AerospikeOperationsSessionRepository;
+
+/**
+ * Configuration class registering {@code AerospikeAsyncSessionRepository} 
+ * bean. To import this configuration use {@link EnableAerospikeAsyncHttpSession} 
+ * annotation.
+ *
+ * @author Jeff Boone
+ * @since 2.0.0
+ */
+@Configuration
+public class AerospikeAsyncHttpSessionConfiguration extends AerospikeHttpSessionConfiguration {
+
+	@Bean
+	@Override
+	public AerospikeAsyncSessionRepository aerospikeSessionRepository(
+			IAerospikeClient aerospikeClient) {
+		return (AerospikeAsyncSessionRepository) super.aerospikeSessionRepository(aerospikeClient);
+	}
+
+	@Override
+	protected AerospikeOperationsSessionRepository createSessionRepository(
+			IAerospikeClient aerospikeClient) {
+		if (!(aerospikeClient instanceof IAsyncClient)) {
+			throw new IllegalStateException(
+					"@EnableAerospikeAsyncHttpSession requires an AsyncClient bean");
+		}
+		return new AerospikeAsyncSessionRepository((IAsyncClient) aerospikeClient);
+	}
+
+	@Override
+	public void setImportMetadata(AnnotationMetadata importMetadata) {
+		setAttributes(AnnotationAttributes.fromMap(importMetadata
+				.getAnnotationAttributes(EnableAerospikeAsyncHttpSession.class.getName())));
+	}
+}
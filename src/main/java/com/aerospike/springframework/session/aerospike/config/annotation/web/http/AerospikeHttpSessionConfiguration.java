@@ -16,43 +16,202 @@
 
 package com.aerospike.springframework.session.aerospike.config.annotation.web.http;
 
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
 import org.springframework.context.annotation.ImportAware;
 import org.springframework.core.annotation.AnnotationAttributes;
 import org.springframework.core.type.AnnotationMetadata;
-import org.springframework.data.aerospike.core.AerospikeTemplate;
 import org.springframework.session.config.annotation.web.http.SpringHttpSessionConfiguration;
+import org.springframework.util.ClassUtils;
 
-import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.IAerospikeClient;
+import com.aerospike.client.policy.CommitLevel;
+import com.aerospike.client.policy.Replica;
 import com.aerospike.springframework.session.aerospike.AerospikeOperationsSessionRepository;
+import com.aerospike.springframework.session.aerospike.AerospikeOperationsSessionRepository.PrincipalIndexMode;
+import com.aerospike.springframework.session.aerospike.CompactSessionCodec;
+import com.aerospike.springframework.session.aerospike.CompactSessionCodec.Compression;
+import com.aerospike.springframework.session.aerospike.ExpirySweepPolicy;
+import com.aerospike.springframework.session.aerospike.SessionCodec;
+import com.aerospike.springframework.session.aerospike.SessionIdGenerator;
+import com.aerospike.springframework.session.aerospike.SessionNearCache;
+import com.aerospike.springframework.session.aerospike.SessionPolicies;
+import com.aerospike.springframework.session.aerospike.SessionRepositoryMetrics;
+import com.aerospike.springframework.session.aerospike.SessionSizeProfiler;
+import com.aerospike.springframework.session.aerospike.TieredStoragePolicy;
+import com.aerospike.springframework.session.aerospike.WriteBehindPolicy;
 
 /**
  * Configuration class registering {@code AerospikeOperationsSessionRepository} 
  * bean. To import this configuration use {@link EnableAerospikeHttpSession} 
- * annotation.
+ * annotation. The repository reports to a {@link SessionRepositoryMetrics} bean or,
+ * without one, to the Micrometer {@code MeterRegistry} bean when Micrometer is
+ * on the classpath. With the Spring Boot actuator on the classpath, the
+ * {@code sessionsizes} endpoint returns the profile of the {@link SessionSizeProfiler}.
  *
  * @author Jeff Boone
  * @author Michael Zhang
  * @since 2.0.0
  */
 @Configuration
+@Import(SessionSizeProfilerEndpointConfiguration.class)
 public class AerospikeHttpSessionConfiguration extends SpringHttpSessionConfiguration
 	implements ImportAware {
 
+	private static final boolean MICROMETER_PRESENT = ClassUtils.isPresent(
+			"io.micrometer.core.instrument.MeterRegistry",
+			AerospikeHttpSessionConfiguration.class.getClassLoader());
+
 	private Integer maxInactiveIntervalInSeconds = 1800;
 	private String namespace;
+	private boolean serverSideExpiry = false;
+	private boolean generationCheck = false;
+	private int maxConflictRetries = AerospikeOperationsSessionRepository.DEFAULT_MAX_CONFLICT_RETRIES;
+	private double touchThresholdRatio = 0;
+	private int nearCacheMaxSize = 0;
+	private int nearCacheTimeToLiveInSeconds = SessionNearCache.DEFAULT_TIME_TO_LIVE;
+	private long nearCacheTrustIntervalInMillis = 0;
+	private Compression compression = Compression.NONE;
+	private int compressionThreshold = CompactSessionCodec.DEFAULT_COMPRESSION_THRESHOLD;
+	private int chunkThreshold = 0;
+	private SessionCodec sessionCodec;
+	private SessionIdGenerator sessionIdGenerator;
+	private WriteBehindPolicy writeBehindPolicy;
+	private boolean singleFlight = false;
+	private ExpirySweepPolicy expirySweepPolicy;
+	private TieredStoragePolicy tieredStoragePolicy;
+	private PrincipalIndexMode principalIndexMode = PrincipalIndexMode.SECONDARY_INDEX;
+	private boolean asyncIndexCreation = false;
+	private int warmUpConnectionsPerNode = 0;
+	private int readTimeoutInMillis = 0;
+	private int writeTimeoutInMillis = 0;
+	private Replica readReplica = Replica.SEQUENCE;
+	private CommitLevel touchCommitLevel = CommitLevel.COMMIT_MASTER;
+	private boolean durableDelete = false;
+	private String fallbackClientBeanName = "";
+	private IAerospikeClient fallbackClient;
+	private long hedgeDelayInMillis = 0;
+	private SessionPolicies sessionPolicies;
+	private SessionRepositoryMetrics sessionRepositoryMetrics;
+	private SessionSizeProfiler sessionSizeProfiler;
+	private double sizeProfilerSampleRate = 0;
+	private int sizeWarnThresholdBytes = 0;
+	private int sizeRejectThresholdBytes = 0;
+	private ApplicationContext applicationContext;
 
 	@Bean
 	public AerospikeOperationsSessionRepository aerospikeSessionRepository(
-			AerospikeClient aerospikeClient) {
-		AerospikeOperationsSessionRepository repository = 
-				new AerospikeOperationsSessionRepository(new AerospikeTemplate(aerospikeClient, this.namespace));
+			IAerospikeClient aerospikeClient) {
+		AerospikeOperationsSessionRepository repository = createSessionRepository(aerospikeClient);
+		repository.setNamespace(this.namespace);
 		repository.setMaxInactiveIntervalInSeconds(this.maxInactiveIntervalInSeconds);
+		repository.setServerSideExpiry(this.serverSideExpiry);
+		repository.setGenerationCheck(this.generationCheck);
+		repository.setMaxConflictRetries(this.maxConflictRetries);
+		repository.setTouchThresholdRatio(this.touchThresholdRatio);
+		repository.setSingleFlight(this.singleFlight);
+		repository.setPrincipalIndexMode(this.principalIndexMode);
+		repository.setAsyncIndexCreation(this.asyncIndexCreation);
+		repository.setWarmUpConnectionsPerNode(this.warmUpConnectionsPerNode);
+		repository.setPolicies((this.sessionPolicies != null) ? this.sessionPolicies : createSessionPolicies());
+		if (this.sessionCodec != null) {
+			repository.setSessionCodec(this.sessionCodec);
+		}
+		else {
+			CompactSessionCodec sessionCodec = new CompactSessionCodec();
+			sessionCodec.setCompression(this.compression);
+			sessionCodec.setCompressionThreshold(this.compressionThreshold);
+			repository.setSessionCodec(sessionCodec);
+		}
+		if (this.sessionIdGenerator != null) {
+			repository.setSessionIdGenerator(this.sessionIdGenerator);
+		}
+		repository.setChunkThreshold(this.chunkThreshold);
+		if (this.writeBehindPolicy != null) {
+			repository.setWriteBehindPolicy(this.writeBehindPolicy);
+		}
+		if (this.applicationContext != null) {
+			repository.setApplicationEventPublisher(this.applicationContext);
+		}
+		if (this.expirySweepPolicy != null) {
+			repository.setExpirySweepPolicy(this.expirySweepPolicy);
+		}
+		if (this.tieredStoragePolicy != null) {
+			repository.setTieredStoragePolicy(this.tieredStoragePolicy);
+		}
+		IAerospikeClient fallbackClient = this.fallbackClient;
+		if (fallbackClient == null && !this.fallbackClientBeanName.isEmpty() && this.applicationContext != null) {
+			fallbackClient = this.applicationContext.getBean(this.fallbackClientBeanName, IAerospikeClient.class);
+		}
+		repository.setHedgeDelayInMillis(this.hedgeDelayInMillis);
+		repository.setFallbackClient(fallbackClient);
+		if (this.nearCacheMaxSize > 0) {
+			SessionNearCache nearCache = new SessionNearCache(this.nearCacheMaxSize);
+			nearCache.setTimeToLiveInSeconds(this.nearCacheTimeToLiveInSeconds);
+			nearCache.setTrustIntervalInMillis(this.nearCacheTrustIntervalInMillis);
+			repository.setNearCache(nearCache);
+		}
+		repository.setSessionSizeProfiler((this.sessionSizeProfiler != null)
+				? this.sessionSizeProfiler : createSessionSizeProfiler());
+		SessionRepositoryMetrics metrics = this.sessionRepositoryMetrics;
+		if (metrics == null && MICROMETER_PRESENT && this.applicationContext != null) {
+			metrics = MeterRegistryMetrics.create(this.applicationContext);
+		}
+		repository.setMetrics(metrics);
 				
 		return repository;
 	}
 
+	private SessionPolicies createSessionPolicies() {
+		SessionPolicies policies = new SessionPolicies();
+		if (this.readTimeoutInMillis > 0) {
+			policies.read.timeout = this.readTimeoutInMillis;
+			policies.batch.timeout = this.readTimeoutInMillis;
+		}
+		if (this.writeTimeoutInMillis > 0) {
+			policies.save.timeout = this.writeTimeoutInMillis;
+			policies.update.timeout = this.writeTimeoutInMillis;
+			policies.touch.timeout = this.writeTimeoutInMillis;
+			policies.delete.timeout = this.writeTimeoutInMillis;
+			policies.index.timeout = this.writeTimeoutInMillis;
+		}
+		policies.read.replica = this.readReplica;
+		policies.batch.replica = this.readReplica;
+		policies.touch.commitLevel = this.touchCommitLevel;
+		policies.delete.durableDelete = this.durableDelete;
+		return policies;
+	}
+
+	private SessionSizeProfiler createSessionSizeProfiler() {
+		if (this.sizeProfilerSampleRate <= 0 && this.sizeWarnThresholdBytes <= 0
+				&& this.sizeRejectThresholdBytes <= 0) {
+			return null;
+		}
+		SessionSizeProfiler profiler = new SessionSizeProfiler();
+		profiler.setSampleRate(this.sizeProfilerSampleRate);
+		profiler.setWarnThresholdBytes(this.sizeWarnThresholdBytes);
+		profiler.setRejectThresholdBytes(this.sizeRejectThresholdBytes);
+		return profiler;
+	}
+
+	/**
+	 * Creates the repository before it is configured. Subclasses may return a more
+	 * specific repository.
+	 *
+	 * @param aerospikeClient the client
+	 * @return the repository
+	 */
+	protected AerospikeOperationsSessionRepository createSessionRepository(
+			IAerospikeClient aerospikeClient) {
+		return new AerospikeOperationsSessionRepository(aerospikeClient);
+	}
+
 	public void setNamespace(String namespace) {
 		this.namespace = namespace;
 	}
@@ -61,12 +220,208 @@ public class AerospikeHttpSessionConfiguration extends SpringHttpSessionConfigur
 		this.maxInactiveIntervalInSeconds = maxInactiveIntervalInSeconds;
 	}
 
+	public void setServerSideExpiry(boolean serverSideExpiry) {
+		this.serverSideExpiry = serverSideExpiry;
+	}
+
+	public void setGenerationCheck(boolean generationCheck) {
+		this.generationCheck = generationCheck;
+	}
+
+	public void setMaxConflictRetries(int maxConflictRetries) {
+		this.maxConflictRetries = maxConflictRetries;
+	}
+
+	public void setTouchThresholdRatio(double touchThresholdRatio) {
+		this.touchThresholdRatio = touchThresholdRatio;
+	}
+
+	public void setNearCacheMaxSize(int nearCacheMaxSize) {
+		this.nearCacheMaxSize = nearCacheMaxSize;
+	}
+
+	public void setNearCacheTimeToLiveInSeconds(int nearCacheTimeToLiveInSeconds) {
+		this.nearCacheTimeToLiveInSeconds = nearCacheTimeToLiveInSeconds;
+	}
+
+	public void setNearCacheTrustIntervalInMillis(long nearCacheTrustIntervalInMillis) {
+		this.nearCacheTrustIntervalInMillis = nearCacheTrustIntervalInMillis;
+	}
+
+	public void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	public void setChunkThreshold(int chunkThreshold) {
+		this.chunkThreshold = chunkThreshold;
+	}
+
+	public void setWriteBehindPolicy(WriteBehindPolicy writeBehindPolicy) {
+		this.writeBehindPolicy = writeBehindPolicy;
+	}
+
+	public void setSingleFlight(boolean singleFlight) {
+		this.singleFlight = singleFlight;
+	}
+
+	public void setExpirySweepPolicy(ExpirySweepPolicy expirySweepPolicy) {
+		this.expirySweepPolicy = expirySweepPolicy;
+	}
+
+	public void setTieredStoragePolicy(TieredStoragePolicy tieredStoragePolicy) {
+		this.tieredStoragePolicy = tieredStoragePolicy;
+	}
+
+	public void setPrincipalIndexMode(PrincipalIndexMode principalIndexMode) {
+		this.principalIndexMode = principalIndexMode;
+	}
+
+	public void setAsyncIndexCreation(boolean asyncIndexCreation) {
+		this.asyncIndexCreation = asyncIndexCreation;
+	}
+
+	public void setWarmUpConnectionsPerNode(int warmUpConnectionsPerNode) {
+		this.warmUpConnectionsPerNode = warmUpConnectionsPerNode;
+	}
+
+	public void setSizeProfilerSampleRate(double sizeProfilerSampleRate) {
+		this.sizeProfilerSampleRate = sizeProfilerSampleRate;
+	}
+
+	public void setSizeWarnThresholdBytes(int sizeWarnThresholdBytes) {
+		this.sizeWarnThresholdBytes = sizeWarnThresholdBytes;
+	}
+
+	public void setSizeRejectThresholdBytes(int sizeRejectThresholdBytes) {
+		this.sizeRejectThresholdBytes = sizeRejectThresholdBytes;
+	}
+
+	public void setFallbackClientBeanName(String fallbackClientBeanName) {
+		this.fallbackClientBeanName = fallbackClientBeanName;
+	}
+
+	public void setFallbackClient(IAerospikeClient fallbackClient) {
+		this.fallbackClient = fallbackClient;
+	}
+
+	public void setHedgeDelayInMillis(long hedgeDelayInMillis) {
+		this.hedgeDelayInMillis = hedgeDelayInMillis;
+	}
+
+	public void setReadTimeoutInMillis(int readTimeoutInMillis) {
+		this.readTimeoutInMillis = readTimeoutInMillis;
+	}
+
+	public void setWriteTimeoutInMillis(int writeTimeoutInMillis) {
+		this.writeTimeoutInMillis = writeTimeoutInMillis;
+	}
+
+	public void setReadReplica(Replica readReplica) {
+		this.readReplica = readReplica;
+	}
+
+	public void setTouchCommitLevel(CommitLevel touchCommitLevel) {
+		this.touchCommitLevel = touchCommitLevel;
+	}
+
+	public void setDurableDelete(boolean durableDelete) {
+		this.durableDelete = durableDelete;
+	}
+
+	@Autowired(required = false)
+	public void setSessionPolicies(SessionPolicies sessionPolicies) {
+		this.sessionPolicies = sessionPolicies;
+	}
+
+	@Autowired(required = false)
+	public void setSessionCodec(SessionCodec sessionCodec) {
+		this.sessionCodec = sessionCodec;
+	}
+
+	@Autowired(required = false)
+	public void setSessionIdGenerator(SessionIdGenerator sessionIdGenerator) {
+		this.sessionIdGenerator = sessionIdGenerator;
+	}
+
+	@Autowired(required = false)
+	public void setSessionSizeProfiler(SessionSizeProfiler sessionSizeProfiler) {
+		this.sessionSizeProfiler = sessionSizeProfiler;
+	}
+
+	@Autowired(required = false)
+	public void setSessionRepositoryMetrics(SessionRepositoryMetrics sessionRepositoryMetrics) {
+		this.sessionRepositoryMetrics = sessionRepositoryMetrics;
+	}
+
+	@Override
+	public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
+		super.setApplicationContext(applicationContext);
+		this.applicationContext = applicationContext;
+	}
+
 	public void setImportMetadata(AnnotationMetadata importMetadata) {
-		AnnotationAttributes attributes = AnnotationAttributes.fromMap(importMetadata
-				.getAnnotationAttributes(EnableAerospikeHttpSession.class.getName()));
+		setAttributes(AnnotationAttributes.fromMap(importMetadata
+				.getAnnotationAttributes(EnableAerospikeHttpSession.class.getName())));
+	}
+
+	/**
+	 * Applies the attributes of the enabling annotation.
+	 */
+	protected void setAttributes(AnnotationAttributes attributes) {
 		this.maxInactiveIntervalInSeconds = attributes
 				.getNumber("maxInactiveIntervalInSeconds");
 		this.namespace = attributes.getString("namespace");
+		this.serverSideExpiry = attributes.getBoolean("serverSideExpiry");
+		this.generationCheck = attributes.getBoolean("generationCheck");
+		this.maxConflictRetries = attributes.<Integer>getNumber("maxConflictRetries");
+		this.touchThresholdRatio = attributes.<Double>getNumber("touchThresholdRatio");
+		this.nearCacheMaxSize = attributes.<Integer>getNumber("nearCacheMaxSize");
+		this.nearCacheTimeToLiveInSeconds = attributes.<Integer>getNumber("nearCacheTimeToLiveInSeconds");
+		this.nearCacheTrustIntervalInMillis = attributes.<Long>getNumber("nearCacheTrustIntervalInMillis");
+		this.compression = attributes.getEnum("compression");
+		this.compressionThreshold = attributes.<Integer>getNumber("compressionThreshold");
+		this.chunkThreshold = attributes.<Integer>getNumber("chunkThreshold");
+		this.singleFlight = attributes.getBoolean("singleFlight");
+		this.principalIndexMode = attributes.getEnum("principalIndexMode");
+		this.asyncIndexCreation = attributes.getBoolean("asyncIndexCreation");
+		this.warmUpConnectionsPerNode = attributes.<Integer>getNumber("warmUpConnectionsPerNode");
+		this.readTimeoutInMillis = attributes.<Integer>getNumber("readTimeoutInMillis");
+		this.writeTimeoutInMillis = attributes.<Integer>getNumber("writeTimeoutInMillis");
+		this.readReplica = attributes.getEnum("readReplica");
+		this.touchCommitLevel = attributes.getEnum("touchCommitLevel");
+		this.durableDelete = attributes.getBoolean("durableDelete");
+		this.fallbackClientBeanName = attributes.getString("fallbackClientBeanName");
+		this.hedgeDelayInMillis = attributes.<Long>getNumber("hedgeDelayInMillis");
+		this.sizeProfilerSampleRate = attributes.<Double>getNumber("sizeProfilerSampleRate");
+		this.sizeWarnThresholdBytes = attributes.<Integer>getNumber("sizeWarnThresholdBytes");
+		this.sizeRejectThresholdBytes = attributes.<Integer>getNumber("sizeRejectThresholdBytes");
+		int expirySweepIntervalInSeconds = attributes.<Integer>getNumber("expirySweepIntervalInSeconds");
+		if (expirySweepIntervalInSeconds > 0) {
+			this.expirySweepPolicy = new ExpirySweepPolicy();
+			this.expirySweepPolicy.intervalInMillis = TimeUnit.SECONDS.toMillis(expirySweepIntervalInSeconds);
+			this.expirySweepPolicy.nodeCount = attributes.<Integer>getNumber("expirySweepNodeCount");
+			this.expirySweepPolicy.nodeIndex = attributes.<Integer>getNumber("expirySweepNodeIndex");
+		}
+		String coldNamespace = attributes.getString("coldNamespace");
+		if (!coldNamespace.isEmpty()) {
+			this.tieredStoragePolicy = new TieredStoragePolicy();
+			this.tieredStoragePolicy.coldNamespace = coldNamespace;
+			this.tieredStoragePolicy.demoteAfterIdleInSeconds = attributes.<Integer>getNumber("demoteAfterIdleInSeconds");
+			this.tieredStoragePolicy.demoteIntervalInMillis = TimeUnit.SECONDS.toMillis(
+					attributes.<Integer>getNumber("demoteIntervalInSeconds"));
+		}
+		long writeBehindMaxDelayInMillis = attributes.<Long>getNumber("writeBehindMaxDelayInMillis");
+		if (writeBehindMaxDelayInMillis > 0) {
+			this.writeBehindPolicy = new WriteBehindPolicy();
+			this.writeBehindPolicy.maxDelayInMillis = writeBehindMaxDelayInMillis;
+			this.writeBehindPolicy.maxBatchSize = attributes.<Integer>getNumber("writeBehindMaxBatchSize");
+			this.writeBehindPolicy.maxPending = attributes.<Integer>getNumber("writeBehindMaxPending");
+			this.writeBehindPolicy.backpressure = attributes.getEnum("writeBehindBackpressure");
+		}
 	}
 }
 
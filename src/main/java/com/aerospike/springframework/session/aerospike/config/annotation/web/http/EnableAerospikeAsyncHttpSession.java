@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aerospike.springframework.session.aerospike.config.annotation.web.http;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+
+import com.aerospike.client.policy.CommitLevel;
+import com.aerospike.client.policy.Replica;
+import com.aerospike.springframework.session.aerospike.AerospikeOperationsSessionRepository;
+import com.aerospike.springframework.session.aerospike.AerospikeOperationsSessionRepository.PrincipalIndexMode;
+import com.aerospike.springframework.session.aerospike.CompactSessionCodec;
+import com.aerospike.springframework.session.aerospike.CompactSessionCodec.Compression;
+import com.aerospike.springframework.session.aerospike.SessionNearCache;
+import com.aerospike.springframework.session.aerospike.WriteBehindPolicy.Backpressure;
+
+/**
+ * Counterpart of {@link EnableAerospikeHttpSession} that registers an
+ * {@code AerospikeAsyncSessionRepository}, which adds non-blocking
+ * {@code getSessionAsync}, {@code saveAsync} and {@code deleteAsync} operations
+ * to the regular repository. Requires an {@code AsyncClient} bean.
+ * It accepts the same attributes as {@link EnableAerospikeHttpSession}, with the
+ * same defaults.
+ * <pre>
+ * <code>
+ * {@literal @EnableAerospikeAsyncHttpSession}
+ * public class AerospikeHttpSessionConfig {
+ *
+ *	   {@literal @Bean}
+ *	    public AsyncClient aerospikeClient() {
+ *		   return new AsyncClient(new AsyncClientPolicy(), hostName, port);
+ *	   }
+ * }
+ * </code> </pre>
+ *
+ * @author Jeff Boone
+ * @since 2.0.0
+ */
+@Retention(java.lang.annotation.RetentionPolicy.RUNTIME)
+@Target({ java.lang.annotation.ElementType.TYPE })
+@Documented
+@Import(AerospikeAsyncHttpSessionConfiguration.class)
+@Configuration
+public @interface EnableAerospikeAsyncHttpSession {
+	int maxInactiveIntervalInSeconds() 
+		default AerospikeOperationsSessionRepository.DEFAULT_INACTIVE_INTERVAL;
+	String namespace() default AerospikeOperationsSessionRepository.DEFAULT_NAMESPACE;
+	boolean serverSideExpiry() default false;
+	boolean generationCheck() default false;
+	int maxConflictRetries() default AerospikeOperationsSessionRepository.DEFAULT_MAX_CONFLICT_RETRIES;
+	double touchThresholdRatio() default 0;
+	int nearCacheMaxSize() default 0;
+	int nearCacheTimeToLiveInSeconds() default SessionNearCache.DEFAULT_TIME_TO_LIVE;
+	long nearCacheTrustIntervalInMillis() default 0;
+	Compression compression() default Compression.NONE;
+	int compressionThreshold() default CompactSessionCodec.DEFAULT_COMPRESSION_THRESHOLD;
+	int chunkThreshold() default 0;
+	long writeBehindMaxDelayInMillis() default 0;
+	int writeBehindMaxBatchSize() default 100;
+	int writeBehindMaxPending() default 10000;
+	Backpressure writeBehindBackpressure() default Backpressure.BLOCK;
+	boolean singleFlight() default false;
+	int expirySweepIntervalInSeconds() default 0;
+	int expirySweepNodeCount() default 1;
+	int expirySweepNodeIndex() default 0;
+	String coldNamespace() default "";
+	int demoteAfterIdleInSeconds() default 3600;
+	int demoteIntervalInSeconds() default 60;
+	PrincipalIndexMode principalIndexMode() default PrincipalIndexMode.SECONDARY_INDEX;
+	boolean asyncIndexCreation() default false;
+	int warmUpConnectionsPerNode() default 0;
+	int readTimeoutInMillis() default 0;
+	int writeTimeoutInMillis() default 0;
+	Replica readReplica() default Replica.SEQUENCE;
+	CommitLevel touchCommitLevel() default CommitLevel.COMMIT_MASTER;
+	boolean durableDelete() default false;
+	double sizeProfilerSampleRate() default 0;
+	int sizeWarnThresholdBytes() default 0;
+	int sizeRejectThresholdBytes() default 0;
+	String fallbackClientBeanName() default "";
+	long hedgeDelayInMillis() default 0;
+}
+
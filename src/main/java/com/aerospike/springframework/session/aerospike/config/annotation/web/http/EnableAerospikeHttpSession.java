@@ -23,7 +23,14 @@ import java.lang.annotation.Target;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 
+import com.aerospike.client.policy.CommitLevel;
+import com.aerospike.client.policy.Replica;
 import com.aerospike.springframework.session.aerospike.AerospikeOperationsSessionRepository;
+import com.aerospike.springframework.session.aerospike.AerospikeOperationsSessionRepository.PrincipalIndexMode;
+import com.aerospike.springframework.session.aerospike.CompactSessionCodec;
+import com.aerospike.springframework.session.aerospike.CompactSessionCodec.Compression;
+import com.aerospike.springframework.session.aerospike.SessionNearCache;
+import com.aerospike.springframework.session.aerospike.WriteBehindPolicy.Backpressure;
 
 /**
  * Add this annotation to a {@code @Configuration} class to expose the
@@ -31,6 +38,49 @@ import com.aerospike.springframework.session.aerospike.AerospikeOperationsSessio
  * an Aerospike database. 
  *   Use {@code namespace} to change default name of the namespce used to store sessions ("session_store").
  *   Use {@code maxInactiveIntervalInSeconds} to change the default session timeout (1800 seconds).
+ *   Use {@code serverSideExpiry} to rely on the record TTL alone instead of also rejecting expired
+ *   sessions when they are read (false).
+ *   Use {@code generationCheck} to save changed attributes only on top of the latest stored version
+ *   of the session, retrying up to {@code maxConflictRetries} times (false, 3).
+ *   Use {@code touchThresholdRatio} to skip writing the access time of unchanged sessions while
+ *   the stored one is younger than this fraction of the timeout (0, always written).
+ *   Use {@code nearCacheMaxSize} to keep up to that many sessions in an in-process cache (0, disabled),
+ *   {@code nearCacheTimeToLiveInSeconds} to bound how long they are kept (300 seconds) and
+ *   {@code nearCacheTrustIntervalInMillis} to skip validating a cached session for that long (0).
+ *   Use {@code compression} to compress attribute values larger than {@code compressionThreshold}
+ *   bytes (NONE, 1024). A {@code SessionCodec} bean replaces the default codec altogether.
+ *   A {@code SessionIdGenerator} bean replaces the generator of session ids.
+ *   Use {@code chunkThreshold} to store attribute values encoded larger than that many bytes in
+ *   separate records, read only when the attribute is accessed (0, disabled).
+ *   Use {@code writeBehindMaxDelayInMillis} to write sessions in the background at most that long
+ *   after they were saved (0, written synchronously), with {@code writeBehindMaxBatchSize},
+ *   {@code writeBehindMaxPending} and {@code writeBehindBackpressure} to tune the buffer.
+ *   Use {@code singleFlight} to share one read between concurrent requests for the same session
+ *   and merge their concurrent saves (false).
+ *   Use {@code expirySweepIntervalInSeconds} to publish {@code SessionExpiredEvent}s for sessions
+ *   removed by their record TTL, sweeping that often (0, disabled), and
+ *   {@code expirySweepNodeCount} and {@code expirySweepNodeIndex} to share the sweep between nodes
+ *   (1, 0); nodes with the same index take turns through a lease. {@code SessionDeletedEvent}s
+ *   are always published.
+ *   Use {@code coldNamespace} to move sessions idle for {@code demoteAfterIdleInSeconds} to that
+ *   namespace and back on access (disabled, 3600 seconds), scanning for idle sessions every
+ *   {@code demoteIntervalInSeconds} (60 seconds, 0 to leave the scan to other nodes).
+ *   Use {@code principalIndexMode} to find sessions by principal through per-principal records
+ *   instead of a secondary index query (SECONDARY_INDEX), and {@code asyncIndexCreation} to build
+ *   that index in the background, scanning for sessions by principal until it is ready (false).
+ *   Use {@code warmUpConnectionsPerNode} to open that many connections to every node on startup (0).
+ *   Use {@code readTimeoutInMillis} and {@code writeTimeoutInMillis} to bound reads and writes
+ *   (0, the {@code SessionPolicies} defaults), {@code readReplica} to
+ *   choose the replica reads go to (SEQUENCE), {@code touchCommitLevel} to choose when writes of
+ *   the access time alone are acknowledged (COMMIT_MASTER) and {@code durableDelete} to delete
+ *   sessions with tombstones (false). A {@code SessionPolicies} bean replaces these settings.
+ *   Use {@code sizeProfilerSampleRate} to measure the encoded size of that share of saved sessions
+ *   (0, disabled), {@code sizeWarnThresholdBytes} to log measured sessions above that size (0) and
+ *   {@code sizeRejectThresholdBytes} to fail saving sessions above that size (0). A
+ *   {@code SessionSizeProfiler} bean replaces these settings.
+ *   Use {@code fallbackClientBeanName} to read sessions from the cluster of that
+ *   {@code IAerospikeClient} bean when the primary cluster misses them or fails (none), and
+ *   {@code hedgeDelayInMillis} to also read it when the primary read is slower than that (0, disabled).
  * <pre>
  * <code>
  * {@literal @EnableAerospikeHttpSession}
@@ -42,14 +92,9 @@ import com.aerospike.springframework.session.aerospike.AerospikeOperationsSessio
  *	   {@literal @Value("${spring.aerospike.port}")}
  *	   private int port;
  *
- *	   {@literal @Value("${spring.aerospike.namespace}")}
- *	   private String namespace;
- *
  *	   {@literal @Bean}
- *	    public AerospikeTemplate aerospikeTemplate() {
- *		   AerospikeClient aerospikeClient;
- *		   aerospikeClient = new AerospikeClient(hostName, port);
- *		   return new AerospikeTemplate(aerospikeClient, namespace);
+ *	    public IAerospikeClient aerospikeClient() {
+ *		   return new AerospikeClient(hostName, port);
  *	   }
  * }
  * </code> </pre>
@@ -67,5 +112,39 @@ public @interface EnableAerospikeHttpSession {
 	int maxInactiveIntervalInSeconds() 
 		default AerospikeOperationsSessionRepository.DEFAULT_INACTIVE_INTERVAL;
 	String namespace() default AerospikeOperationsSessionRepository.DEFAULT_NAMESPACE;
+	boolean serverSideExpiry() default false;
+	boolean generationCheck() default false;
+	int maxConflictRetries() default AerospikeOperationsSessionRepository.DEFAULT_MAX_CONFLICT_RETRIES;
+	double touchThresholdRatio() default 0;
+	int nearCacheMaxSize() default 0;
+	int nearCacheTimeToLiveInSeconds() default SessionNearCache.DEFAULT_TIME_TO_LIVE;
+	long nearCacheTrustIntervalInMillis() default 0;
+	Compression compression() default Compression.NONE;
+	int compressionThreshold() default CompactSessionCodec.DEFAULT_COMPRESSION_THRESHOLD;
+	int chunkThreshold() default 0;
+	long writeBehindMaxDelayInMillis() default 0;
+	int writeBehindMaxBatchSize() default 100;
+	int writeBehindMaxPending() default 10000;
+	Backpressure writeBehindBackpressure() default Backpressure.BLOCK;
+	boolean singleFlight() default false;
+	int expirySweepIntervalInSeconds() default 0;
+	int expirySweepNodeCount() default 1;
+	int expirySweepNodeIndex() default 0;
+	String coldNamespace() default "";
+	int demoteAfterIdleInSeconds() default 3600;
+	int demoteIntervalInSeconds() default 60;
+	PrincipalIndexMode principalIndexMode() default PrincipalIndexMode.SECONDARY_INDEX;
+	boolean asyncIndexCreation() default false;
+	int warmUpConnectionsPerNode() default 0;
+	int readTimeoutInMillis() default 0;
+	int writeTimeoutInMillis() default 0;
+	Replica readReplica() default Replica.SEQUENCE;
+	CommitLevel touchCommitLevel() default CommitLevel.COMMIT_MASTER;
+	boolean durableDelete() default false;
+	double sizeProfilerSampleRate() default 0;
+	int sizeWarnThresholdBytes() default 0;
+	int sizeRejectThresholdBytes() default 0;
+	String fallbackClientBeanName() default "";
+	long hedgeDelayInMillis() default 0;
 }
 
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aerospike.springframework.session.aerospike.config.annotation.web.http;
+
+import java.util.Arrays;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.aerospike.springframework.session.aerospike.MicrometerSessionRepositoryMetrics;
+import com.aerospike.springframework.session.aerospike.SessionRepositoryMetrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+
+/**
+ * Looks up the Micrometer registry of the application. Kept apart from the
+ * configuration class so that Micrometer is only loaded when it is present.
+ *
+ * @author Jeff Boone
+ * @since 2.0.0
+ */
+final class MeterRegistryMetrics {
+
+	private static final Log logger = LogFactory.getLog(MeterRegistryMetrics.class);
+
+	private MeterRegistryMetrics() {
+	}
+
+	/**
+	 * Returns metrics publishing to the {@link MeterRegistry} bean, or
+	 * {@code null} if the context has none. With several registries the primary
+	 * one is used, or else the only {@link CompositeMeterRegistry}, which
+	 * publishes to the others.
+	 */
+	static SessionRepositoryMetrics create(ApplicationContext applicationContext) {
+		String name = findRegistry(applicationContext);
+		if (name == null) {
+			return null;
+		}
+		return new MicrometerSessionRepositoryMetrics(applicationContext.getBean(name, MeterRegistry.class));
+	}
+
+	private static String findRegistry(ApplicationContext applicationContext) {
+		String[] names = applicationContext.getBeanNamesForType(MeterRegistry.class);
+		if (names.length <= 1) {
+			return (names.length == 1) ? names[0] : null;
+		}
+		String primary = findPrimary(applicationContext, names);
+		if (primary != null) {
+			return primary;
+		}
+		String[] composites = applicationContext.getBeanNamesForType(CompositeMeterRegistry.class);
+		if (composites.length == 1) {
+			return composites[0];
+		}
+		logger.warn("Session metrics are disabled, found " + names.length
+				+ " MeterRegistry beans and none is primary: " + Arrays.toString(names));
+		return null;
+	}
+
+	private static String findPrimary(ApplicationContext applicationContext, String[] names) {
+		if (!(applicationContext instanceof ConfigurableApplicationContext)) {
+			return null;
+		}
+		ConfigurableListableBeanFactory beanFactory = ((ConfigurableApplicationContext) applicationContext)
+				.getBeanFactory();
+		String primary = null;
+		for (String name : names) {
+			if (beanFactory.containsBeanDefinition(name) && beanFactory.getBeanDefinition(name).isPrimary()) {
+				if (primary != null) {
+					return null;
+				}
+				primary = name;
+			}
+		}
+		return primary;
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike.config.annotation.web.http;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Condition;
+import org.springframework.context.annotation.ConditionContext;
+import org.springframework.context.annotation.Conditional;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.type.AnnotatedTypeMetadata;
+import org.springframework.util.ClassUtils;
+
+import com.aerospike.springframework.session.aerospike.AerospikeOperationsSessionRepository;
+import com.aerospike.springframework.session.aerospike.SessionSizeProfilerEndpoint;
+
+
+/**
+ * Registers the {@link SessionSizeProfilerEndpoint} when the Spring Boot actuator
+ * is on the classpath. Kept apart from {@link AerospikeHttpSessionConfiguration}
+ * so that the actuator is only loaded when it is present.
+ *
+ * @author Jeff Boone
+ * @since 2.0.0
+ */
+@Configuration
+@Conditional(SessionSizeProfilerEndpointConfiguration.ActuatorPresentCondition.class)
+class SessionSizeProfilerEndpointConfiguration {
+
+	@Bean
+	public SessionSizeProfilerEndpoint sessionSizeProfilerEndpoint(
+			AerospikeOperationsSessionRepository aerospikeSessionRepository) {
+		return new SessionSizeProfilerEndpoint(aerospikeSessionRepository);
+	}
+
+	static class ActuatorPresentCondition implements Condition {
+
+		public boolean matches(ConditionContext context, AnnotatedTypeMetadata metadata) {
+			return ClassUtils.isPresent("org.springframework.boot.actuate.endpoint.AbstractEndpoint",
+					context.getClassLoader());
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aerospike.springframework.session.aerospike;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.session.ExpiringSession;
+import org.springframework.session.events.SessionDeletedEvent;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+import com.aerospike.client.Operation;
+import com.aerospike.client.Record;
+import com.aerospike.client.ResultCode;
+import com.aerospike.client.async.IAsyncClient;
+import com.aerospike.client.listener.DeleteListener;
+import com.aerospike.client.listener.RecordListener;
+import com.aerospike.client.listener.WriteListener;
+import com.aerospike.client.policy.WritePolicy;
+import com.aerospike.springframework.session.aerospike.AerospikeOperationsSessionRepository.PrincipalIndexMode;
+
+
+/**
+ * Tests for {@link AerospikeAsyncSessionRepository}.
+ *
+ * @author Jeff Boone
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class AerospikeAsyncSessionRepositoryTests {
+
+	@Mock
+	IAsyncClient asyncClient;
+
+	AerospikeAsyncSessionRepository repository;
+
+	@Before
+	public void setUp() throws Exception {
+		this.repository = new AerospikeAsyncSessionRepository(this.asyncClient);
+	}
+
+	@Test
+	public void shouldCompleteGetSessionAsync() throws Exception {
+		// given
+		doAnswer(new Answer<Void>() {
+			public Void answer(InvocationOnMock invocation) {
+				invocation.<RecordListener>getArgument(1)
+						.onSuccess(invocation.<Key>getArgument(2), storedRecord());
+				return null;
+			}
+		}).when(this.asyncClient).get(any(), any(RecordListener.class), any(Key.class));
+
+		// when
+		ExpiringSession session = this.repository.getSessionAsync("session-id").get();
+
+		// then
+		assertThat(session.getId()).isEqualTo("session-id");
+		assertThat(session.<String>getAttribute("name")).isEqualTo("value");
+	}
+
+	@Test
+	public void shouldGetSessionAsyncFromWriteBehindBuffer() throws Exception {
+		// given
+		WriteBehindPolicy writeBehindPolicy = new WriteBehindPolicy();
+		writeBehindPolicy.maxDelayInMillis = 60000;
+		this.repository.setWriteBehindPolicy(writeBehindPolicy);
+		ExpiringSession saved = this.repository.createSession();
+		saved.setAttribute("name", "pending");
+		this.repository.save(saved);
+
+		// when
+		ExpiringSession session = this.repository.getSessionAsync(saved.getId()).get();
+
+		// then
+		assertThat(session.<String>getAttribute("name")).isEqualTo("pending");
+		verify(this.asyncClient, never()).get(any(), any(RecordListener.class), any(Key.class));
+	}
+
+	@Test
+	public void shouldDropSaveWhenUpdatedRecordIsGone() throws Exception {
+		// given
+		ExpiringSession session = this.repository.toSession("session-id", storedRecord());
+		session.setAttribute("name", "other");
+		doAnswer(new Answer<Void>() {
+			public Void answer(InvocationOnMock invocation) {
+				invocation.<RecordListener>getArgument(1)
+						.onFailure(new AerospikeException(ResultCode.KEY_NOT_FOUND_ERROR));
+				return null;
+			}
+		}).when(this.asyncClient).operate(any(WritePolicy.class), any(RecordListener.class),
+				any(Key.class), any(Operation[].class));
+
+		// when
+		this.repository.saveAsync(session).get();
+
+		// then
+		verify(this.asyncClient, never()).put(any(WritePolicy.class), any(WriteListener.class),
+				any(Key.class), any(Bin[].class));
+	}
+
+	@Test
+	public void shouldCleanUpAfterDeleteAsync() throws Exception {
+		// given
+		ApplicationEventPublisher eventPublisher = mock(ApplicationEventPublisher.class);
+		this.repository.setApplicationEventPublisher(eventPublisher);
+		this.repository.setPrincipalIndexMode(PrincipalIndexMode.PRINCIPAL_RECORD);
+		this.repository.setExecutor(new Executor() {
+			public void execute(Runnable command) {
+				command.run();
+			}
+		});
+		final Map<String, Object> bins = new HashMap<String, Object>();
+		bins.put("principal", "alice");
+		doAnswer(new Answer<Void>() {
+			public Void answer(InvocationOnMock invocation) {
+				invocation.<RecordListener>getArgument(1)
+						.onSuccess(invocation.<Key>getArgument(2), new Record(bins, 1, 0));
+				return null;
+			}
+		}).when(this.asyncClient).get(any(), any(RecordListener.class), any(Key.class), any(String[].class));
+		doAnswer(new Answer<Void>() {
+			public Void answer(InvocationOnMock invocation) {
+				invocation.<DeleteListener>getArgument(1).onSuccess(invocation.<Key>getArgument(2), true);
+				return null;
+			}
+		}).when(this.asyncClient).delete(any(WritePolicy.class), any(DeleteListener.class), any(Key.class));
+
+		// when
+		boolean deleted = this.repository.deleteAsync("session-id").get();
+
+		// then
+		assertThat(deleted).isTrue();
+		verify(this.asyncClient).operate(any(WritePolicy.class),
+				eq(this.repository.getPrincipalKey("alice")), any(Operation[].class));
+		verify(eventPublisher).publishEvent(any(SessionDeletedEvent.class));
+	}
+
+	@Test(expected = ExecutionException.class)
+	public void shouldFailFutureOnError() throws Exception {
+		// given
+		doAnswer(new Answer<Void>() {
+			public Void answer(InvocationOnMock invocation) {
+				invocation.<RecordListener>getArgument(1)
+						.onFailure(new AerospikeException(ResultCode.TIMEOUT));
+				return null;
+			}
+		}).when(this.asyncClient).get(any(), any(RecordListener.class), any(Key.class));
+
+		// when
+		this.repository.getSessionAsync("session-id").get();
+	}
+
+	private static Record storedRecord() {
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("name", new CompactSessionCodec().encode("value"));
+		Map<String, Object> bins = new HashMap<String, Object>();
+		bins.put("created", System.currentTimeMillis());
+		bins.put("accessed", System.currentTimeMillis());
+		bins.put("interval", (long) AerospikeOperationsSessionRepository.DEFAULT_INACTIVE_INTERVAL);
+		bins.put("data", data);
+		return new Record(bins, 1, AerospikeOperationsSessionRepository.DEFAULT_INACTIVE_INTERVAL);
+	}
+}
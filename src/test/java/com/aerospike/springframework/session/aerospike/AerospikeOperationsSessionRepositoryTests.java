@@ -16,13 +16,55 @@
 
 package com.aerospike.springframework.session.aerospike;
 
+import static com.aerospike.springframework.session.aerospike.SessionRecords.storedRecord;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
+import static org.mockito.BDDMockito.willThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
-import org.springframework.data.aerospike.core.AerospikeOperations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.session.ExpiringSession;
+import org.springframework.session.FindByIndexNameSessionRepository;
+import org.springframework.session.events.SessionDeletedEvent;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Bin;
+import com.aerospike.client.IAerospikeClient;
+import com.aerospike.client.Key;
+import com.aerospike.client.Operation;
+import com.aerospike.client.Record;
+import com.aerospike.client.ResultCode;
+import com.aerospike.client.policy.BatchPolicy;
+import com.aerospike.client.policy.CommitLevel;
+import com.aerospike.client.policy.GenerationPolicy;
+import com.aerospike.client.policy.RecordExistsAction;
+import com.aerospike.client.policy.WritePolicy;
+import com.aerospike.springframework.session.aerospike.AerospikeOperationsSessionRepository.PrincipalIndexMode;
+import com.aerospike.springframework.session.aerospike.SessionRepositoryMetrics.OperationType;
 
 
 /**
@@ -31,16 +73,17 @@ import org.springframework.session.ExpiringSession;
  * @author Jeff Boone
  * @author Michael Zhang
  */
+@RunWith(MockitoJUnitRunner.class)
 public class AerospikeOperationsSessionRepositoryTests {
 	
 	@Mock
-	AerospikeOperations aerospikeOperations;
+	IAerospikeClient aerospikeClient;
 
 	AerospikeOperationsSessionRepository aosr;
 	
 	@Before
 	public void setUp() throws Exception {
-		this.aosr = new AerospikeOperationsSessionRepository(aerospikeOperations);
+		this.aosr = new AerospikeOperationsSessionRepository(this.aerospikeClient);
 	}
 	
 	@Test
@@ -53,4 +96,441 @@ public class AerospikeOperationsSessionRepositoryTests {
 		assertThat(session.getMaxInactiveIntervalInSeconds())
 				.isEqualTo(AerospikeOperationsSessionRepository.DEFAULT_INACTIVE_INTERVAL);
 	}
+
+	@Test
+	public void shouldWriteWholeRecordForNewSession() throws Exception {
+		// given
+		ExpiringSession session = this.aosr.createSession();
+		session.setAttribute("name", "value");
+
+		// when
+		this.aosr.save(session);
+
+		// then
+		verify(this.aerospikeClient).put(any(WritePolicy.class), any(Key.class), any(Bin[].class));
+		verify(this.aerospikeClient, never()).operate(any(WritePolicy.class), any(Key.class), any(Operation[].class));
+	}
+
+	@Test
+	public void shouldCreateSessionOnlyIfNoRecordExists() throws Exception {
+		// given
+		AerospikeExpiringSession session = (AerospikeExpiringSession) this.aosr.createSession();
+		session.setAttribute("name", "value");
+		willThrow(new AerospikeException(ResultCode.KEY_EXISTS_ERROR, "exists"))
+				.given(this.aerospikeClient).put(any(WritePolicy.class), any(Key.class), any(Bin[].class));
+
+		// when
+		boolean created = this.aosr.create(session);
+
+		// then
+		ArgumentCaptor<WritePolicy> policy = ArgumentCaptor.forClass(WritePolicy.class);
+		verify(this.aerospikeClient).put(policy.capture(), any(Key.class), any(Bin[].class));
+		assertThat(policy.getValue().recordExistsAction).isEqualTo(RecordExistsAction.CREATE_ONLY);
+		assertThat(created).isFalse();
+	}
+
+	@Test
+	public void shouldOnlyWriteChangedAttributesForExistingSession() throws Exception {
+		// given
+		given(this.aerospikeClient.get(any(), any(Key.class)))
+				.willReturn(storedRecord("unchanged", "value"));
+		ExpiringSession session = this.aosr.getSession("session-id");
+		session.setAttribute("changed", "value");
+
+		// when
+		this.aosr.save(session);
+
+		// then
+		ArgumentCaptor<Operation> operations = ArgumentCaptor.forClass(Operation.class);
+		verify(this.aerospikeClient).operate(any(WritePolicy.class), any(Key.class), operations.capture());
+		verify(this.aerospikeClient, never()).put(any(WritePolicy.class), any(Key.class), any(Bin[].class));
+		assertThat(operations.getAllValues()).hasSize(3);
+		assertThat(operations.getAllValues().get(2).binName).isEqualTo("data");
+	}
+
+	@Test
+	public void shouldOnlyTouchAccessTimeForUnchangedSession() throws Exception {
+		// given
+		given(this.aerospikeClient.get(any(), any(Key.class)))
+				.willReturn(storedRecord("unchanged", "value"));
+		ExpiringSession session = this.aosr.getSession("session-id");
+		session.setLastAccessedTime(System.currentTimeMillis());
+
+		// when
+		this.aosr.save(session);
+
+		// then
+		ArgumentCaptor<Operation> operations = ArgumentCaptor.forClass(Operation.class);
+		verify(this.aerospikeClient).operate(any(WritePolicy.class), any(Key.class), operations.capture());
+		assertThat(operations.getAllValues()).hasSize(1);
+		assertThat(operations.getAllValues().get(0).binName).isEqualTo("accessed");
+	}
+
+	@Test
+	public void shouldSkipTouchWithinThreshold() throws Exception {
+		// given
+		this.aosr.setTouchThresholdRatio(0.5);
+		given(this.aerospikeClient.get(any(), any(Key.class)))
+				.willReturn(storedRecord("unchanged", "value"));
+		ExpiringSession session = this.aosr.getSession("session-id");
+		session.setLastAccessedTime(session.getLastAccessedTime() + 1000);
+
+		// when
+		this.aosr.save(session);
+
+		// then
+		verify(this.aerospikeClient, never()).operate(any(WritePolicy.class), any(Key.class), any(Operation[].class));
+		verify(this.aerospikeClient, never()).put(any(WritePolicy.class), any(Key.class), any(Bin[].class));
+	}
+
+	@Test
+	public void shouldWriteChangedIntervalWithoutAttributeChanges() throws Exception {
+		// given
+		this.aosr.setTouchThresholdRatio(0.5);
+		given(this.aerospikeClient.get(any(), any(Key.class)))
+				.willReturn(storedRecord("unchanged", "value"));
+		ExpiringSession session = this.aosr.getSession("session-id");
+		session.setMaxInactiveIntervalInSeconds(7200);
+
+		// when
+		this.aosr.save(session);
+
+		// then
+		ArgumentCaptor<WritePolicy> policy = ArgumentCaptor.forClass(WritePolicy.class);
+		ArgumentCaptor<Operation> operations = ArgumentCaptor.forClass(Operation.class);
+		verify(this.aerospikeClient).operate(policy.capture(), any(Key.class), operations.capture());
+		assertThat(policy.getValue().expiration).isGreaterThan(7000);
+		assertThat(operations.getAllValues()).hasSize(2);
+		assertThat(operations.getAllValues().get(1).binName).isEqualTo("interval");
+		Record stored = storedRecord("unchanged", "value");
+		stored.bins.put("interval", operations.getAllValues().get(1).value.toLong());
+		given(this.aerospikeClient.get(any(), any(Key.class))).willReturn(stored);
+		assertThat(this.aosr.getSession("session-id").getMaxInactiveIntervalInSeconds()).isEqualTo(7200);
+	}
+
+	@Test
+	public void shouldReadAttributesFromMapBin() throws Exception {
+		// given
+		given(this.aerospikeClient.get(any(), any(Key.class)))
+				.willReturn(storedRecord("name", "value"));
+
+		// when
+		ExpiringSession session = this.aosr.getSession("session-id");
+
+		// then
+		assertThat(session.getId()).isEqualTo("session-id");
+		assertThat(session.<String>getAttribute("name")).isEqualTo("value");
+	}
+
+	@Test
+	public void shouldTreatSessionStoredByPreviousVersionAsMissing() throws Exception {
+		// given
+		Map<String, Object> attrs = new HashMap<String, Object>();
+		attrs.put("name", "value");
+		Map<String, Object> bins = new HashMap<String, Object>();
+		bins.put("created", System.currentTimeMillis());
+		bins.put("accessed", System.currentTimeMillis());
+		bins.put("interval", (long) AerospikeOperationsSessionRepository.DEFAULT_INACTIVE_INTERVAL);
+		bins.put("attrs", attrs);
+		given(this.aerospikeClient.get(any(), any(Key.class)))
+				.willReturn(new Record(bins, 1, AerospikeOperationsSessionRepository.DEFAULT_INACTIVE_INTERVAL));
+
+		// when
+		ExpiringSession session = this.aosr.getSession("session-id");
+
+		// then
+		assertThat(session).isNull();
+	}
+
+	@Test
+	public void shouldAddNewSessionToPrincipalRecord() throws Exception {
+		// given
+		this.aosr.setPrincipalIndexMode(PrincipalIndexMode.PRINCIPAL_RECORD);
+		ExpiringSession session = this.aosr.createSession();
+		session.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "alice");
+
+		// when
+		this.aosr.save(session);
+
+		// then
+		verify(this.aerospikeClient).operate(any(WritePolicy.class),
+				eq(this.aosr.getPrincipalKey("alice")), any(Operation[].class));
+	}
+
+	@Test
+	public void shouldFindSessionsThroughPrincipalRecordAndDropStaleIds() throws Exception {
+		// given
+		this.aosr.setPrincipalIndexMode(PrincipalIndexMode.PRINCIPAL_RECORD);
+		Map<String, Object> sessions = new LinkedHashMap<String, Object>();
+		sessions.put("live-id", 1L);
+		sessions.put("expired-id", 1L);
+		Map<String, Object> bins = new HashMap<String, Object>();
+		bins.put("sessions", sessions);
+		given(this.aerospikeClient.get(any(), eq(this.aosr.getPrincipalKey("alice")), eq("sessions")))
+				.willReturn(new Record(bins, 1, 0));
+		Record live = storedRecord("name", "value");
+		live.bins.put("principal", "alice");
+		given(this.aerospikeClient.get(any(BatchPolicy.class), any(Key[].class)))
+				.willReturn(new Record[] { live, null });
+
+		// when
+		Map<String, ExpiringSession> result = this.aosr.findByIndexNameAndIndexValue(
+				FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "alice");
+
+		// then
+		assertThat(result).containsOnlyKeys("live-id");
+		verify(this.aerospikeClient).operate(any(WritePolicy.class),
+				eq(this.aosr.getPrincipalKey("alice")), any(Operation[].class));
+	}
+
+	@Test
+	public void shouldRecordReadAndLatencyInMetrics() throws Exception {
+		// given
+		SessionRepositoryMetrics metrics = mock(SessionRepositoryMetrics.class);
+		this.aosr.setMetrics(metrics);
+		given(this.aerospikeClient.get(any(), any(Key.class)))
+				.willReturn(storedRecord("name", "value"));
+
+		// when
+		this.aosr.getSession("session-id");
+
+		// then
+		verify(metrics).recordRead(eq(1), anyInt());
+		verify(metrics).recordOperation(eq(OperationType.GET), anyLong(), eq(ResultCode.OK));
+	}
+
+	@Test
+	public void shouldRecordFailedOperationWithResultCode() throws Exception {
+		// given
+		SessionRepositoryMetrics metrics = mock(SessionRepositoryMetrics.class);
+		this.aosr.setMetrics(metrics);
+		given(this.aerospikeClient.get(any(), any(Key.class)))
+				.willThrow(new AerospikeException(ResultCode.TIMEOUT, "timeout"));
+
+		// when
+		try {
+			this.aosr.getSession("session-id");
+			fail("Expected AerospikeException");
+		}
+		catch (AerospikeException expected) {
+		}
+
+		// then
+		verify(metrics).recordOperation(eq(OperationType.GET), anyLong(), eq(ResultCode.TIMEOUT));
+	}
+
+	@Test
+	public void shouldRecordFailureOutsideClientAsUnknown() throws Exception {
+		// given
+		SessionRepositoryMetrics metrics = mock(SessionRepositoryMetrics.class);
+		this.aosr.setMetrics(metrics);
+		given(this.aerospikeClient.get(any(), any(Key.class)))
+				.willThrow(new IllegalStateException("failed"));
+
+		// when
+		try {
+			this.aosr.getSession("session-id");
+			fail("Expected IllegalStateException");
+		}
+		catch (IllegalStateException expected) {
+		}
+
+		// then
+		verify(metrics).recordOperation(eq(OperationType.GET), anyLong(),
+				eq(SessionRepositoryMetrics.UNKNOWN_ERROR));
+	}
+
+	@Test
+	public void shouldDecodeAttributesOnlyWhenFirstRead() throws Exception {
+		// given
+		SessionCodec codec = spy(new CompactSessionCodec());
+		this.aosr.setSessionCodec(codec);
+		Record record = storedRecord("name", "value");
+		@SuppressWarnings("unchecked")
+		Map<String, Object> data = (Map<String, Object>) record.bins.get("data");
+		data.put("other", new CompactSessionCodec().encode("other value"));
+		given(this.aerospikeClient.get(any(), any(Key.class))).willReturn(record);
+
+		// when
+		ExpiringSession session = this.aosr.getSession("session-id");
+
+		// then
+		verify(codec, never()).decode(any(byte[].class));
+		assertThat(session.getAttributeNames()).containsOnly("name", "other");
+		assertThat(session.<String>getAttribute("name")).isEqualTo("value");
+		assertThat(session.<String>getAttribute("name")).isEqualTo("value");
+		verify(codec, times(1)).decode(any(byte[].class));
+	}
+
+	@Test
+	public void shouldExpireRecordWithSessionInterval() throws Exception {
+		// given
+		ExpiringSession session = this.aosr.createSession();
+		session.setMaxInactiveIntervalInSeconds(60);
+
+		// when
+		this.aosr.save(session);
+
+		// then
+		ArgumentCaptor<WritePolicy> policy = ArgumentCaptor.forClass(WritePolicy.class);
+		verify(this.aerospikeClient).put(policy.capture(), any(Key.class), any(Bin[].class));
+		assertThat(policy.getValue().expiration).isEqualTo(60);
+	}
+
+	@Test
+	public void shouldTouchWithTouchPolicyAndKeepRecordSettings() throws Exception {
+		// given
+		SessionPolicies policies = new SessionPolicies();
+		policies.touch.timeout = 100;
+		policies.touch.commitLevel = CommitLevel.COMMIT_MASTER;
+		policies.touch.recordExistsAction = RecordExistsAction.REPLACE;
+		this.aosr.setPolicies(policies);
+		given(this.aerospikeClient.get(any(), any(Key.class)))
+				.willReturn(storedRecord("unchanged", "value"));
+		ExpiringSession session = this.aosr.getSession("session-id");
+		session.setLastAccessedTime(System.currentTimeMillis());
+
+		// when
+		this.aosr.save(session);
+
+		// then
+		ArgumentCaptor<WritePolicy> policy = ArgumentCaptor.forClass(WritePolicy.class);
+		verify(this.aerospikeClient).operate(policy.capture(), any(Key.class), any(Operation[].class));
+		assertThat(policy.getValue().timeout).isEqualTo(100);
+		assertThat(policy.getValue().commitLevel).isEqualTo(CommitLevel.COMMIT_MASTER);
+		assertThat(policy.getValue().recordExistsAction).isEqualTo(RecordExistsAction.UPDATE_ONLY);
+	}
+
+	@Test
+	public void shouldDeleteSessionThatExpiredBeforeRead() throws Exception {
+		// given
+		Record record = storedRecord("name", "value");
+		record.bins.put("accessed", System.currentTimeMillis()
+				- TimeUnit.SECONDS.toMillis(AerospikeOperationsSessionRepository.DEFAULT_INACTIVE_INTERVAL + 1));
+		given(this.aerospikeClient.get(any(), any(Key.class))).willReturn(record);
+
+		// when
+		ExpiringSession session = this.aosr.getSession("session-id");
+
+		// then
+		assertThat(session).isNull();
+		verify(this.aerospikeClient).delete(any(WritePolicy.class), any(Key.class));
+	}
+
+	@Test
+	public void shouldRebaseAndRetryChangesOnGenerationConflict() throws Exception {
+		// given
+		SessionRepositoryMetrics metrics = mock(SessionRepositoryMetrics.class);
+		this.aosr.setMetrics(metrics);
+		this.aosr.setGenerationCheck(true);
+		given(this.aerospikeClient.get(any(), any(Key.class)))
+				.willReturn(storedRecord("name", "value"));
+		given(this.aerospikeClient.operate(any(WritePolicy.class), any(Key.class), any(Operation[].class)))
+				.willThrow(new AerospikeException(ResultCode.GENERATION_ERROR))
+				.willReturn(null);
+		ExpiringSession session = this.aosr.getSession("session-id");
+		session.setAttribute("other", "value");
+
+		// when
+		this.aosr.save(session);
+
+		// then
+		ArgumentCaptor<WritePolicy> policy = ArgumentCaptor.forClass(WritePolicy.class);
+		verify(this.aerospikeClient, times(2)).get(any(), any(Key.class));
+		verify(this.aerospikeClient, times(2)).operate(policy.capture(), any(Key.class), any(Operation[].class));
+		assertThat(policy.getValue().generationPolicy).isEqualTo(GenerationPolicy.EXPECT_GEN_EQUAL);
+		assertThat(policy.getValue().generation).isEqualTo(1);
+		verify(metrics).recordConflict(OperationType.SAVE);
+	}
+
+	@Test
+	public void shouldDropSaveOfSessionDeletedMeanwhile() throws Exception {
+		// given
+		given(this.aerospikeClient.get(any(), any(Key.class)))
+				.willReturn(storedRecord("name", "value"));
+		given(this.aerospikeClient.operate(any(WritePolicy.class), any(Key.class), any(Operation[].class)))
+				.willThrow(new AerospikeException(ResultCode.KEY_NOT_FOUND_ERROR));
+		ExpiringSession session = this.aosr.getSession("session-id");
+		session.setAttribute("other", "value");
+
+		// when
+		this.aosr.save(session);
+
+		// then
+		verify(this.aerospikeClient).operate(any(WritePolicy.class), any(Key.class), any(Operation[].class));
+		verify(this.aerospikeClient, never()).put(any(WritePolicy.class), any(Key.class), any(Bin[].class));
+	}
+
+	@Test
+	public void shouldDeleteAllSessionsOfPrincipalWithoutReadingThem() throws Exception {
+		// given
+		this.aosr.setPrincipalIndexMode(PrincipalIndexMode.PRINCIPAL_RECORD);
+		Map<String, Object> sessions = new LinkedHashMap<String, Object>();
+		sessions.put("first-id", 1L);
+		sessions.put("second-id", 1L);
+		sessions.put("expired-id", 1L);
+		Map<String, Object> bins = new HashMap<String, Object>();
+		bins.put("sessions", sessions);
+		given(this.aerospikeClient.get(any(BatchPolicy.class), any(Key[].class), eq("sessions")))
+				.willReturn(new Record[] { new Record(bins, 1, 0) });
+		given(this.aerospikeClient.delete(any(WritePolicy.class), eq(this.aosr.getKey("first-id"))))
+				.willReturn(true);
+		given(this.aerospikeClient.delete(any(WritePolicy.class), eq(this.aosr.getKey("second-id"))))
+				.willReturn(true);
+
+		// when
+		int deleted = this.aosr.deleteByPrincipal("alice");
+
+		// then
+		assertThat(deleted).isEqualTo(2);
+		verify(this.aerospikeClient, times(3)).delete(any(WritePolicy.class), any(Key.class));
+		verify(this.aerospikeClient, never()).get(any(), any(Key.class));
+		verify(this.aerospikeClient, never()).get(any(BatchPolicy.class), any(Key[].class));
+		verify(this.aerospikeClient).operate(any(WritePolicy.class),
+				eq(this.aosr.getPrincipalKey("alice")), any(Operation[].class));
+	}
+
+	@Test
+	public void shouldDeleteSessionsOfPrincipalInParallel() throws Exception {
+		// given
+		this.aosr.setPrincipalIndexMode(PrincipalIndexMode.PRINCIPAL_RECORD);
+		Map<String, Object> sessions = new LinkedHashMap<String, Object>();
+		sessions.put("first-id", 1L);
+		sessions.put("second-id", 1L);
+		sessions.put("third-id", 1L);
+		Map<String, Object> bins = new HashMap<String, Object>();
+		bins.put("sessions", sessions);
+		given(this.aerospikeClient.get(any(BatchPolicy.class), any(Key[].class), eq("sessions")))
+				.willReturn(new Record[] { new Record(bins, 1, 0) });
+		final CountDownLatch started = new CountDownLatch(3);
+		given(this.aerospikeClient.delete(any(WritePolicy.class), any(Key.class)))
+				.willAnswer(new Answer<Boolean>() {
+
+					public Boolean answer(InvocationOnMock invocation) throws Exception {
+						started.countDown();
+						return started.await(5, TimeUnit.SECONDS);
+					}
+				});
+
+		// when
+		int deleted = this.aosr.deleteByPrincipal("alice");
+
+		// then
+		assertThat(deleted).isEqualTo(3);
+		this.aosr.shutdown();
+	}
+
+	@Test
+	public void shouldPublishEventWhenSessionIsDeleted() throws Exception {
+		// given
+		ApplicationEventPublisher eventPublisher = mock(ApplicationEventPublisher.class);
+		this.aosr.setApplicationEventPublisher(eventPublisher);
+		given(this.aerospikeClient.delete(any(WritePolicy.class), any(Key.class))).willReturn(true);
+
+		// when
+		this.aosr.delete("session-id");
+
+		// then
+		verify(eventPublisher).publishEvent(any(SessionDeletedEvent.class));
+	}
 }
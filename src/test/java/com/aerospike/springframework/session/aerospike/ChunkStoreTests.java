@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aerospike.springframework.session.aerospike;
+
+import static com.aerospike.springframework.session.aerospike.SessionRecords.storedRecord;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.session.ExpiringSession;
+
+import com.aerospike.client.Bin;
+import com.aerospike.client.IAerospikeClient;
+import com.aerospike.client.Key;
+import com.aerospike.client.Record;
+import com.aerospike.client.policy.WritePolicy;
+
+
+/**
+ * Tests for {@link ChunkStore}.
+ *
+ * @author Jeff Boone
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ChunkStoreTests {
+
+	@Mock
+	IAerospikeClient aerospikeClient;
+
+	AerospikeOperationsSessionRepository aosr;
+
+	@Before
+	public void setUp() throws Exception {
+		this.aosr = new AerospikeOperationsSessionRepository(this.aerospikeClient);
+		this.aosr.setChunkThreshold(64);
+	}
+
+	@Test
+	public void shouldWriteLargeAttributeToChunkRecord() throws Exception {
+		// given
+		ExpiringSession session = this.aosr.createSession();
+		String large = new String(new char[1000]).replace('\0', 'x');
+		session.setAttribute("small", "value");
+		session.setAttribute("large", large);
+		Key chunkKey = this.aosr.getChunkKey(session.getId(),
+				ChunkStore.hash(new CompactSessionCodec().encode(large)));
+
+		// when
+		this.aosr.save(session);
+
+		// then
+		verify(this.aerospikeClient).put(any(WritePolicy.class), eq(chunkKey), any(Bin[].class));
+		verify(this.aerospikeClient).put(any(WritePolicy.class), eq(this.aosr.getKey(session.getId())), any(Bin[].class));
+	}
+
+	@Test
+	public void shouldReadChunkOnlyWhenAttributeIsAccessed() throws Exception {
+		// given
+		Record record = storedRecord("small", "value");
+		Map<String, String> chunks = new HashMap<String, String>();
+		chunks.put("large", "0123");
+		record.bins.put("chunks", chunks);
+		Key chunkKey = this.aosr.getChunkKey("session-id", "0123");
+		Map<String, Object> chunk = new HashMap<String, Object>();
+		chunk.put("chunk", new CompactSessionCodec().encode("large value"));
+		given(this.aerospikeClient.get(any(), eq(this.aosr.getKey("session-id")))).willReturn(record);
+		given(this.aerospikeClient.get(any(), eq(chunkKey), any(String[].class)))
+				.willReturn(new Record(chunk, 1, 0));
+
+		// when
+		ExpiringSession session = this.aosr.getSession("session-id");
+
+		// then
+		assertThat(session.getAttributeNames()).containsOnly("small", "large");
+		verify(this.aerospikeClient, never()).get(any(), eq(chunkKey), any(String[].class));
+		assertThat(session.<String>getAttribute("large")).isEqualTo("large value");
+		assertThat(session.<String>getAttribute("large")).isEqualTo("large value");
+		verify(this.aerospikeClient, times(1)).get(any(), eq(chunkKey), any(String[].class));
+	}
+}
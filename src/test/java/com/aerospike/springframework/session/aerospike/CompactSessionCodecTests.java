@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aerospike.springframework.session.aerospike;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.io.InvalidClassException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.serializer.support.SerializationFailedException;
+
+import com.aerospike.springframework.session.aerospike.CompactSessionCodec.Compression;
+
+
+/**
+ * Tests for {@link CompactSessionCodec}.
+ *
+ * @author Jeff Boone
+ */
+public class CompactSessionCodecTests {
+
+	CompactSessionCodec codec;
+
+	@Before
+	public void setUp() throws Exception {
+		this.codec = new CompactSessionCodec();
+	}
+
+	@Test
+	public void shouldRoundTripSimpleValues() throws Exception {
+		assertThat(this.codec.decode(this.codec.encode("value"))).isEqualTo("value");
+		assertThat(this.codec.decode(this.codec.encode(42))).isEqualTo(42);
+		assertThat(this.codec.decode(this.codec.encode(42L))).isEqualTo(42L);
+		assertThat(this.codec.decode(this.codec.encode(true))).isEqualTo(true);
+		assertThat(this.codec.decode(this.codec.encode(4.2d))).isEqualTo(4.2d);
+		assertThat((byte[]) this.codec.decode(this.codec.encode(new byte[] { 1, 2 })))
+				.containsExactly(1, 2);
+	}
+
+	@Test
+	public void shouldRoundTripSerializableValues() throws Exception {
+		Date value = new Date();
+
+		assertThat(this.codec.decode(this.codec.encode(value))).isEqualTo(value);
+	}
+
+	@Test
+	public void shouldWriteRegisteredClassesCompactly() throws Exception {
+		// given
+		List<String> value = listOf(10);
+		int unregistered = this.codec.encode(value).length;
+
+		// when
+		this.codec.registerClass(1, ArrayList.class);
+		byte[] registered = this.codec.encode(value);
+
+		// then
+		assertThat(registered.length).isLessThan(unregistered);
+		assertThat(this.codec.decode(registered)).isEqualTo(value);
+	}
+
+	@Test
+	public void shouldRejectRegisteredClassWithOtherSerialVersionUid() throws Exception {
+		// given
+		this.codec.registerClass(1, ArrayList.class);
+		byte[] encoded = this.codec.encode(listOf(2));
+		CompactSessionCodec reader = new CompactSessionCodec();
+		reader.registerClass(1, LinkedList.class);
+
+		// when
+		try {
+			reader.decode(encoded);
+			fail("Expected SerializationFailedException");
+		}
+		catch (SerializationFailedException expected) {
+			// then
+			assertThat(expected.getCause()).isInstanceOf(InvalidClassException.class);
+		}
+	}
+
+	@Test
+	public void shouldCompressValuesAboveThreshold() throws Exception {
+		// given
+		List<String> value = listOf(1000);
+		int uncompressed = this.codec.encode(value).length;
+		this.codec.setCompression(Compression.DEFLATE);
+
+		// when
+		byte[] compressed = this.codec.encode(value);
+
+		// then
+		assertThat(compressed.length).isLessThan(uncompressed);
+		assertThat(this.codec.decode(compressed)).isEqualTo(value);
+	}
+
+	@Test
+	public void shouldNotCompressValuesBelowThreshold() throws Exception {
+		this.codec.setCompression(Compression.DEFLATE);
+
+		assertThat(this.codec.encode("value")[0]).isEqualTo((byte) CompactSessionCodec.VERSION);
+	}
+
+	@Test(expected = SerializationFailedException.class)
+	public void shouldRejectUnknownVersion() throws Exception {
+		byte[] encoded = this.codec.encode("value");
+		encoded[0] = 0x0F;
+
+		this.codec.decode(encoded);
+	}
+
+	@Test(expected = SerializationFailedException.class)
+	public void shouldRejectEmptyValue() throws Exception {
+		this.codec.decode(new byte[0]);
+	}
+
+	private static List<String> listOf(int size) {
+		List<String> list = new ArrayList<String>();
+		for (int i = 0; i < size; i++) {
+			list.add("item" + i);
+		}
+		return list;
+	}
+}
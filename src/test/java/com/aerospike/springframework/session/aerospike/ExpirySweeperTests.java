@@ -0,0 +1,268 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aerospike.springframework.session.aerospike;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.session.ExpiringSession;
+import org.springframework.session.events.SessionExpiredEvent;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Bin;
+import com.aerospike.client.IAerospikeClient;
+import com.aerospike.client.Key;
+import com.aerospike.client.Operation;
+import com.aerospike.client.Record;
+import com.aerospike.client.ResultCode;
+import com.aerospike.client.Value;
+import com.aerospike.client.cdt.MapOperation;
+import com.aerospike.client.cdt.MapReturnType;
+import com.aerospike.client.policy.BatchPolicy;
+import com.aerospike.client.policy.WritePolicy;
+
+
+/**
+ * Tests for {@link ExpirySweeper}.
+ *
+ * @author Jeff Boone
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ExpirySweeperTests {
+
+	@Mock
+	IAerospikeClient aerospikeClient;
+
+	@Mock
+	ApplicationEventPublisher eventPublisher;
+
+	AerospikeOperationsSessionRepository aosr;
+
+	ExpirySweepPolicy policy;
+
+	@Before
+	public void setUp() throws Exception {
+		this.aosr = new AerospikeOperationsSessionRepository(this.aerospikeClient);
+		this.aosr.setApplicationEventPublisher(this.eventPublisher);
+		this.policy = new ExpirySweepPolicy();
+		this.policy.intervalInMillis = TimeUnit.HOURS.toMillis(1);
+		this.policy.maxLookbackInSeconds = 180;
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		this.aosr.shutdown();
+	}
+
+	@Test
+	public void shouldPublishExpiredEventForMissingSessionOfElapsedBucket() throws Exception {
+		// given
+		this.aosr.setExpirySweepPolicy(this.policy);
+		Map<String, Object> sessions = new HashMap<String, Object>();
+		sessions.put("expired-id", 1L);
+		Map<String, Object> bins = new HashMap<String, Object>();
+		bins.put("sessions", sessions);
+		given(this.aerospikeClient.get(any(BatchPolicy.class), any(Key[].class), eq("sessions")))
+				.willReturn(new Record[] { new Record(bins, 1, 0) })
+				.willReturn(new Record[0]);
+		given(this.aerospikeClient.get(any(BatchPolicy.class), any(Key[].class), eq("accessed"), eq("interval")))
+				.willReturn(new Record[] { null });
+
+		// when
+		this.aosr.expirySweeper.sweep();
+
+		// then
+		verify(this.eventPublisher).publishEvent(any(SessionExpiredEvent.class));
+		verify(this.aerospikeClient).delete(any(WritePolicy.class), any(Key.class));
+	}
+
+	@Test
+	public void shouldExpireBucketRecordAfterItsBucketElapsed() throws Exception {
+		// given
+		this.aosr.setExpirySweepPolicy(this.policy);
+		ExpiringSession session = this.aosr.createSession();
+
+		// when
+		this.aosr.save(session);
+
+		// then
+		ArgumentCaptor<WritePolicy> policyCaptor = ArgumentCaptor.forClass(WritePolicy.class);
+		verify(this.aerospikeClient).operate(policyCaptor.capture(), any(Key.class), any(Operation[].class));
+		assertThat(policyCaptor.getValue().expiration).isBetween(
+				AerospikeOperationsSessionRepository.DEFAULT_INACTIVE_INTERVAL + 180 - 1,
+				AerospikeOperationsSessionRepository.DEFAULT_INACTIVE_INTERVAL + 60 + 180);
+	}
+
+	@Test
+	public void shouldReadExpiryBinsOfBucketInBatches() throws Exception {
+		// given
+		this.policy.batchSize = 2;
+		this.aosr.setExpirySweepPolicy(this.policy);
+		Map<String, Object> sessions = new HashMap<String, Object>();
+		sessions.put("first-id", 1L);
+		sessions.put("second-id", 1L);
+		sessions.put("third-id", 1L);
+		Map<String, Object> bins = new HashMap<String, Object>();
+		bins.put("sessions", sessions);
+		given(this.aerospikeClient.get(any(BatchPolicy.class), any(Key[].class), eq("sessions")))
+				.willReturn(new Record[] { new Record(bins, 1, 0) })
+				.willReturn(new Record[0]);
+		given(this.aerospikeClient.get(any(BatchPolicy.class), any(Key[].class), eq("accessed"), eq("interval")))
+				.willAnswer(new Answer<Record[]>() {
+
+					public Record[] answer(InvocationOnMock invocation) {
+						return new Record[invocation.<Key[]>getArgument(1).length];
+					}
+				});
+
+		// when
+		this.aosr.expirySweeper.sweep();
+
+		// then
+		verify(this.aerospikeClient, times(2)).get(any(BatchPolicy.class), any(Key[].class),
+				eq("accessed"), eq("interval"));
+	}
+
+	@Test
+	public void shouldNotSweepWhileAnotherNodeHoldsTheLease() throws Exception {
+		// given
+		this.aosr.setExpirySweepPolicy(this.policy);
+		Map<String, Object> bins = new HashMap<String, Object>();
+		bins.put("owner", "other-node");
+		given(this.aerospikeClient.get(any(), any(Key.class), eq("owner"))).willReturn(new Record(bins, 1, 0));
+
+		// when
+		this.aosr.expirySweeper.sweep();
+
+		// then
+		verify(this.aerospikeClient, never()).get(any(BatchPolicy.class), any(Key[].class), eq("sessions"));
+		verify(this.aerospikeClient, never()).put(any(WritePolicy.class), any(Key.class), any(Bin[].class));
+	}
+
+	@Test
+	public void shouldSkipBucketThatKeepsFailing() throws Exception {
+		// given
+		this.policy.maxAttempts = 2;
+		this.aosr.setExpirySweepPolicy(this.policy);
+		given(this.aerospikeClient.get(any(BatchPolicy.class), any(Key[].class), eq("sessions")))
+				.willThrow(new AerospikeException(ResultCode.TIMEOUT), new AerospikeException(ResultCode.TIMEOUT))
+				.willReturn(new Record[0]);
+
+		// when
+		this.aosr.expirySweeper.sweep();
+		this.aosr.expirySweeper.sweep();
+
+		// then
+		verify(this.aerospikeClient, atLeast(3)).get(any(BatchPolicy.class), any(Key[].class), eq("sessions"));
+	}
+
+	@Test
+	public void shouldNotReportSessionDeletedAfterItMovedToLaterBucket() throws Exception {
+		// given
+		this.policy.maxLookbackInSeconds = 600;
+		this.aosr.setExpirySweepPolicy(this.policy);
+		this.aosr.setServerSideExpiry(true);
+		final long savedExpireAt = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(90);
+		given(this.aerospikeClient.get(any(), any(Key.class)))
+				.willReturn(sessionRecord(savedExpireAt - TimeUnit.SECONDS.toMillis(1800), 1800));
+		final Key savedBucket = this.aosr.expirySweeper.getBucketKey("session-id", savedExpireAt);
+		final Operation removal = MapOperation.removeByKey("sessions", Value.get("session-id"),
+				MapReturnType.NONE);
+		final List<Key> removedFrom = new ArrayList<Key>();
+		willAnswer(new Answer<Record>() {
+
+			public Record answer(InvocationOnMock invocation) {
+				Object[] arguments = invocation.getArguments();
+				for (int i = 2; i < arguments.length; i++) {
+					if (((Operation) arguments[i]).value.equals(removal.value)) {
+						removedFrom.add(invocation.<Key>getArgument(1));
+					}
+				}
+				return null;
+			}
+		}).given(this.aerospikeClient).operate(any(WritePolicy.class), any(Key.class), any(Operation[].class));
+		given(this.aerospikeClient.get(any(BatchPolicy.class), any(Key[].class), any(String[].class)))
+				.willAnswer(new Answer<Record[]>() {
+
+					public Record[] answer(InvocationOnMock invocation) {
+						Key[] keys = invocation.getArgument(1);
+						Record[] records = new Record[keys.length];
+						if (!"sessions".equals(invocation.getArgument(2))) {
+							// the session records are gone
+							return records;
+						}
+						for (int i = 0; i < keys.length; i++) {
+							if (keys[i].equals(savedBucket) && !removedFrom.contains(savedBucket)) {
+								records[i] = bucketRecord("session-id", savedExpireAt);
+							}
+						}
+						return records;
+					}
+				});
+		ExpiringSession session = this.aosr.getSession("session-id");
+		session.setLastAccessedTime(System.currentTimeMillis());
+		this.aosr.save(session);
+		this.aosr.delete("session-id");
+
+		// when
+		this.aosr.expirySweeper.sweep();
+
+		// then
+		assertThat(removedFrom).contains(savedBucket);
+		verify(this.eventPublisher, never()).publishEvent(any(SessionExpiredEvent.class));
+	}
+
+	private static Record sessionRecord(long accessed, int interval) {
+		Map<String, Object> bins = new HashMap<String, Object>();
+		bins.put("created", accessed);
+		bins.put("accessed", accessed);
+		bins.put("interval", (long) interval);
+		bins.put("data", new HashMap<String, Object>());
+		return new Record(bins, 1, interval);
+	}
+
+	private static Record bucketRecord(String id, long expireAt) {
+		Map<String, Object> sessions = new HashMap<String, Object>();
+		sessions.put(id, expireAt);
+		Map<String, Object> bins = new HashMap<String, Object>();
+		bins.put("sessions", sessions);
+		return new Record(bins, 1, 0);
+	}
+}
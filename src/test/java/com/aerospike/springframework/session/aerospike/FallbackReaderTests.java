@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aerospike.springframework.session.aerospike;
+
+import static com.aerospike.springframework.session.aerospike.SessionRecords.storedRecord;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.springframework.session.ExpiringSession;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.IAerospikeClient;
+import com.aerospike.client.Key;
+import com.aerospike.client.Record;
+import com.aerospike.client.ResultCode;
+
+
+/**
+ * Tests for {@link FallbackReader}.
+ *
+ * @author Jeff Boone
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class FallbackReaderTests {
+
+	@Mock
+	IAerospikeClient aerospikeClient;
+
+	@Mock
+	IAerospikeClient fallbackClient;
+
+	AerospikeOperationsSessionRepository aosr;
+
+	@Before
+	public void setUp() throws Exception {
+		this.aosr = new AerospikeOperationsSessionRepository(this.aerospikeClient);
+		this.aosr.setFallbackClient(this.fallbackClient);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		this.aosr.shutdown();
+	}
+
+	@Test
+	public void shouldReadFallbackClusterWhenPrimaryMisses() throws Exception {
+		// given
+		given(this.fallbackClient.get(any(), any(Key.class)))
+				.willReturn(storedRecord("name", "value"));
+
+		// when
+		ExpiringSession session = this.aosr.getSession("session-id");
+
+		// then
+		assertThat(session.<String>getAttribute("name")).isEqualTo("value");
+		verify(this.aerospikeClient).get(any(), any(Key.class));
+		verify(this.fallbackClient).get(any(), any(Key.class));
+	}
+
+	@Test
+	public void shouldThrowPrimaryFailureWhenFallbackReadFailsToo() throws Exception {
+		// given
+		given(this.aerospikeClient.get(any(), any(Key.class)))
+				.willThrow(new AerospikeException(ResultCode.TIMEOUT, "timeout"));
+		given(this.fallbackClient.get(any(), any(Key.class)))
+				.willThrow(new AerospikeException(ResultCode.SERVER_NOT_AVAILABLE, "unavailable"));
+
+		// when
+		try {
+			this.aosr.getSession("session-id");
+			fail("Expected AerospikeException");
+		}
+		catch (AerospikeException e) {
+			// then
+			assertThat(e.getResultCode()).isEqualTo(ResultCode.TIMEOUT);
+		}
+	}
+
+	@Test
+	public void shouldHedgeSlowPrimaryRead() throws Exception {
+		// given
+		this.aosr.setHedgeDelayInMillis(10);
+		final CountDownLatch release = new CountDownLatch(1);
+		given(this.aerospikeClient.get(any(), any(Key.class))).willAnswer(new Answer<Record>() {
+
+			public Record answer(InvocationOnMock invocation) throws Exception {
+				release.await(5, TimeUnit.SECONDS);
+				return null;
+			}
+		});
+		given(this.fallbackClient.get(any(), any(Key.class)))
+				.willReturn(storedRecord("name", "value"));
+
+		try {
+			// when
+			ExpiringSession session = this.aosr.getSession("session-id");
+
+			// then
+			assertThat(session.<String>getAttribute("name")).isEqualTo("value");
+			assertThat(release.getCount()).isEqualTo(1);
+		}
+		finally {
+			release.countDown();
+		}
+	}
+}
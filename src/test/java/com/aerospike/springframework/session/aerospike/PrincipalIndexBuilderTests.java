@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aerospike.springframework.session.aerospike;
+
+import static com.aerospike.springframework.session.aerospike.SessionRecords.storedRecord;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.BDDMockito.willAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.springframework.session.ExpiringSession;
+import org.springframework.session.FindByIndexNameSessionRepository;
+
+import com.aerospike.client.IAerospikeClient;
+import com.aerospike.client.Key;
+import com.aerospike.client.Record;
+import com.aerospike.client.ScanCallback;
+import com.aerospike.client.policy.QueryPolicy;
+import com.aerospike.client.policy.ScanPolicy;
+import com.aerospike.client.query.Statement;
+
+
+/**
+ * Tests for {@link PrincipalIndexBuilder}.
+ *
+ * @author Jeff Boone
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class PrincipalIndexBuilderTests {
+
+	@Mock
+	IAerospikeClient aerospikeClient;
+
+	AerospikeOperationsSessionRepository aosr;
+
+	@Before
+	public void setUp() throws Exception {
+		this.aosr = new AerospikeOperationsSessionRepository(this.aerospikeClient);
+		this.aosr.setAsyncIndexCreation(true);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		this.aosr.shutdown();
+	}
+
+	@Test
+	public void shouldScanForSessionsByPrincipalWhileIndexIsBuilt() throws Exception {
+		// given
+		this.aosr.ensureIndexesAreCreated();
+		willAnswer(new Answer<Void>() {
+
+			public Void answer(InvocationOnMock invocation) {
+				ScanCallback callback = invocation.getArgument(3);
+				Record mine = storedRecord("attr", "value");
+				mine.bins.put("principal", "user");
+				Record other = storedRecord("attr", "value");
+				other.bins.put("principal", "someone-else");
+				callback.scanCallback(new Key("ns", "set", "mine"), mine);
+				callback.scanCallback(new Key("ns", "set", "other"), other);
+				return null;
+			}
+		}).given(this.aerospikeClient).scanAll(any(ScanPolicy.class), anyString(), anyString(),
+				any(ScanCallback.class), any(String[].class));
+
+		// when
+		Map<String, ExpiringSession> sessions = this.aosr.findByIndexNameAndIndexValue(
+				FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "user");
+
+		// then
+		assertThat(this.aosr.isPrincipalIndexReady()).isFalse();
+		assertThat(sessions).containsOnlyKeys("mine");
+		verify(this.aerospikeClient, never()).query(any(QueryPolicy.class), any(Statement.class));
+	}
+}
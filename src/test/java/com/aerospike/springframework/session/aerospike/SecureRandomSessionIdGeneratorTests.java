@@ -0,0 +1,60 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aerospike.springframework.session.aerospike;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+
+/**
+ * Tests for {@link SecureRandomSessionIdGenerator}.
+ *
+ * @author Jeff Boone
+ */
+public class SecureRandomSessionIdGeneratorTests {
+
+	@Test
+	public void shouldCreateUniqueUrlSafeIds() throws Exception {
+		// given
+		SecureRandomSessionIdGenerator generator = new SecureRandomSessionIdGenerator(3);
+		Set<String> ids = new HashSet<String>();
+
+		// when
+		for (int i = 0; i < 1000; i++) {
+			ids.add(generator.generateId());
+		}
+
+		// then
+		assertThat(ids).hasSize(1000);
+		for (String id : ids) {
+			assertThat(id).hasSize(22).matches("[A-Za-z0-9_-]+");
+		}
+	}
+
+	@Test
+	public void shouldEncodeAllBitsWithoutPadding() throws Exception {
+		byte[] ones = new byte[16];
+		Arrays.fill(ones, (byte) 0xff);
+
+		assertThat(SecureRandomSessionIdGenerator.encode(new byte[16])).isEqualTo("AAAAAAAAAAAAAAAAAAAAAA");
+		assertThat(SecureRandomSessionIdGenerator.encode(ones)).isEqualTo("_____________________w");
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aerospike.springframework.session.aerospike;
+
+import static com.aerospike.springframework.session.aerospike.SessionRecords.storedRecord;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.session.ExpiringSession;
+
+import com.aerospike.client.IAerospikeClient;
+import com.aerospike.client.Key;
+import com.aerospike.client.Record;
+
+
+/**
+ * Tests for {@link SessionNearCache}.
+ *
+ * @author Jeff Boone
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class SessionNearCacheTests {
+
+	@Mock
+	IAerospikeClient aerospikeClient;
+
+	AerospikeOperationsSessionRepository aosr;
+
+	@Before
+	public void setUp() throws Exception {
+		this.aosr = new AerospikeOperationsSessionRepository(this.aerospikeClient);
+	}
+
+	@Test
+	public void shouldValidateNearCacheHitWithRecordHeader() throws Exception {
+		// given
+		this.aosr.setNearCache(new SessionNearCache());
+		given(this.aerospikeClient.get(any(), any(Key.class)))
+				.willReturn(storedRecord("name", "value"));
+		given(this.aerospikeClient.getHeader(any(), any(Key.class)))
+				.willReturn(new Record(null, 1, AerospikeOperationsSessionRepository.DEFAULT_INACTIVE_INTERVAL));
+		this.aosr.getSession("session-id");
+
+		// when
+		ExpiringSession session = this.aosr.getSession("session-id");
+
+		// then
+		assertThat(session.<String>getAttribute("name")).isEqualTo("value");
+		verify(this.aerospikeClient, times(1)).get(any(), any(Key.class));
+	}
+
+	@Test
+	public void shouldReadRecordWhenNearCacheGenerationChanged() throws Exception {
+		// given
+		this.aosr.setNearCache(new SessionNearCache());
+		given(this.aerospikeClient.get(any(), any(Key.class)))
+				.willReturn(storedRecord("name", "value"));
+		given(this.aerospikeClient.getHeader(any(), any(Key.class)))
+				.willReturn(new Record(null, 2, AerospikeOperationsSessionRepository.DEFAULT_INACTIVE_INTERVAL));
+		this.aosr.getSession("session-id");
+
+		// when
+		this.aosr.getSession("session-id");
+
+		// then
+		verify(this.aerospikeClient, times(2)).get(any(), any(Key.class));
+	}
+
+	@Test
+	public void shouldTrustNearCacheWithinTrustInterval() throws Exception {
+		// given
+		SessionNearCache nearCache = new SessionNearCache();
+		nearCache.setTrustIntervalInMillis(60000);
+		this.aosr.setNearCache(nearCache);
+		given(this.aerospikeClient.get(any(), any(Key.class)))
+				.willReturn(storedRecord("name", "value"));
+		this.aosr.getSession("session-id");
+
+		// when
+		ExpiringSession session = this.aosr.getSession("session-id");
+
+		// then
+		assertThat(session.<String>getAttribute("name")).isEqualTo("value");
+		verify(this.aerospikeClient, times(1)).get(any(), any(Key.class));
+		verify(this.aerospikeClient, never()).getHeader(any(), any(Key.class));
+	}
+
+	@Test
+	public void shouldInvalidateNearCacheOnDelete() throws Exception {
+		// given
+		SessionNearCache nearCache = new SessionNearCache();
+		nearCache.setTrustIntervalInMillis(60000);
+		this.aosr.setNearCache(nearCache);
+		given(this.aerospikeClient.get(any(), any(Key.class)))
+				.willReturn(storedRecord("name", "value"));
+		this.aosr.getSession("session-id");
+
+		// when
+		this.aosr.delete("session-id");
+		this.aosr.getSession("session-id");
+
+		// then
+		verify(this.aerospikeClient, times(2)).get(any(), any(Key.class));
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aerospike.springframework.session.aerospike;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.aerospike.client.Record;
+
+
+/**
+ * Builds the session records the tests stub the client reads with.
+ *
+ * @author Jeff Boone
+ */
+final class SessionRecords {
+
+	private SessionRecords() {
+	}
+
+	static Record storedRecord(String attrName, Object attrValue) {
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put(attrName, new CompactSessionCodec().encode(attrValue));
+		Map<String, Object> bins = new HashMap<String, Object>();
+		bins.put("created", System.currentTimeMillis());
+		bins.put("accessed", System.currentTimeMillis());
+		bins.put("interval", (long) AerospikeOperationsSessionRepository.DEFAULT_INACTIVE_INTERVAL);
+		bins.put("data", data);
+		return new Record(bins, 1, AerospikeOperationsSessionRepository.DEFAULT_INACTIVE_INTERVAL);
+	}
+}
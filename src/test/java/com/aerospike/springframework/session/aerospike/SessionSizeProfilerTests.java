@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aerospike.springframework.session.aerospike;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.session.ExpiringSession;
+
+import com.aerospike.client.Bin;
+import com.aerospike.client.IAerospikeClient;
+import com.aerospike.client.Key;
+import com.aerospike.client.policy.WritePolicy;
+
+
+/**
+ * Tests for {@link SessionSizeProfiler}.
+ *
+ * @author Jeff Boone
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class SessionSizeProfilerTests {
+
+	@Mock
+	IAerospikeClient aerospikeClient;
+
+	AerospikeOperationsSessionRepository aosr;
+
+	@Before
+	public void setUp() throws Exception {
+		this.aosr = new AerospikeOperationsSessionRepository(this.aerospikeClient);
+	}
+
+	@Test
+	public void shouldProfileAttributeSizesOfSampledSaves() throws Exception {
+		// given
+		SessionSizeProfiler profiler = new SessionSizeProfiler();
+		profiler.setSampleRate(1);
+		this.aosr.setSessionSizeProfiler(profiler);
+		ExpiringSession session = this.aosr.createSession();
+		session.setAttribute("small", "a");
+		session.setAttribute("large", new byte[4096]);
+
+		// when
+		this.aosr.save(session);
+
+		// then
+		Map<String, Object> profile = profiler.getProfile();
+		@SuppressWarnings("unchecked")
+		List<Map<String, Object>> top = (List<Map<String, Object>>) profile.get("topAttributes");
+		assertThat(top).hasSize(2);
+		assertThat(top.get(0).get("name")).isEqualTo("large");
+		assertThat(top.get(1).get("name")).isEqualTo("small");
+		assertThat((Long) top.get(0).get("maxBytes")).isGreaterThan(4096L);
+		@SuppressWarnings("unchecked")
+		Map<String, Object> sizes = (Map<String, Object>) profile.get("sessionSizes");
+		assertThat(sizes).containsOnlyKeys(SessionSizeProfiler.ANONYMOUS);
+	}
+
+	@Test
+	public void shouldRejectSessionAboveSizeLimit() throws Exception {
+		// given
+		SessionSizeProfiler profiler = new SessionSizeProfiler();
+		profiler.setSampleRate(0);
+		profiler.setRejectThresholdBytes(1024);
+		this.aosr.setSessionSizeProfiler(profiler);
+		ExpiringSession session = this.aosr.createSession();
+		session.setAttribute("large", new byte[4096]);
+
+		// when
+		try {
+			this.aosr.save(session);
+			fail("Expected IllegalStateException");
+		}
+		catch (IllegalStateException e) {
+			// then
+			assertThat(e.getMessage()).contains("large");
+		}
+		verify(this.aerospikeClient, never()).put(any(WritePolicy.class), any(Key.class), any(Bin[].class));
+		assertThat(profiler.getProfile().get("rejectedSessions")).isEqualTo(1L);
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aerospike.springframework.session.aerospike;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for the segment files of {@link SessionTransfer}.
+ *
+ * @author Jeff Boone
+ */
+public class SessionTransferTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	CompactSessionCodec codec = new CompactSessionCodec();
+
+	@Test
+	public void shouldRoundTripSessionsThroughSegments() throws Exception {
+		// given
+		File directory = this.folder.getRoot();
+		SessionTransfer.SegmentWriter writer = new SessionTransfer.SegmentWriter(directory, "ns-node", 3, 2);
+		for (int i = 0; i < 5; i++) {
+			AerospikeExpiringSession session = new AerospikeExpiringSession("session-" + i, 600);
+			session.setCreationTime(1000L + i);
+			session.setLastAccessedTime(2000L + i);
+			session.setAttribute("index", i);
+			writer.write(session, this.codec);
+		}
+
+		// when
+		writer.close();
+
+		// then
+		File[] segments = directory.listFiles();
+		assertThat(segments).extracting("name").containsOnly("ns-node-1.sessions", "ns-node-2.sessions");
+		List<AerospikeExpiringSession> sessions = new ArrayList<AerospikeExpiringSession>();
+		for (String name : new String[] { "ns-node-1.sessions", "ns-node-2.sessions" }) {
+			sessions.addAll(readAll(new File(directory, name)));
+		}
+		assertThat(sessions).hasSize(5);
+		for (int i = 0; i < 5; i++) {
+			AerospikeExpiringSession session = sessions.get(i);
+			assertThat(session.getId()).isEqualTo("session-" + i);
+			assertThat(session.getCreationTime()).isEqualTo(1000L + i);
+			assertThat(session.getLastAccessedTime()).isEqualTo(2000L + i);
+			assertThat(session.getMaxInactiveIntervalInSeconds()).isEqualTo(600);
+			assertThat(session.<Integer>getAttribute("index")).isEqualTo(i);
+			assertThat(session.isNew()).isTrue();
+		}
+	}
+
+	@Test
+	public void shouldDetectCorruptChunk() throws Exception {
+		// given
+		File directory = this.folder.getRoot();
+		SessionTransfer.SegmentWriter writer = new SessionTransfer.SegmentWriter(directory, "ns-node", 10, 10);
+		AerospikeExpiringSession session = new AerospikeExpiringSession("session", 600);
+		session.setAttribute("name", "value");
+		writer.write(session, this.codec);
+		writer.close();
+		File segment = new File(directory, "ns-node-1.sessions");
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		try {
+			file.seek(file.length() - 6);
+			file.write('x');
+		}
+		finally {
+			file.close();
+		}
+
+		// when
+		try {
+			readAll(segment);
+			fail("Expected IOException");
+		}
+		catch (IOException e) {
+			// then
+			assertThat(e.getMessage()).contains("corrupt");
+		}
+	}
+
+	private List<AerospikeExpiringSession> readAll(File segment) throws IOException {
+		SessionTransfer.SegmentReader reader = new SessionTransfer.SegmentReader(segment, this.codec);
+		List<AerospikeExpiringSession> sessions = new ArrayList<AerospikeExpiringSession>();
+		try {
+			List<AerospikeExpiringSession> chunk;
+			while ((chunk = reader.readChunk()) != null) {
+				sessions.addAll(chunk);
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return sessions;
+	}
+}
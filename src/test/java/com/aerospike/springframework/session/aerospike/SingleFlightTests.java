@@ -0,0 +1,105 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aerospike.springframework.session.aerospike;
+
+import static com.aerospike.springframework.session.aerospike.SessionRecords.storedRecord;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.springframework.session.ExpiringSession;
+
+import com.aerospike.client.IAerospikeClient;
+import com.aerospike.client.Key;
+import com.aerospike.client.Record;
+
+
+/**
+ * Tests for {@link SingleFlight}.
+ *
+ * @author Jeff Boone
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class SingleFlightTests {
+
+	@Mock
+	IAerospikeClient aerospikeClient;
+
+	AerospikeOperationsSessionRepository aosr;
+
+	@Before
+	public void setUp() throws Exception {
+		this.aosr = new AerospikeOperationsSessionRepository(this.aerospikeClient);
+		this.aosr.setSingleFlight(true);
+	}
+
+	@Test
+	public void shouldShareConcurrentReadsOfSameSession() throws Exception {
+		// given
+		final CountDownLatch reading = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		given(this.aerospikeClient.get(any(), any(Key.class))).willAnswer(new Answer<Record>() {
+
+			public Record answer(InvocationOnMock invocation) throws Exception {
+				reading.countDown();
+				release.await(5, TimeUnit.SECONDS);
+				return storedRecord("name", "value");
+			}
+		});
+		Callable<ExpiringSession> read = new Callable<ExpiringSession>() {
+
+			public ExpiringSession call() {
+				return SingleFlightTests.this.aosr.getSession("session-id");
+			}
+		};
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<ExpiringSession> first = executor.submit(read);
+			reading.await(5, TimeUnit.SECONDS);
+			Future<ExpiringSession> second = executor.submit(read);
+			Thread.sleep(100);
+
+			// when
+			release.countDown();
+
+			// then
+			assertThat(first.get(5, TimeUnit.SECONDS).getAttribute("name")).isEqualTo("value");
+			assertThat(second.get(5, TimeUnit.SECONDS).getAttribute("name")).isEqualTo("value");
+			assertThat(second.get()).isNotSameAs(first.get());
+			verify(this.aerospikeClient, times(1)).get(any(), any(Key.class));
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aerospike.springframework.session.aerospike;
+
+import static com.aerospike.springframework.session.aerospike.SessionRecords.storedRecord;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.springframework.session.ExpiringSession;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Bin;
+import com.aerospike.client.IAerospikeClient;
+import com.aerospike.client.Key;
+import com.aerospike.client.Operation;
+import com.aerospike.client.Record;
+import com.aerospike.client.ResultCode;
+import com.aerospike.client.ScanCallback;
+import com.aerospike.client.policy.RecordExistsAction;
+import com.aerospike.client.policy.ScanPolicy;
+import com.aerospike.client.policy.WritePolicy;
+
+
+/**
+ * Tests for {@link TieredStorage}.
+ *
+ * @author Jeff Boone
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class TieredStorageTests {
+
+	@Mock
+	IAerospikeClient aerospikeClient;
+
+	AerospikeOperationsSessionRepository aosr;
+
+	@Before
+	public void setUp() throws Exception {
+		this.aosr = new AerospikeOperationsSessionRepository(this.aerospikeClient);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		this.aosr.shutdown();
+	}
+
+	@Test
+	public void shouldPromoteSessionDemotedBeforeSave() throws Exception {
+		// given
+		TieredStoragePolicy policy = new TieredStoragePolicy();
+		policy.coldNamespace = "cold";
+		policy.demoteIntervalInMillis = 0;
+		this.aosr.setTieredStoragePolicy(policy);
+		given(this.aerospikeClient.get(any(), any(Key.class)))
+				.willReturn(storedRecord("name", "value"));
+		given(this.aerospikeClient.operate(any(WritePolicy.class), any(Key.class), any(Operation[].class)))
+				.willThrow(new AerospikeException(ResultCode.KEY_NOT_FOUND_ERROR))
+				.willReturn(null);
+		ExpiringSession session = this.aosr.getSession("session-id");
+		session.setAttribute("other", "value");
+
+		// when
+		this.aosr.save(session);
+
+		// then
+		ArgumentCaptor<WritePolicy> putPolicy = ArgumentCaptor.forClass(WritePolicy.class);
+		verify(this.aerospikeClient).put(putPolicy.capture(), any(Key.class), any(Bin[].class));
+		assertThat(putPolicy.getValue().recordExistsAction).isEqualTo(RecordExistsAction.CREATE_ONLY);
+		verify(this.aerospikeClient, times(2)).operate(any(WritePolicy.class), any(Key.class), any(Operation[].class));
+		assertThat(((AerospikeExpiringSession) session).getDelta()).isEmpty();
+	}
+
+	@Test
+	public void shouldNotDemoteWhileAnotherNodeHoldsTheLease() throws Exception {
+		// given
+		TieredStoragePolicy policy = new TieredStoragePolicy();
+		policy.coldNamespace = "cold";
+		policy.demoteIntervalInMillis = TimeUnit.HOURS.toMillis(1);
+		this.aosr.setTieredStoragePolicy(policy);
+		Map<String, Object> bins = new HashMap<String, Object>();
+		bins.put("owner", "other-node");
+		given(this.aerospikeClient.get(any(), any(Key.class), eq("owner"))).willReturn(new Record(bins, 1, 0));
+
+		// when
+		this.aosr.getTieredStorage().demoteIdle();
+
+		// then
+		verify(this.aerospikeClient, never()).scanAll(any(ScanPolicy.class), anyString(), anyString(),
+				any(ScanCallback.class), any(String[].class));
+	}
+
+	@Test
+	public void shouldPromoteSessionFromColdNamespaceOnRead() throws Exception {
+		// given
+		TieredStoragePolicy policy = new TieredStoragePolicy();
+		policy.coldNamespace = "cold";
+		policy.demoteIntervalInMillis = 0;
+		this.aosr.setTieredStoragePolicy(policy);
+		given(this.aerospikeClient.get(any(), any(Key.class))).willAnswer(new Answer<Record>() {
+
+			public Record answer(InvocationOnMock invocation) {
+				Key key = invocation.getArgument(1);
+				return "cold".equals(key.namespace) ? storedRecord("idle", "value") : null;
+			}
+		});
+
+		// when
+		ExpiringSession session = this.aosr.getSession("session-id");
+
+		// then
+		assertThat(session.<String>getAttribute("idle")).isEqualTo("value");
+		ArgumentCaptor<WritePolicy> policyCaptor = ArgumentCaptor.forClass(WritePolicy.class);
+		ArgumentCaptor<Key> hotKey = ArgumentCaptor.forClass(Key.class);
+		verify(this.aerospikeClient).put(policyCaptor.capture(), hotKey.capture(), any(Bin[].class));
+		assertThat(hotKey.getValue().namespace).isEqualTo(AerospikeOperationsSessionRepository.DEFAULT_NAMESPACE);
+		assertThat(policyCaptor.getValue().recordExistsAction).isEqualTo(RecordExistsAction.CREATE_ONLY);
+		ArgumentCaptor<Key> coldKey = ArgumentCaptor.forClass(Key.class);
+		verify(this.aerospikeClient).delete(any(WritePolicy.class), coldKey.capture());
+		assertThat(coldKey.getValue().namespace).isEqualTo("cold");
+	}
+}
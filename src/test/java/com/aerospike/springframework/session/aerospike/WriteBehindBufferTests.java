@@ -0,0 +1,161 @@
+/*
+ * Copyright 2014-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aerospike.springframework.session.aerospike;
+
+import static com.aerospike.springframework.session.aerospike.SessionRecords.storedRecord;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
+import static org.mockito.BDDMockito.willThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.springframework.session.ExpiringSession;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Bin;
+import com.aerospike.client.IAerospikeClient;
+import com.aerospike.client.Key;
+import com.aerospike.client.Operation;
+import com.aerospike.client.ResultCode;
+import com.aerospike.client.policy.WritePolicy;
+
+
+/**
+ * Tests for {@link WriteBehindBuffer}.
+ *
+ * @author Jeff Boone
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class WriteBehindBufferTests {
+
+	@Mock
+	IAerospikeClient aerospikeClient;
+
+	AerospikeOperationsSessionRepository aosr;
+
+	@Before
+	public void setUp() throws Exception {
+		this.aosr = new AerospikeOperationsSessionRepository(this.aerospikeClient);
+		WriteBehindPolicy writeBehindPolicy = new WriteBehindPolicy();
+		writeBehindPolicy.maxDelayInMillis = 60000;
+		this.aosr.setWriteBehindPolicy(writeBehindPolicy);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		this.aosr.shutdown();
+	}
+
+	@Test
+	public void shouldCoalesceWriteBehindSaves() throws Exception {
+		// given
+		given(this.aerospikeClient.get(any(), any(Key.class)))
+				.willReturn(storedRecord("unchanged", "value"));
+		ExpiringSession session = this.aosr.getSession("session-id");
+		session.setAttribute("first", "value");
+		this.aosr.save(session);
+		session = this.aosr.getSession("session-id");
+		session.setAttribute("second", "value");
+		this.aosr.save(session);
+
+		// when
+		this.aosr.shutdown();
+
+		// then
+		ArgumentCaptor<Operation> operations = ArgumentCaptor.forClass(Operation.class);
+		verify(this.aerospikeClient, times(1)).get(any(), any(Key.class));
+		verify(this.aerospikeClient, times(1)).operate(any(WritePolicy.class), any(Key.class), operations.capture());
+		assertThat(operations.getAllValues()).hasSize(3);
+	}
+
+	@Test
+	public void shouldMergeAttributesOfConcurrentSavesOfNewSession() throws Exception {
+		// given
+		AerospikeExpiringSession first = (AerospikeExpiringSession) this.aosr.createSession();
+		AerospikeExpiringSession second = first.copy();
+		first.setAttribute("first", "value");
+		second.setAttribute("second", "value");
+		this.aosr.save(first);
+		this.aosr.save(second);
+
+		// when
+		this.aosr.shutdown();
+
+		// then
+		ArgumentCaptor<Bin> bins = ArgumentCaptor.forClass(Bin.class);
+		verify(this.aerospikeClient).put(any(WritePolicy.class), any(Key.class), bins.capture());
+		Map<?, ?> data = null;
+		for (Bin bin : bins.getAllValues()) {
+			if ("data".equals(bin.name)) {
+				data = (Map<?, ?>) bin.value.getObject();
+			}
+		}
+		assertThat(data).containsKeys("first", "second");
+	}
+
+	@Test
+	public void shouldDeleteSessionWrittenBehindAfterItWasDeleted() throws Exception {
+		// given
+		final ExpiringSession session = this.aosr.createSession();
+		this.aosr.save(session);
+		willAnswer(new Answer<Void>() {
+
+			public Void answer(InvocationOnMock invocation) {
+				WriteBehindBufferTests.this.aosr.delete(session.getId());
+				return null;
+			}
+		}).given(this.aerospikeClient).put(any(WritePolicy.class), any(Key.class), any(Bin[].class));
+
+		// when
+		this.aosr.shutdown();
+
+		// then
+		verify(this.aerospikeClient, times(2)).delete(any(WritePolicy.class), any(Key.class));
+	}
+
+	@Test
+	public void shouldRetryFailedWriteOnNextFlush() throws Exception {
+		// given
+		ExpiringSession session = this.aosr.createSession();
+		session.setAttribute("name", "value");
+		this.aosr.save(session);
+		willThrow(new AerospikeException(ResultCode.TIMEOUT)).willDoNothing()
+				.given(this.aerospikeClient).put(any(WritePolicy.class), any(Key.class), any(Bin[].class));
+		this.aosr.getWriteBehindBuffer().flush();
+		assertThat(this.aosr.getWriteBehindBuffer().get(session.getId())).isNotNull();
+
+		// when
+		this.aosr.getWriteBehindBuffer().flush();
+
+		// then
+		verify(this.aerospikeClient, times(2)).put(any(WritePolicy.class), any(Key.class), any(Bin[].class));
+		assertThat(this.aosr.getWriteBehindBuffer().get(session.getId())).isNull();
+	}
+}
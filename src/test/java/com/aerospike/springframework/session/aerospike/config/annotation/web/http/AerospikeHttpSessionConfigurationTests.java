@@ -17,6 +17,9 @@
 package com.aerospike.springframework.session.aerospike.config.annotation.web.http;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
 
 import org.junit.After;
 import org.junit.Before;
@@ -24,10 +27,21 @@ import org.junit.Test;
 import org.springframework.context.annotation.AnnotationConfigApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
 import org.springframework.session.MapSessionRepository;
 import org.springframework.test.util.ReflectionTestUtils;
 
+import com.aerospike.client.IAerospikeClient;
+import com.aerospike.client.policy.Policy;
+import com.aerospike.client.policy.Replica;
+import com.aerospike.client.policy.WritePolicy;
+import com.aerospike.client.task.IndexTask;
 import com.aerospike.springframework.session.aerospike.AerospikeOperationsSessionRepository;
+import com.aerospike.springframework.session.aerospike.TieredStoragePolicy;
+import com.aerospike.springframework.session.aerospike.WriteBehindPolicy;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 
 
 /**
@@ -40,6 +54,7 @@ public class AerospikeHttpSessionConfigurationTests {
 
 	private static final int MAX_INACTIVE_INTERVAL_IN_SECONDS = 800;
 	private static final String TEST_NAMESPACE = "session_test";
+	private static final int TIMEOUT_IN_MILLIS = 250;
 
 	private AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
 
@@ -79,6 +94,80 @@ public class AerospikeHttpSessionConfigurationTests {
 				.isEqualTo(TEST_NAMESPACE);
 	}
 
+	@Test
+	public void customPolicies() {
+		registerAndRefresh(CustomPoliciesConfiguration.class);
+
+		AerospikeOperationsSessionRepository repository = this.context
+				.getBean(AerospikeOperationsSessionRepository.class);
+		Policy readPolicy = (Policy) ReflectionTestUtils.getField(repository, "readPolicy");
+		WritePolicy deletePolicy = (WritePolicy) ReflectionTestUtils.getField(repository, "deletePolicy");
+		assertThat(readPolicy.timeout).isEqualTo(TIMEOUT_IN_MILLIS);
+		assertThat(readPolicy.replica).isEqualTo(Replica.MASTER);
+		assertThat(deletePolicy.timeout).isEqualTo(TIMEOUT_IN_MILLIS);
+		assertThat(deletePolicy.durableDelete).isTrue();
+	}
+
+	@Test
+	public void customNearCache() {
+		registerAndRefresh(CustomNearCacheConfiguration.class);
+
+		AerospikeOperationsSessionRepository repository = this.context
+				.getBean(AerospikeOperationsSessionRepository.class);
+		assertThat(ReflectionTestUtils.getField(repository, "nearCache")).isNotNull();
+	}
+
+	@Test
+	public void customWriteBehind() {
+		registerAndRefresh(CustomWriteBehindConfiguration.class);
+
+		AerospikeOperationsSessionRepository repository = this.context
+				.getBean(AerospikeOperationsSessionRepository.class);
+		Object writeBehindBuffer = ReflectionTestUtils.getField(repository, "writeBehindBuffer");
+		assertThat(writeBehindBuffer).isNotNull();
+		WriteBehindPolicy policy = (WriteBehindPolicy) ReflectionTestUtils.getField(writeBehindBuffer, "policy");
+		assertThat(policy.maxDelayInMillis).isEqualTo(500);
+		assertThat(policy.maxBatchSize).isEqualTo(50);
+	}
+
+	@Test
+	public void customTieredStorage() {
+		registerAndRefresh(CustomTieredStorageConfiguration.class);
+
+		AerospikeOperationsSessionRepository repository = this.context
+				.getBean(AerospikeOperationsSessionRepository.class);
+		Object tieredStorage = ReflectionTestUtils.getField(repository, "tieredStorage");
+		assertThat(tieredStorage).isNotNull();
+		TieredStoragePolicy policy = (TieredStoragePolicy) ReflectionTestUtils.getField(tieredStorage, "policy");
+		assertThat(policy.coldNamespace).isEqualTo("cold");
+		assertThat(policy.demoteAfterIdleInSeconds).isEqualTo(600);
+	}
+
+	@Test
+	public void customFallbackClient() {
+		registerAndRefresh(CustomFallbackClientConfiguration.class);
+
+		AerospikeOperationsSessionRepository repository = this.context
+				.getBean(AerospikeOperationsSessionRepository.class);
+		Object fallbackReader = ReflectionTestUtils.getField(repository, "fallbackReader");
+		assertThat(fallbackReader).isNotNull();
+		assertThat(ReflectionTestUtils.getField(fallbackReader, "fallbackClient"))
+				.isSameAs(this.context.getBean("fallbackClient"));
+		assertThat(ReflectionTestUtils.getField(fallbackReader, "hedgeDelayInMillis")).isEqualTo(20L);
+	}
+
+	@Test
+	public void primaryMeterRegistryAmongSeveral() {
+		registerAndRefresh(SeveralMeterRegistriesConfiguration.class);
+
+		AerospikeOperationsSessionRepository repository = this.context
+				.getBean(AerospikeOperationsSessionRepository.class);
+		Object metrics = ReflectionTestUtils.getField(repository, "metrics");
+		assertThat(metrics).isNotNull();
+		assertThat(ReflectionTestUtils.getField(metrics, "registry"))
+				.isSameAs(this.context.getBean("primaryMeterRegistry"));
+	}
+
 	private void registerAndRefresh(Class<?>... annotatedClasses) {
 		this.context.register(annotatedClasses);
 		this.context.refresh();
@@ -89,6 +178,15 @@ public class AerospikeHttpSessionConfigurationTests {
 		public MapSessionRepository sessionRepository() {
 			return new MapSessionRepository();
 		}
+
+		@Bean
+		@Primary
+		public IAerospikeClient aerospikeClient() {
+			IAerospikeClient aerospikeClient = mock(IAerospikeClient.class);
+			given(aerospikeClient.createIndex(any(), any(), any(), any(), any(), any()))
+					.willReturn(mock(IndexTask.class));
+			return aerospikeClient;
+		}
 	}
 	
 	@Configuration
@@ -102,4 +200,53 @@ public class AerospikeHttpSessionConfigurationTests {
 	static class CustomNamespaceConfiguration extends BaseConfiguration {
 
 	}
+
+	@Configuration
+	@EnableAerospikeHttpSession(readTimeoutInMillis = TIMEOUT_IN_MILLIS, writeTimeoutInMillis = TIMEOUT_IN_MILLIS,
+			readReplica = Replica.MASTER, durableDelete = true)
+	static class CustomPoliciesConfiguration extends BaseConfiguration {
+
+	}
+
+	@Configuration
+	@EnableAerospikeHttpSession(nearCacheMaxSize = 100)
+	static class CustomNearCacheConfiguration extends BaseConfiguration {
+
+	}
+
+	@Configuration
+	@EnableAerospikeHttpSession(writeBehindMaxDelayInMillis = 500, writeBehindMaxBatchSize = 50)
+	static class CustomWriteBehindConfiguration extends BaseConfiguration {
+
+	}
+
+	@Configuration
+	@EnableAerospikeHttpSession(coldNamespace = "cold", demoteAfterIdleInSeconds = 600, demoteIntervalInSeconds = 0)
+	static class CustomTieredStorageConfiguration extends BaseConfiguration {
+
+	}
+
+	@Configuration
+	@EnableAerospikeHttpSession(fallbackClientBeanName = "fallbackClient", hedgeDelayInMillis = 20)
+	static class CustomFallbackClientConfiguration extends BaseConfiguration {
+		@Bean
+		public IAerospikeClient fallbackClient() {
+			return mock(IAerospikeClient.class);
+		}
+	}
+
+	@Configuration
+	@EnableAerospikeHttpSession
+	static class SeveralMeterRegistriesConfiguration extends BaseConfiguration {
+		@Bean
+		@Primary
+		public MeterRegistry primaryMeterRegistry() {
+			return new SimpleMeterRegistry();
+		}
+
+		@Bean
+		public MeterRegistry otherMeterRegistry() {
+			return new SimpleMeterRegistry();
+		}
+	}
 }